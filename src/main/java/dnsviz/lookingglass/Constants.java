@@ -30,4 +30,6 @@ public class Constants {
   // Dictionary keys (primarily for JSON)
   public static final String kVersion = "version";
   public static final String kSource = "src";
+  public static final String kId = "id";
+  public static final String kCancel = "cancel";
 }
\ No newline at end of file
@@ -21,9 +21,22 @@
 
 package dnsviz.lookingglass;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import javax.net.ssl.SSLContext;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -31,25 +44,55 @@ import org.json.JSONException;
 
 import dnsviz.serializers.DNSQueryTransportHandlersDeserializer;
 
+import dnsviz.transport.DNSQueryAdmissionSettings;
+import dnsviz.transport.DNSQueryBatch;
+import dnsviz.transport.DNSQueryBatchListener;
+import dnsviz.transport.DNSQueryCache;
+import dnsviz.transport.DNSQueryCapacity;
+import dnsviz.transport.DNSQueryDropCounters;
+import dnsviz.transport.DNSQueryEngine;
+import dnsviz.transport.DNSQueryListener;
+import dnsviz.transport.DNSQueryPacingSettings;
+import dnsviz.transport.DNSQueryRejectedException;
+import dnsviz.transport.DNSQuerySocketPool;
+import dnsviz.transport.DNSQuerySourcePool;
+import dnsviz.transport.DNSQueryTenant;
+import dnsviz.transport.DNSQueryTrace;
 import dnsviz.transport.DNSQueryTransportHandler;
 import dnsviz.transport.DNSQueryTransportHandlerTCP;
+import dnsviz.transport.DNSQueryTransportHandlerTLS;
 import dnsviz.transport.DNSQueryTransportHandlerUDP;
 import dnsviz.transport.DNSQueryTransportManager;
 import dnsviz.util.Base64Decoder;
 import dnsviz.util.Base64Encoder;
-import dnsviz.websocket.WebSocketClient;
+import dnsviz.websocket.ReconnectingWebSocketClient;
+import dnsviz.websocket.RecordingWebSocketSession;
+import dnsviz.websocket.SessionRecording;
+import dnsviz.websocket.WebSocketSession;
 
 import static dnsviz.lookingglass.Constants.*;
 
 public class DNSLookingGlass {
 	
-	private WebSocketClient websocket;
+	private WebSocketSession websocket;
+
+	private final DNSQueryPacingSettings pacingSettings = new DNSQueryPacingSettings();
+	private final DNSQueryAdmissionSettings admissionSettings = new DNSQueryAdmissionSettings();
+
+	private volatile DNSQueryCache cache = null;
+	private volatile DNSQuerySourcePool sourcePool = null;
+	private volatile DNSQuerySocketPool socketPool = null;
+	private volatile boolean traceResponses = false;
+	private volatile long capacityInterval = 0;
+	private final CopyOnWriteArrayList<DNSQueryListener> queryListeners = new CopyOnWriteArrayList<>();
+
+	private DNSQueryEngine engine = null;
 
 	public DNSLookingGlass() {
 	
 	}
 
-	public DNSLookingGlass(WebSocketClient websocket) {
+	public DNSLookingGlass(WebSocketSession websocket) {
 		this.websocket = websocket;
 	}
 
@@ -57,8 +100,199 @@ public class DNSLookingGlass {
 		this.interact(this.websocket);
 	}
 
+	/**
+	 * @return the settings used to pace queries to each destination, which may
+	 * be adjusted at any time
+	 */
+	public DNSQueryPacingSettings getPacingSettings() {
+		return pacingSettings;
+	}
+
+	/**
+	 * @return the settings bounding the queries queued and in flight, which
+	 * may be adjusted at any time
+	 */
+	public DNSQueryAdmissionSettings getAdmissionSettings() {
+		return admissionSettings;
+	}
+
+	public DNSQueryCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the cache with which identical queries are coalesced, and their
+	 * results reused, or null (the default) to send every query.  Responses
+	 * obtained this way are marked with "shared".  This takes effect for
+	 * interact() loops started, and batches run, afterwards.
+	 */
+	public synchronized void setCache(DNSQueryCache cache) {
+		this.cache = cache;
+		if (engine != null) {
+			engine.setCache(cache);
+		}
+	}
+
+	public DNSQuerySourcePool getSourcePool() {
+		return sourcePool;
+	}
+
+	/**
+	 * Sets the pool of local addresses across which queries that don't
+	 * specify a source are spread, or null (the default) to send them from
+	 * the wildcard address.  The address used is reported in "src".  This
+	 * takes effect for interact() loops started, and batches run, afterwards.
+	 */
+	public synchronized void setSourcePool(DNSQuerySourcePool sourcePool) {
+		this.sourcePool = sourcePool;
+		if (engine != null) {
+			engine.setSourcePool(sourcePool);
+		}
+	}
+
+	public DNSQuerySocketPool getSocketPool() {
+		return socketPool;
+	}
+
+	/**
+	 * Sets the pool of pre-bound sockets from which UDP queries with a random
+	 * source port take theirs, or null (the default) to open a socket for
+	 * each.  This takes effect for interact() loops started, and batches run,
+	 * afterwards.
+	 */
+	public synchronized void setSocketPool(DNSQuerySocketPool socketPool) {
+		this.socketPool = socketPool;
+		if (engine != null) {
+			engine.setSocketPool(socketPool);
+		}
+	}
+
+	/**
+	 * Sets whether each response includes "trace", the nanoseconds from the
+	 * first stage of the query to each of the others it reached (see
+	 * DNSQueryTrace).
+	 */
+	public void setTraceResponses(boolean traceResponses) {
+		this.traceResponses = traceResponses;
+	}
+
+	/**
+	 * Sets the interval, in milliseconds, at which interact() advertises its
+	 * capacity to each server, with a message of its own, or 0 (the default)
+	 * not to.
+	 */
+	public void setCapacityInterval(long capacityInterval) {
+		this.capacityInterval = capacityInterval;
+	}
+
+	/**
+	 * Adds a listener to be notified as every query run by this looking glass
+	 * finishes, e.g., a DNSQueryTraceBuffer or a DNSQueryTraceJFR.  It is
+	 * added to the managers of interact() loops started, and batches run,
+	 * afterwards, and to the engine.
+	 */
+	public synchronized void addQueryListener(DNSQueryListener listener) {
+		queryListeners.add(listener);
+		if (engine != null) {
+			engine.addQueryListener(listener);
+		}
+	}
+
+	public synchronized void removeQueryListener(DNSQueryListener listener) {
+		queryListeners.remove(listener);
+		if (engine != null) {
+			engine.removeQueryListener(listener);
+		}
+	}
+
+	private DNSQueryTransportManager createManager(Selector selector) {
+		DNSQueryTransportManager qtm = new DNSQueryTransportManager(selector, pacingSettings, admissionSettings);
+		qtm.setCache(cache);
+		qtm.setSourcePool(sourcePool);
+		qtm.setSocketPool(socketPool);
+		for (DNSQueryListener l : queryListeners) {
+			qtm.addQueryListener(l);
+		}
+		return qtm;
+	}
+
+	protected JSONObject getEncodedTrace(DNSQueryTrace trace) throws JSONException {
+		JSONObject ret = new JSONObject();
+		long first = trace.getFirstTime();
+		for (int i = 0; i < DNSQueryTrace.EVENTS; i++) {
+			if (trace.getTime(i) != 0) {
+				ret.put(DNSQueryTrace.getEventName(i), trace.getTime(i) - first);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the change in the host's UDP drop counters while the batch ran,
+	 * or null if there was none, or it wasn't counted
+	 */
+	protected JSONObject getEncodedDrops(DNSQueryDropCounters drops) throws JSONException {
+		JSONObject ret;
+
+		if (drops == null || !drops.hasDrops()) {
+			return null;
+		}
+		ret = new JSONObject();
+		ret.put("rcvbuf_errors", drops.getReceiveBufferErrors());
+		ret.put("sndbuf_errors", drops.getSendBufferErrors());
+		ret.put("in_errors", drops.getInErrors());
+		return ret;
+	}
+
+	/**
+	 * Encodes the capacity of a manager, as seen by `tenant`, if not null,
+	 * whose quota may leave it fewer free slots.
+	 */
+	protected JSONObject getEncodedCapacity(DNSQueryCapacity capacity, DNSQueryTenant tenant) throws JSONException {
+		JSONObject ret = new JSONObject();
+		int freeSlots = capacity.getFreeSlots();
+
+		if (tenant != null && tenant.getMaxInFlight() > 0) {
+			freeSlots = Math.min(freeSlots, Math.max(tenant.getMaxInFlight() - tenant.getInFlight(), 0));
+		}
+		ret.put("free_slots", freeSlots);
+		ret.put("in_flight", capacity.getInFlight());
+		ret.put("queued", capacity.getQueued());
+		ret.put("free_queue", capacity.getFreeQueue());
+		ret.put("throughput", capacity.getThroughput());
+		return ret;
+	}
+
+	protected String getCapacityAdvertisement(DNSQueryCapacity capacity, DNSQueryTenant tenant) {
+		JSONObject ret = new JSONObject();
+		try {
+			ret.put(kVersion, VERSION);
+			ret.put("capacity", getEncodedCapacity(capacity, tenant));
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Encodes the answer to a message cancelling the request with the "id"
+	 * `id`, which says whether a batch was cancelled.
+	 */
+	protected String getCancelResponse(String id, boolean cancelled) {
+		JSONObject ret = new JSONObject();
+		try {
+			ret.put(kVersion, VERSION);
+			ret.put(kCancel, id);
+			ret.put("cancelled", cancelled);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return ret.toString();
+	}
+
 	protected JSONObject getEncodedResponses(DNSQueryTransportHandler[] qths) throws JSONException {
 		JSONObject ret;
+		JSONObject drops;
 
 		JSONArray responses = new JSONArray();
 		for (int i = 0; i < qths.length; i++) {
@@ -81,17 +315,30 @@ public class DNSLookingGlass {
 				response.put("sport", (String)null);
 			}
 			response.put("time_elapsed", qths[i].timeElapsed());
+			if (qths[i] instanceof DNSQueryTransportHandlerTLS) {
+				response.put("handshake_time", ((DNSQueryTransportHandlerTLS)qths[i]).getHandshakeTime());
+			}
+			if (qths[i].getShared() != null) {
+				response.put("shared", qths[i].getShared());
+			}
+			if (traceResponses) {
+				response.put("trace", getEncodedTrace(qths[i].getTrace()));
+			}
 			responses.put(response);
 		}
 
 		ret = new JSONObject();
 		ret.put(kVersion, VERSION);
 		ret.put("responses", responses);
+		if (qths.length > 0 && qths[0].getBatch() != null &&
+				(drops = getEncodedDrops(qths[0].getBatch().getDrops())) != null) {
+			ret.put("local_drops", drops);
+		}
 		return ret;
 	}
 
 	public void executeQueries(DNSQueryTransportHandler[] qths) throws IOException {
-		DNSQueryTransportManager qtm = new DNSQueryTransportManager();
+		DNSQueryTransportManager qtm = createManager(null);
 		qtm.query(qths);
 		for (int i = 0; i < qths.length; i++) {
 			qths[i].finalize();
@@ -100,17 +347,177 @@ public class DNSLookingGlass {
 
 	/**
 	 * Runs a loop of reading from the server socket, running the query, and
-	 * sending back the response.
+	 * sending back the response.  The WebSocket and the sockets of all the
+	 * queries are serviced from a single Selector, so that a new request can be
+	 * read, and a finished response sent, while queries are outstanding.
+	 * Responses are sent in the order in which the requests were received.
+	 *
+	 * A request with an "id" may be cancelled by a message {"cancel": ID}, in
+	 * which case its queries that haven't finished are stopped, and its
+	 * response, sent in its turn, has them fail with "CANCELLED".  The cancel
+	 * message is answered in its own turn, like any other.
 	 *
 	 * @param ws - the WebSocket that is being interacted with
 	 */
-	public void interact(WebSocketClient ws) throws IOException {
+	public void interact(WebSocketSession ws) throws IOException {
+		interact(new WebSocketSession[] { ws }, new DNSQueryTenant[] { null });
+	}
+
+	/**
+	 * Serves several WebSockets at once, e.g., one for each of several DNSViz
+	 * servers, as interact() does one.  Their queries share one Selector and
+	 * one DNSQueryTransportManager, and with them the pacing and admission
+	 * limits.  The batches from each WebSocket are submitted on behalf of the
+	 * tenant at the same index in `tenants`, so that one server's large batch
+	 * doesn't hold up another's small one, and so that each server's queries
+	 * are subject to its tenant's quota and counted in its metrics.  Returns
+	 * once every WebSocket has closed.
+	 *
+	 * @param sessions - the WebSockets that are being interacted with
+	 * @param tenants - the tenant of each WebSocket, or null for the default;
+	 * or null, for the default tenant for all of them
+	 */
+	public void interact(WebSocketSession[] sessions, DNSQueryTenant[] tenants) throws IOException {
 		byte[] input;
-		while ((input = ws.read()).length > 0) {
-			ws.write(run(new String(input)).getBytes());
+		long timeout;
+		long wsTimeout;
+		long now;
+		long nextAdvertisement = 0;
+		boolean advertise;
+		int open;
+		WebSocketSession ws;
+		PendingResponse pending;
+		DNSQueryTransportHandlersDeserializer deserializer;
+		LinkedList<PendingResponse> responses;
+		ArrayList<LinkedList<PendingResponse>> sessionResponses = new ArrayList<>();
+
+		if (tenants == null) {
+			tenants = new DNSQueryTenant[sessions.length];
+		} else if (tenants.length != sessions.length) {
+			throw new IllegalArgumentException("tenants must have one entry for each session");
+		}
+
+		Selector selector = Selector.open();
+		DNSQueryTransportManager qtm = createManager(selector);
+		try {
+			for (int i = 0; i < sessions.length; i++) {
+				sessions[i].register(selector);
+				sessionResponses.add(new LinkedList<PendingResponse>());
+			}
+			while (true) {
+				// start a batch for each request received
+				for (int i = 0; i < sessions.length; i++) {
+					ws = sessions[i];
+					while (!ws.isClosed() && (input = ws.poll()) != null) {
+						deserializer = new DNSQueryTransportHandlersDeserializer(new String(input));
+						if (cancel(qtm, sessionResponses.get(i), deserializer)) {
+							continue;
+						}
+						pending = new PendingResponse();
+						sessionResponses.get(i).add(pending);
+						pending.submit(qtm, deserializer, tenants[i]);
+					}
+				}
+
+				timeout = qtm.service();
+
+				// advertise the capacity left, if it's time
+				advertise = false;
+				if (capacityInterval > 0) {
+					now = System.currentTimeMillis();
+					if (now >= nextAdvertisement) {
+						advertise = true;
+						nextAdvertisement = now + capacityInterval;
+					}
+					if (timeout == 0 || nextAdvertisement - now < timeout) {
+						timeout = Math.max(nextAdvertisement - now, 1);
+					}
+				}
+
+				open = 0;
+				for (int i = 0; i < sessions.length; i++) {
+					ws = sessions[i];
+					if (ws.isClosed()) {
+						continue;
+					}
+					wsTimeout = ws.service();
+					if (ws.isClosed()) {
+						continue;
+					}
+					if (timeout == 0 || (wsTimeout > 0 && wsTimeout < timeout)) {
+						timeout = wsTimeout;
+					}
+
+					// send the responses that are ready, in order
+					responses = sessionResponses.get(i);
+					while ((pending = responses.peek()) != null && pending.response != null) {
+						responses.poll();
+						ws.write(pending.response.getBytes());
+					}
+					if (advertise && !ws.isClosed()) {
+						ws.announce(getCapacityAdvertisement(qtm.getCapacity(), tenants[i]).getBytes());
+					}
+					if (!ws.isClosed()) {
+						open++;
+					}
+				}
+				if (open == 0) {
+					break;
+				}
+
+				selector.select(timeout);
+
+				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+				while (keyIterator.hasNext()) {
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+					if (qtm.handle(key)) {
+						continue;
+					}
+					for (int i = 0; i < sessions.length; i++) {
+						if (!sessions[i].isClosed() && sessions[i].owns(key)) {
+							sessions[i].handle(key);
+							break;
+						}
+					}
+				}
+			}
+		} finally {
+			qtm.close();
+			selector.close();
 		}
 	}
 
+	/**
+	 * If `deserializer` holds a cancel message, cancels the batch of each
+	 * request among `responses`, those not yet answered, with the "id" it
+	 * names, and queues the answer to the cancel message after them.
+	 *
+	 * @return false if it isn't a cancel message, or can't be decoded
+	 */
+	private boolean cancel(DNSQueryTransportManager qtm, LinkedList<PendingResponse> responses, DNSQueryTransportHandlersDeserializer deserializer) {
+		PendingResponse answer = new PendingResponse();
+		boolean cancelled = false;
+		String id;
+
+		try {
+			if ((id = deserializer.getCancelledId()) == null) {
+				return false;
+			}
+		} catch (JSONException ex) {
+			// answered as a malformed request
+			return false;
+		}
+		for (PendingResponse p : responses) {
+			if (id.equals(p.id) && p.batch != null && qtm.cancel(p.batch)) {
+				cancelled = true;
+			}
+		}
+		answer.response = getCancelResponse(id, cancelled);
+		responses.add(answer);
+		return true;
+	}
+
 	public String run(String json) {
 		try {
 			DNSQueryTransportHandlersDeserializer deserializer = new DNSQueryTransportHandlersDeserializer(json);
@@ -118,15 +525,93 @@ public class DNSLookingGlass {
 			executeQueries(qths);
 			return getEncodedResponses(qths).toString();
 		} catch (Exception ex) {
-			JSONObject ret = new JSONObject();
-			try {
-				ret.put(kVersion, VERSION);
-				ret.put("error", getErrorTrace(ex));
-			} catch (JSONException e) {
-				e.printStackTrace();
+			return getErrorResponse(ex);
+		}
+	}
+
+	/**
+	 * Runs the queries described by `json` without blocking, on an engine
+	 * shared by every caller of this DNSLookingGlass.  This may be called from
+	 * any thread.
+	 *
+	 * @return a future for the JSON response, which is an error response if
+	 * the request couldn't be decoded or its batch failed
+	 */
+	public CompletableFuture<String> runAsync(String json) {
+		DNSQueryTransportHandler[] qths;
+		try {
+			DNSQueryTransportHandlersDeserializer deserializer = new DNSQueryTransportHandlersDeserializer(json);
+			qths = deserializer.getDecodedHandlers();
+			return getEngine().submit(qths).handle(new BiFunction<DNSQueryTransportHandler[], Throwable, String>() {
+				public String apply(DNSQueryTransportHandler[] qths, Throwable err) {
+					if (err == null) {
+						try {
+							return getEncodedResponses(qths).toString();
+						} catch (JSONException ex) {
+							return getErrorResponse(ex);
+						}
+					}
+					if (err instanceof CompletionException && err.getCause() != null) {
+						err = err.getCause();
+					}
+					return getErrorResponse(err instanceof Exception ? (Exception)err : new Exception(err));
+				}
+			});
+		} catch (Exception ex) {
+			return CompletableFuture.completedFuture(getErrorResponse(ex));
+		}
+	}
+
+	/**
+	 * @return the engine used by runAsync(), which is started the first time it
+	 * is needed
+	 */
+	public synchronized DNSQueryEngine getEngine() throws IOException {
+		if (engine == null) {
+			engine = new DNSQueryEngine(pacingSettings, admissionSettings);
+			engine.setCache(cache);
+			engine.setSourcePool(sourcePool);
+			engine.setSocketPool(socketPool);
+			for (DNSQueryListener l : queryListeners) {
+				engine.addQueryListener(l);
 			}
-			return ret.toString();
 		}
+		return engine;
+	}
+
+	/**
+	 * Stops the engine used by runAsync(), if it was started.
+	 */
+	public synchronized void close() {
+		if (engine != null) {
+			engine.close();
+			engine = null;
+		}
+	}
+
+	/**
+	 * Encodes `err` as an error response.  A batch rejected for want of room
+	 * in the queue is answered with "capacity", and with "retry_after", the
+	 * milliseconds after which it might be accepted, unless it never would.
+	 */
+	protected String getErrorResponse(Exception err) {
+		JSONObject ret = new JSONObject();
+		DNSQueryRejectedException rejected;
+		try {
+			ret.put(kVersion, VERSION);
+			ret.put("error", getErrorTrace(err));
+			if (err instanceof DNSQueryRejectedException &&
+					(rejected = (DNSQueryRejectedException)err).getCapacity() != null) {
+				ret.put("capacity", getEncodedCapacity(rejected.getCapacity(), null));
+				if (rejected.getRetryAfter() >= 0) {
+					ret.put("busy", true);
+					ret.put("retry_after", rejected.getRetryAfter());
+				}
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return ret.toString();
 	}
 
 	protected String getErrorTrace(Exception err) {
@@ -136,9 +621,126 @@ public class DNSLookingGlass {
 		return sw.toString();
 	}
 
-	public static void main(String [] args) throws IOException {
-		WebSocketClient ws = new WebSocketClient(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+	/**
+	 * The response to a request handled by interact(), which is set once the
+	 * batch of queries it describes has finished.
+	 */
+	private class PendingResponse implements DNSQueryBatchListener {
+		String response = null;
+		String id = null;
+		DNSQueryBatch batch = null;
+
+		void submit(DNSQueryTransportManager qtm, DNSQueryTransportHandlersDeserializer deserializer, DNSQueryTenant tenant) {
+			try {
+				id = deserializer.getId();
+				batch = qtm.submit(deserializer.getDecodedHandlers(), this, null, tenant);
+			} catch (Exception ex) {
+				response = getErrorResponse(ex);
+			}
+		}
+
+		public void batchCompleted(DNSQueryBatch batch) {
+			DNSQueryTransportHandler[] qths = batch.getHandlers();
+			JSONObject encoded;
+			if (batch.getError() != null) {
+				response = getErrorResponse(batch.getError());
+				return;
+			}
+			try {
+				for (int i = 0; i < qths.length; i++) {
+					qths[i].finalize();
+				}
+				encoded = getEncodedResponses(qths);
+				if (batch.isCancelled()) {
+					encoded.put("cancelled", true);
+				}
+				response = encoded.toString();
+			} catch (Exception ex) {
+				response = getErrorResponse(ex);
+			}
+		}
+	}
+
+	/**
+	 * Takes one or more groups of arguments, each of which is HOST PORT PATH
+	 * ORIGIN, optionally followed by "wss", and serves a WebSocket for each.
+	 * With a leading "--record FILE", the requests and responses of all of
+	 * them are recorded to FILE, for SessionReplayer.  Each leading "--source
+	 * ADDR" adds ADDR to a pool of local addresses across which queries that
+	 * don't specify a source are spread.  With a leading "--socket-pool SIZE",
+	 * UDP queries take sockets from a pool of SIZE kept bound, in advance, to
+	 * each source address.  "--receive-buffer SIZE" and "--send-buffer SIZE"
+	 * set the SO_RCVBUF and SO_SNDBUF of queries' sockets, the former "auto" to
+	 * size it by the admission limits.  With "--capacity-interval MS", each
+	 * server is sent the looking glass's capacity every MS milliseconds.
+	 */
+	public static void main(String [] args) throws IOException, NoSuchAlgorithmException {
+		ArrayList<WebSocketSession> sessions = new ArrayList<>();
+		ArrayList<DNSQueryTenant> tenants = new ArrayList<>();
+		SessionRecording recording = null;
+		DNSQuerySourcePool sourcePool = null;
+		DNSQuerySocketPool socketPool = null;
+		int receiveBufferSize = DNSQueryAdmissionSettings.SYSTEM_BUFFER_SIZE;
+		int sendBufferSize = DNSQueryAdmissionSettings.SYSTEM_BUFFER_SIZE;
+		long capacityInterval = 0;
+		ReconnectingWebSocketClient ws;
+		int i = 0;
+
+		while (i + 2 <= args.length && args[i].startsWith("--")) {
+			if (args[i].equals("--record")) {
+				recording = new SessionRecording(new File(args[i + 1]));
+			} else if (args[i].equals("--source")) {
+				if (sourcePool == null) {
+					sourcePool = new DNSQuerySourcePool();
+				}
+				sourcePool.add(InetAddress.getByName(args[i + 1]));
+			} else if (args[i].equals("--socket-pool")) {
+				socketPool = new DNSQuerySocketPool(Integer.parseInt(args[i + 1]), DNSQuerySocketPool.DEFAULT_MAX_IDLE);
+			} else if (args[i].equals("--receive-buffer")) {
+				receiveBufferSize = args[i + 1].equals("auto") ? DNSQueryAdmissionSettings.AUTO_BUFFER_SIZE : Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--send-buffer")) {
+				sendBufferSize = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--capacity-interval")) {
+				capacityInterval = Long.parseLong(args[i + 1]);
+			} else {
+				break;
+			}
+			i += 2;
+		}
+		while (i + 4 <= args.length) {
+			ws = new ReconnectingWebSocketClient(args[i], Integer.parseInt(args[i + 1]), args[i + 2], args[i + 3]);
+			tenants.add(new DNSQueryTenant(args[i] + ":" + args[i + 1] + args[i + 2]));
+			i += 4;
+			if (i < args.length && args[i].equals("wss")) {
+				ws.setSSLContext(SSLContext.getDefault());
+				i++;
+			}
+			if (recording != null) {
+				sessions.add(new RecordingWebSocketSession(ws, recording, sessions.size()));
+			} else {
+				sessions.add(ws);
+			}
+		}
 		DNSLookingGlass lg = new DNSLookingGlass();
-		lg.interact(ws);
+		lg.setSourcePool(sourcePool);
+		if (socketPool != null && sourcePool != null) {
+			for (InetAddress addr : sourcePool.getAddresses()) {
+				socketPool.addAddress(addr);
+			}
+		}
+		lg.setSocketPool(socketPool);
+		lg.getAdmissionSettings().setReceiveBufferSize(receiveBufferSize);
+		lg.getAdmissionSettings().setSendBufferSize(sendBufferSize);
+		lg.setCapacityInterval(capacityInterval);
+		try {
+			lg.interact(sessions.toArray(new WebSocketSession[sessions.size()]), tenants.toArray(new DNSQueryTenant[tenants.size()]));
+		} finally {
+			if (recording != null) {
+				recording.close();
+			}
+			if (socketPool != null) {
+				socketPool.close();
+			}
+		}
 	}
 }
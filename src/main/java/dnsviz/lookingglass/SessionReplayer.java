@@ -0,0 +1,563 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.lookingglass;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import dnsviz.transport.DNSQueryPacingLimits;
+import dnsviz.transport.DNSQueryTenant;
+import dnsviz.util.Base64Decoder;
+import dnsviz.websocket.SessionRecording;
+import dnsviz.websocket.WebSocketSession;
+
+import static dnsviz.lookingglass.Constants.*;
+
+/**
+ * Replays a SessionRecording through a DNSLookingGlass, for benchmarking
+ * without a live DNSViz server.
+ *
+ * Every query is redirected to a responder on the loopback address, which
+ * answers it with the response recorded for it, after the time the query
+ * took when it was recorded; a query that got no response isn't answered.
+ * Queries are matched to their recorded answers by their messages, apart from
+ * the ID, in the order in which they were recorded.  DNS-over-TLS queries are
+ * replayed over plain TCP, and the sources of queries are ignored.  As the
+ * responder is the only destination, queries aren't paced.
+ *
+ * Requests are submitted at the times at which they were recorded, or, in
+ * fast mode, all at once.  The report compares the throughput and the
+ * latency of the batches with those recorded, and with those of an earlier
+ * replay, if its summary was saved, so that two builds can be compared on the
+ * same recording.
+ *
+ * Usage: SessionReplayer RECORDING [--fast] [--save SUMMARY] [--compare SUMMARY]
+ */
+public class SessionReplayer {
+	private final List<SessionRecording.Record> records;
+	private final boolean fast;
+	private final Responder responder;
+
+	public SessionReplayer(List<SessionRecording.Record> records, boolean fast) throws IOException {
+		this.records = records;
+		this.fast = fast;
+		this.responder = new Responder();
+	}
+
+	/**
+	 * Runs the replay, and summarizes the recording and the replay.
+	 */
+	public JSONObject run() throws IOException, JSONException {
+		HashMap<Integer, ReplaySession> byIndex = new HashMap<>();
+		ArrayList<ReplaySession> sessions = new ArrayList<>();
+		ReplaySession session;
+		JSONObject ret;
+
+		for (SessionRecording.Record r : records) {
+			if ((session = byIndex.get(r.session)) == null) {
+				session = new ReplaySession();
+				byIndex.put(r.session, session);
+				sessions.add(session);
+			}
+			session.add(r);
+		}
+		for (ReplaySession s : sessions) {
+			s.prepare();
+		}
+
+		DNSLookingGlass lg = new DNSLookingGlass();
+		lg.getPacingSettings().setDefaultLimits(DNSQueryPacingLimits.UNLIMITED);
+		DNSQueryTenant[] tenants = new DNSQueryTenant[sessions.size()];
+		for (int i = 0; i < tenants.length; i++) {
+			tenants[i] = new DNSQueryTenant("session " + i);
+		}
+		responder.start();
+		long start = System.nanoTime();
+		for (ReplaySession s : sessions) {
+			s.start = start;
+		}
+		try {
+			lg.interact(sessions.toArray(new WebSocketSession[sessions.size()]), tenants);
+		} finally {
+			responder.close();
+		}
+		long end = System.nanoTime();
+
+		ret = new JSONObject();
+		ret.put("recorded", summarize(sessions, true, 0));
+		ret.put("replayed", summarize(sessions, false, end - start));
+		return ret;
+	}
+
+	private JSONObject summarize(List<ReplaySession> sessions, boolean recorded, long elapsed) throws JSONException {
+		ArrayList<Long> latencies = new ArrayList<>();
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		int queries = 0;
+		int errors = 0;
+		JSONObject ret = new JSONObject();
+
+		for (ReplaySession s : sessions) {
+			for (Batch b : s.batches) {
+				long sent = recorded ? b.recordedRequest : b.sent;
+				long received = recorded ? b.recordedResponse : b.received;
+				if (received < 0) {
+					continue;
+				}
+				latencies.add(received - sent);
+				first = Math.min(first, sent);
+				last = Math.max(last, received);
+				queries += b.queries;
+				errors += recorded ? b.recordedErrors : b.errors;
+			}
+		}
+		if (recorded) {
+			elapsed = latencies.isEmpty() ? 0 : last - first;
+		}
+		Collections.sort(latencies);
+
+		ret.put("batches", latencies.size());
+		ret.put("queries", queries);
+		ret.put("errors", errors);
+		ret.put("elapsed_ms", elapsed / 1000000.0);
+		ret.put("queries_per_second", elapsed > 0 ? queries * 1e9 / elapsed : 0);
+		ret.put("latency_p50_ms", percentile(latencies, 50));
+		ret.put("latency_p90_ms", percentile(latencies, 90));
+		ret.put("latency_p99_ms", percentile(latencies, 99));
+		ret.put("latency_max_ms", percentile(latencies, 100));
+		return ret;
+	}
+
+	private static double percentile(List<Long> sorted, int p) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		int i = (int)Math.ceil(p / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(i, 0)) / 1000000.0;
+	}
+
+	/* the masked message of a query, by which it is matched to its answer */
+	private static String getKey(byte[] msg, int start) {
+		byte[] key = Arrays.copyOfRange(msg, start, msg.length);
+		for (int i = 0; i < 2 && i < key.length; i++) {
+			key[i] = 0;
+		}
+		return new String(key, StandardCharsets.ISO_8859_1);
+	}
+
+	private static class Batch {
+		final long recordedRequest;
+		byte[] request;
+		long recordedResponse = -1;
+		int queries = 0;
+		int recordedErrors = 0;
+
+		long sent = -1;
+		long received = -1;
+		int errors = 0;
+
+		Batch(long recordedRequest, byte[] request) {
+			this.recordedRequest = recordedRequest;
+			this.request = request;
+		}
+	}
+
+	/**
+	 * Plays back the requests of one recorded session, and collects the
+	 * responses to them.
+	 */
+	private class ReplaySession implements WebSocketSession {
+		final ArrayList<Batch> batches = new ArrayList<>();
+		final LinkedList<Batch> unanswered = new LinkedList<>();
+		long start;
+		int next = 0;
+		int written = 0;
+
+		void add(SessionRecording.Record r) {
+			Batch b;
+			if (r.type == SessionRecording.REQUEST) {
+				b = new Batch(r.time, r.data);
+				batches.add(b);
+				unanswered.add(b);
+			} else if (r.type == SessionRecording.RESPONSE && (b = unanswered.poll()) != null) {
+				b.recordedResponse = r.time;
+				try {
+					prepare(b, new JSONObject(new String(r.data)));
+				} catch (JSONException e) {
+					/* an error response, with no queries to replay */
+				}
+			}
+		}
+
+		/**
+		 * Registers the recorded answers to the queries of `b` with the
+		 * responder, and redirects the queries to it.
+		 */
+		void prepare(Batch b, JSONObject response) throws JSONException {
+			Base64Decoder decoder = new Base64Decoder();
+			JSONObject request = new JSONObject(new String(b.request));
+			JSONArray reqs = request.getJSONArray("requests");
+			JSONArray responses = response.getJSONArray("responses");
+			JSONObject req;
+			JSONObject res;
+			boolean tcp;
+
+			for (int i = 0; i < reqs.length() && i < responses.length(); i++) {
+				req = reqs.getJSONObject(i);
+				res = responses.getJSONObject(i);
+				tcp = req.getBoolean("tcp") || (req.has("tls") && req.getBoolean("tls"));
+
+				if (res.has("err") && !res.isNull("err")) {
+					b.recordedErrors++;
+				}
+				responder.expect(getKey(decoder.decode(req.getString("req").getBytes()), 0),
+						res.isNull("res") || res.has("err") && !res.isNull("err") ? null : decoder.decode(res.getString("res").getBytes()),
+						res.getLong("time_elapsed"));
+
+				req.put("dst", responder.getAddress().getHostAddress());
+				req.put("dport", responder.getPort());
+				req.put("tcp", tcp);
+				req.remove("tls");
+				req.remove(kSource);
+				req.remove("sport");
+			}
+			b.queries = reqs.length();
+			b.request = request.toString().getBytes();
+		}
+
+		void prepare() {
+			/* batches without a recorded response aren't replayed */
+			Iterator<Batch> it = batches.iterator();
+			while (it.hasNext()) {
+				if (it.next().recordedResponse < 0) {
+					it.remove();
+				}
+			}
+		}
+
+		private long getDue(Batch b) {
+			return fast ? start : start + b.recordedRequest - batches.get(0).recordedRequest;
+		}
+
+		public void register(Selector selector) {
+		}
+
+		public boolean owns(SelectionKey key) {
+			return false;
+		}
+
+		public void handle(SelectionKey key) {
+		}
+
+		public long service() {
+			if (next >= batches.size()) {
+				return 0;
+			}
+			return Math.max((getDue(batches.get(next)) - System.nanoTime()) / 1000000, 1);
+		}
+
+		public byte[] poll() {
+			Batch b;
+			if (next >= batches.size() || getDue(b = batches.get(next)) > System.nanoTime()) {
+				return null;
+			}
+			next++;
+			b.sent = System.nanoTime();
+			return b.request;
+		}
+
+		public void write(byte[] data) {
+			Batch b = batches.get(written++);
+			JSONArray responses;
+			b.received = System.nanoTime();
+			try {
+				responses = new JSONObject(new String(data)).getJSONArray("responses");
+				for (int i = 0; i < responses.length(); i++) {
+					if (responses.getJSONObject(i).has("err")) {
+						b.errors++;
+					}
+				}
+			} catch (JSONException e) {
+				b.errors += b.queries;
+			}
+		}
+
+		public void announce(byte[] data) {
+			/* advertisements aren't part of the replay */
+		}
+
+		public boolean isClosed() {
+			return written >= batches.size();
+		}
+	}
+
+	/**
+	 * Answers queries over UDP and TCP on the loopback address with their
+	 * recorded answers, after their recorded delays.
+	 */
+	private static class Responder {
+		private final HashMap<String, LinkedList<Answer>> answers = new HashMap<>();
+		private final DatagramSocket udp;
+		private final ServerSocket tcp;
+		private final ScheduledExecutorService scheduler;
+		private final ExecutorService workers;
+
+		Responder() throws IOException {
+			InetAddress addr = InetAddress.getByName("127.0.0.1");
+			ThreadFactory daemons = new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SessionReplayer");
+					t.setDaemon(true);
+					return t;
+				}
+			};
+			tcp = new ServerSocket(0, 1024, addr);
+			udp = new DatagramSocket(tcp.getLocalPort(), addr);
+			scheduler = Executors.newSingleThreadScheduledExecutor(daemons);
+			workers = Executors.newCachedThreadPool(daemons);
+		}
+
+		InetAddress getAddress() {
+			return tcp.getInetAddress();
+		}
+
+		int getPort() {
+			return tcp.getLocalPort();
+		}
+
+		/**
+		 * Registers `res` (or no response, if null) as the next answer to the
+		 * query with key `key`, to be sent after `delay` milliseconds.
+		 */
+		synchronized void expect(String key, byte[] res, long delay) {
+			LinkedList<Answer> list = answers.get(key);
+			if (list == null) {
+				list = new LinkedList<>();
+				answers.put(key, list);
+			}
+			list.add(new Answer(res, delay));
+		}
+
+		/**
+		 * @return the answer to `msg` with its ID set to that of `msg`, with the
+		 * delay before it may be sent, or null if it isn't to be answered
+		 */
+		synchronized Answer answer(byte[] msg) {
+			LinkedList<Answer> list = answers.get(getKey(msg, 0));
+			Answer a = list != null ? list.poll() : null;
+			if (a == null || a.res == null || a.res.length < 2 || msg.length < 2) {
+				return null;
+			}
+			byte[] res = a.res.clone();
+			res[0] = msg[0];
+			res[1] = msg[1];
+			return new Answer(res, a.delay);
+		}
+
+		void start() {
+			workers.execute(new Runnable() {
+				public void run() {
+					serveUDP();
+				}
+			});
+			workers.execute(new Runnable() {
+				public void run() {
+					serveTCP();
+				}
+			});
+		}
+
+		private void serveUDP() {
+			byte[] buf = new byte[65536];
+			DatagramPacket packet;
+			Answer a;
+			while (!udp.isClosed()) {
+				try {
+					packet = new DatagramPacket(buf, buf.length);
+					udp.receive(packet);
+					if ((a = answer(Arrays.copyOf(buf, packet.getLength()))) != null) {
+						final DatagramPacket reply = new DatagramPacket(a.res, a.res.length, packet.getSocketAddress());
+						scheduler.schedule(new Runnable() {
+							public void run() {
+								try {
+									udp.send(reply);
+								} catch (IOException e) {
+									/* the replay is over */
+								}
+							}
+						}, a.delay, TimeUnit.MILLISECONDS);
+					}
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		private void serveTCP() {
+			while (!tcp.isClosed()) {
+				try {
+					final Socket s = tcp.accept();
+					workers.execute(new Runnable() {
+						public void run() {
+							serveTCP(s);
+						}
+					});
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		private void serveTCP(final Socket s) {
+			byte[] msg;
+			Answer a;
+			try {
+				DataInputStream in = new DataInputStream(s.getInputStream());
+				final DataOutputStream out = new DataOutputStream(s.getOutputStream());
+				while (true) {
+					msg = new byte[in.readUnsignedShort()];
+					in.readFully(msg);
+					if ((a = answer(msg)) == null) {
+						continue;
+					}
+					final byte[] res = a.res;
+					scheduler.schedule(new Runnable() {
+						public void run() {
+							try {
+								synchronized (out) {
+									out.writeShort(res.length);
+									out.write(res);
+									out.flush();
+								}
+							} catch (IOException e) {
+								/* the client has gone away */
+							}
+						}
+					}, a.delay, TimeUnit.MILLISECONDS);
+				}
+			} catch (IOException e) {
+				/* the client has closed the connection */
+			}
+		}
+
+		void close() {
+			udp.close();
+			try {
+				tcp.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			scheduler.shutdownNow();
+			workers.shutdownNow();
+		}
+
+		private static class Answer {
+			final byte[] res;
+			final long delay;
+
+			Answer(byte[] res, long delay) {
+				this.res = res;
+				this.delay = delay;
+			}
+		}
+	}
+
+	private static void printComparison(JSONObject summary, JSONObject baseline, String name) throws JSONException {
+		String[] keys = { "elapsed_ms", "queries_per_second", "latency_p50_ms", "latency_p90_ms", "latency_p99_ms", "latency_max_ms", "errors" };
+		double a;
+		double b;
+		System.out.println(String.format("%-22s %12s %12s %9s", "replay vs " + name, "baseline", "replay", "change"));
+		for (String k : keys) {
+			a = summary.getDouble(k);
+			b = baseline.getDouble(k);
+			System.out.println(String.format("  %-20s %12.2f %12.2f %+8.1f%%", k, b, a, b != 0 ? (a - b) * 100 / b : 0));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File recording = null;
+		File save = null;
+		File compare = null;
+		boolean fast = false;
+		JSONObject summary;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--fast")) {
+				fast = true;
+			} else if (args[i].equals("--save") && i + 1 < args.length) {
+				save = new File(args[++i]);
+			} else if (args[i].equals("--compare") && i + 1 < args.length) {
+				compare = new File(args[++i]);
+			} else {
+				recording = new File(args[i]);
+			}
+		}
+		if (recording == null) {
+			System.err.println("Usage: SessionReplayer RECORDING [--fast] [--save SUMMARY] [--compare SUMMARY]");
+			System.exit(2);
+		}
+
+		summary = new SessionReplayer(SessionRecording.read(recording), fast).run();
+		System.out.println(summary.toString(2));
+		printComparison(summary.getJSONObject("replayed"), summary.getJSONObject("recorded"), "recording");
+		if (compare != null) {
+			printComparison(summary.getJSONObject("replayed"),
+					new JSONObject(new String(Files.readAllBytes(compare.toPath()), StandardCharsets.UTF_8)).getJSONObject("replayed"),
+					compare.getName());
+		}
+		if (save != null) {
+			try (Writer w = new OutputStreamWriter(new FileOutputStream(save), StandardCharsets.UTF_8)) {
+				w.write(summary.toString(2));
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.lookingglass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dnsviz.util.Base64Encoder;
+
+/**
+ * Measures how long the looking glass takes to start, by launching it against
+ * a local stand-in for the DNSViz server, which sends it one request for a
+ * query to a local responder, as soon as it connects, and then closes the
+ * connection.  For each variant (a command that launches the looking glass,
+ * to which the server arguments are appended), the time from starting the
+ * process to the WebSocket handshake, and to the response, is reported.
+ *
+ * Usage: StartupBenchmark [--runs N] NAME=COMMAND...
+ *
+ * e.g., StartupBenchmark --runs 5 "jar=java -jar lg.jar" "cds=java
+ * -XX:SharedArchiveFile=lg.jsa -jar lg.jar" "native=./lookingglass"
+ */
+public class StartupBenchmark {
+	private final static String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private final static long PROCESS_TIMEOUT = 30000;
+
+	private final DatagramSocket responder;
+
+	public StartupBenchmark() throws IOException {
+		responder = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				respond();
+			}
+		}, "StartupBenchmark");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/* answers every query with itself, marked as a response */
+	private void respond() {
+		byte[] buf = new byte[65536];
+		DatagramPacket packet;
+		while (!responder.isClosed()) {
+			try {
+				packet = new DatagramPacket(buf, buf.length);
+				responder.receive(packet);
+				if (packet.getLength() > 2) {
+					buf[2] |= (byte)0x80;
+				}
+				responder.send(new DatagramPacket(buf, packet.getLength(), packet.getSocketAddress()));
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private String getRequest() {
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		byte[] header = { 0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0 };
+		msg.write(header, 0, header.length);
+		for (String label : "example.com".split("\\.")) {
+			msg.write(label.length());
+			msg.write(label.getBytes(), 0, label.length());
+		}
+		msg.write(0);
+		msg.write(0);
+		msg.write(1);
+		msg.write(0);
+		msg.write(1);
+		return "{\"version\": " + Constants.VERSION + ", \"requests\": [{\"req\": \"" +
+			new String(new Base64Encoder().encode(msg.toByteArray())) + "\", \"dst\": \"127.0.0.1\", \"dport\": " +
+			responder.getLocalPort() + ", \"timeout\": 3000, \"tcp\": false}]}";
+	}
+
+	/**
+	 * Launches `command` once, and serves it one request.
+	 *
+	 * @return the milliseconds from launching to the WebSocket handshake, and
+	 * to the response
+	 */
+	public double[] run(List<String> command) throws IOException, InterruptedException, NoSuchAlgorithmException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		ArrayList<String> args = new ArrayList<>(command);
+		double[] ret = new double[2];
+		Process process;
+		long start;
+
+		args.addAll(Arrays.asList("127.0.0.1", String.valueOf(server.getLocalPort()), "/lg/", "http://localhost/"));
+		server.setSoTimeout((int)PROCESS_TIMEOUT);
+		start = System.nanoTime();
+		process = new ProcessBuilder(args).redirectErrorStream(true).redirectOutput(new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null")).start();
+		try (Socket s = server.accept()) {
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+
+			handshake(in, out);
+			ret[0] = (System.nanoTime() - start) / 1e6;
+			writeFrame(out, 0x1, getRequest().getBytes(StandardCharsets.UTF_8));
+			while (readFrame(in) != 0x1) {
+				/* skip pings and the like */
+			}
+			ret[1] = (System.nanoTime() - start) / 1e6;
+			writeFrame(out, 0x8, new byte[0]);
+			if (!process.waitFor(PROCESS_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				process.destroy();
+			}
+		} finally {
+			server.close();
+			process.destroy();
+		}
+		return ret;
+	}
+
+	static void handshake(InputStream in, OutputStream out) throws IOException, NoSuchAlgorithmException {
+		StringBuilder request = new StringBuilder();
+		String key = null;
+		int c;
+
+		while (request.indexOf("\r\n\r\n") < 0 && (c = in.read()) >= 0) {
+			request.append((char)c);
+		}
+		for (String line : request.toString().split("\r\n")) {
+			if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+				key = line.substring(line.indexOf(':') + 1).trim();
+			}
+		}
+		if (key == null) {
+			throw new IOException("No Sec-WebSocket-Key in handshake");
+		}
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+		out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+			"Sec-WebSocket-Accept: " + new String(new Base64Encoder().encode(digest)) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+		out.write(0x80 | opcode);
+		if (payload.length < 126) {
+			out.write(payload.length);
+		} else if (payload.length < 65536) {
+			out.write(126);
+			out.write(payload.length >> 8);
+			out.write(payload.length);
+		} else {
+			out.write(127);
+			for (int i = 7; i >= 0; i--) {
+				out.write((int)((long)payload.length >> (i * 8)));
+			}
+		}
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * Reads a (masked) frame from the client.
+	 *
+	 * @return its opcode
+	 */
+	private static int readFrame(InputStream in) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+		int b0 = din.readUnsignedByte();
+		int b1 = din.readUnsignedByte();
+		long len = b1 & 0x7f;
+		byte[] mask = new byte[4];
+
+		if (len == 126) {
+			len = din.readUnsignedShort();
+		} else if (len == 127) {
+			len = din.readLong();
+		}
+		if ((b1 & 0x80) != 0) {
+			din.readFully(mask);
+		}
+		din.skipBytes((int)len);
+		return b0 & 0x0f;
+	}
+
+	private static String format(List<Double> times) {
+		Collections.sort(times);
+		return String.format("min %8.1f  median %8.1f  max %8.1f", times.get(0), times.get(times.size() / 2), times.get(times.size() - 1));
+	}
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<String> variants = new ArrayList<>();
+		ArrayList<Double> connect;
+		ArrayList<Double> response;
+		StartupBenchmark benchmark = new StartupBenchmark();
+		int runs = 5;
+		double[] t;
+		String name;
+		List<String> command;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--runs") && i + 1 < args.length) {
+				runs = Integer.parseInt(args[++i]);
+			} else if (args[i].indexOf('=') > 0) {
+				variants.add(args[i]);
+			}
+		}
+		if (variants.isEmpty()) {
+			System.err.println("Usage: StartupBenchmark [--runs N] NAME=COMMAND...");
+			System.exit(2);
+		}
+
+		for (String v : variants) {
+			name = v.substring(0, v.indexOf('='));
+			command = Arrays.asList(v.substring(v.indexOf('=') + 1).trim().split("\\s+"));
+			connect = new ArrayList<>();
+			response = new ArrayList<>();
+			for (int i = 0; i < runs; i++) {
+				t = benchmark.run(command);
+				connect.add(t[0]);
+				response.add(t[1]);
+			}
+			System.out.println(name + " (" + runs + " runs, ms from launch)");
+			System.out.println("  connected:      " + format(connect));
+			System.out.println("  first response: " + format(response));
+		}
+	}
+}
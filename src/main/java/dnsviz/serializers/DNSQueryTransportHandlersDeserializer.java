@@ -10,6 +10,7 @@ import org.json.JSONException;
 
 import dnsviz.transport.DNSQueryTransportHandler;
 import dnsviz.transport.DNSQueryTransportHandlerTCP;
+import dnsviz.transport.DNSQueryTransportHandlerTLS;
 import dnsviz.transport.DNSQueryTransportHandlerUDP;
 import dnsviz.lookingglass.Version;
 import dnsviz.util.Base64Decoder;
@@ -20,6 +21,7 @@ import static dnsviz.lookingglass.Constants.*;
 public class DNSQueryTransportHandlersDeserializer {
 
   private String jsonString;
+  private JSONObject obj = null;
 
   public DNSQueryTransportHandlersDeserializer(String jsonString) {
     this.jsonString = jsonString;
@@ -32,7 +34,33 @@ public class DNSQueryTransportHandlersDeserializer {
     }
   }
 
-  private DNSQueryTransportHandler getDNSQueryTransportHandler(String req, String dst, int dport, String src, int sport, long timeout, boolean tcp) throws UnknownHostException {
+  private JSONObject getObject() throws JSONException {
+    if (obj == null) {
+      obj = new JSONObject(this.jsonString);
+      this.checkVersion(obj);
+    }
+    return obj;
+  }
+
+  /**
+   * @return the "id" of the request, by which it may be cancelled, or null if
+   * it has none
+   */
+  public String getId() throws JSONException {
+    JSONObject obj = getObject();
+    return obj.has(kId) ? obj.get(kId).toString() : null;
+  }
+
+  /**
+   * @return the "id" of the request to be cancelled, if this is a cancel
+   * message rather than a request, or null
+   */
+  public String getCancelledId() throws JSONException {
+    JSONObject obj = getObject();
+    return obj.has(kCancel) ? obj.get(kCancel).toString() : null;
+  }
+
+  private DNSQueryTransportHandler getDNSQueryTransportHandler(String req, String dst, int dport, String src, int sport, long timeout, boolean tcp, boolean tls) throws UnknownHostException {
     Base64Decoder d = new Base64Decoder();
     byte[] byteReq = d.decode(req.getBytes());
     InetAddress srcAddr = null;
@@ -43,7 +71,9 @@ public class DNSQueryTransportHandlersDeserializer {
     if (src != null) {
       srcAddr = InetAddress.getByName(src);
     }
-    if (tcp) {
+    if (tls) {
+      return new DNSQueryTransportHandlerTLS(byteReq, dstAddr, dport, srcAddr, sport, timeout);
+    } else if (tcp) {
       return new DNSQueryTransportHandlerTCP(byteReq, dstAddr, dport, srcAddr, sport, timeout);
     } else {
       return new DNSQueryTransportHandlerUDP(byteReq, dstAddr, dport, srcAddr, sport, timeout);
@@ -52,8 +82,7 @@ public class DNSQueryTransportHandlersDeserializer {
 
   public DNSQueryTransportHandler[] getDecodedHandlers() throws JSONException, UnknownHostException {
 
-    JSONObject obj = new JSONObject(this.jsonString);
-    this.checkVersion(obj);
+    JSONObject obj = getObject();
 
     JSONArray requests = obj.getJSONArray("requests");
     DNSQueryTransportHandler[] ret = new DNSQueryTransportHandler[requests.length()];
@@ -66,7 +95,8 @@ public class DNSQueryTransportHandlersDeserializer {
       int dport = reqObj.getInt("dport");
       long timeout = reqObj.getLong("timeout");
       boolean isTCP = reqObj.getBoolean("tcp");
-      ret[i] = getDNSQueryTransportHandler(request, destination, dport, src, sport, timeout, isTCP);
+      boolean isTLS = reqObj.has("tls") && reqObj.getBoolean("tls");
+      ret[i] = getDNSQueryTransportHandler(request, destination, dport, src, sport, timeout, isTCP, isTLS);
     }
     return ret;
   }
@@ -0,0 +1,146 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+/**
+ * Admission configuration for a DNSQueryTransportManager, bounding the work
+ * it takes on.  Queries submitted wait in the manager's queue, which holds at
+ * most `maxQueued` of them, and are started (i.e., their sockets opened and
+ * their response buffers allocated) only while fewer than `maxInFlight` are in
+ * progress and their response buffers fit within `maxResponseBytes`.
+ *
+ * The kernel buffers of the queries' sockets may also be sized, rather than
+ * left at the system's defaults: the receive buffer either to a given size,
+ * or, with AUTO_BUFFER_SIZE, to each query's share of `maxResponseBytes`
+ * among `maxInFlight` queries, but always at least twice its response buffer,
+ * and the send buffer to a given size.  Like
+ * the pacing settings, these may be changed at any time, from any thread.
+ */
+public class DNSQueryAdmissionSettings {
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+	public static final long DEFAULT_MAX_RESPONSE_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_QUEUED = 100000;
+
+	/* socket buffer sizes that leave the system's default, or that are sized
+	 * automatically */
+	public static final int SYSTEM_BUFFER_SIZE = 0;
+	public static final int AUTO_BUFFER_SIZE = -1;
+	public static final int MAX_AUTO_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private volatile long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+	private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+	private volatile int receiveBufferSize = SYSTEM_BUFFER_SIZE;
+	private volatile int sendBufferSize = SYSTEM_BUFFER_SIZE;
+
+	/**
+	 * @return the number of queries that may be in progress at once.  Every
+	 * UDP or TCP query in progress holds a socket.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return the number of bytes of response buffers that queries in progress
+	 * may hold between them.  A query is always admitted if none is in
+	 * progress, however large its buffer.
+	 */
+	public long getMaxResponseBytes() {
+		return maxResponseBytes;
+	}
+
+	public void setMaxResponseBytes(long maxResponseBytes) {
+		if (maxResponseBytes < 1) {
+			throw new IllegalArgumentException("maxResponseBytes must be positive");
+		}
+		this.maxResponseBytes = maxResponseBytes;
+	}
+
+	/**
+	 * @return the number of queries that may be waiting to start; a batch that
+	 * would take the queue past this is rejected
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		if (maxQueued < 1) {
+			throw new IllegalArgumentException("maxQueued must be positive");
+		}
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * @return the SO_RCVBUF set on the sockets of queries, SYSTEM_BUFFER_SIZE
+	 * to leave the system's default, or AUTO_BUFFER_SIZE
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < AUTO_BUFFER_SIZE) {
+			throw new IllegalArgumentException("receiveBufferSize must be non-negative, or AUTO_BUFFER_SIZE");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @return the SO_SNDBUF set on the sockets of queries, or
+	 * SYSTEM_BUFFER_SIZE to leave the system's default
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("sendBufferSize must be non-negative");
+		}
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return the SO_RCVBUF to set on the socket of a query with a response
+	 * buffer of `responseBufferSize` bytes, or 0 to leave the system's default
+	 */
+	int getReceiveBufferSize(int responseBufferSize) {
+		long share;
+		int size = receiveBufferSize;
+
+		if (size != AUTO_BUFFER_SIZE) {
+			return size;
+		}
+		share = maxResponseBytes / maxInFlight;
+		share = Math.min(share, MAX_AUTO_RECEIVE_BUFFER_SIZE);
+		return (int)Math.max(share, 2L * responseBufferSize);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+
+/**
+ * A set of queries submitted together to a DNSQueryTransportManager, which
+ * completes once every one of its handlers has finished.
+ */
+public class DNSQueryBatch {
+	private final DNSQueryTransportHandler[] handlers;
+	private final DNSQueryBatchListener listener;
+	private final DNSQueryListener queryListener;
+	private final DNSQueryTenant tenant;
+
+	int remaining;
+	IOException error = null;
+	boolean cancelled = false;
+
+	/* the host's UDP drop counters when the batch was submitted, if the
+	 * manager counts drops, and their change by the time it completed */
+	DNSQueryDropCounters dropsAtStart = null;
+	DNSQueryDropCounters drops = null;
+
+	DNSQueryBatch(DNSQueryTransportHandler[] handlers, DNSQueryBatchListener listener, DNSQueryListener queryListener, DNSQueryTenant tenant) {
+		this.handlers = handlers;
+		this.listener = listener;
+		this.queryListener = queryListener;
+		this.tenant = tenant;
+		this.remaining = handlers.length;
+	}
+
+	public DNSQueryTransportHandler[] getHandlers() {
+		return handlers;
+	}
+
+	/**
+	 * @return the tenant the batch was submitted for, or null if it was
+	 * submitted without one
+	 */
+	public DNSQueryTenant getTenant() {
+		return tenant;
+	}
+
+	public boolean isComplete() {
+		return remaining == 0;
+	}
+
+	/**
+	 * @return the error that caused the batch to be abandoned, or null if every
+	 * handler ran to completion
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * @return true if the batch was cancelled before all of its handlers had
+	 * finished, in which case those cut short have the error "CANCELLED"
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the change in the host's UDP drop counters while the batch ran,
+	 * or null if they weren't counted, or the batch hasn't completed.  Any
+	 * drops may have been of responses to the batch's queries, reported as
+	 * timeouts.
+	 */
+	public DNSQueryDropCounters getDrops() {
+		return drops;
+	}
+
+	/**
+	 * Records that `qh` has finished, notifying the query listener, and the
+	 * batch listener if it was the last one.
+	 */
+	void handlerFinished(DNSQueryTransportHandler qh) {
+		if (queryListener != null) {
+			queryListener.queryCompleted(qh);
+		}
+		if (--remaining > 0) {
+			return;
+		}
+		if (dropsAtStart != null && (drops = DNSQueryDropCounters.read()) != null) {
+			drops = drops.since(dropsAtStart);
+		}
+		if (listener != null) {
+			listener.batchCompleted(this);
+		}
+	}
+}
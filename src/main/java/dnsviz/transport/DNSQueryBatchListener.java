@@ -21,15 +21,9 @@
 
 package dnsviz.transport;
 
-import java.util.Comparator;
-
 /**
- * Enables DNSQueryTransportHandler classes to be sorted for use in sorted data
- * structures.
+ * Receives notification that all the queries in a batch have finished.
  */
-public class DNSQueryTransportHandlerComparator implements Comparator<DNSQueryTransportHandler> {
-	
-  public int compare(DNSQueryTransportHandler o1, DNSQueryTransportHandler o2) {
-		return (int)(o1.getExpiration() - o2.getExpiration());
-	}
+public interface DNSQueryBatchListener {
+	public void batchCompleted(DNSQueryBatch batch);
 }
@@ -0,0 +1,216 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An opt-in cache of query results.  Queries are identical if their messages
+ * are the same apart from the ID, and they have the same destination, source
+ * and transport.  A manager with a cache coalesces identical queries that are
+ * waiting or in flight at the same time into one exchange, and, if the TTL is
+ * positive, answers a query identical to one that finished successfully less
+ * than that many milliseconds ago from the cache.  Either way, the ID of the
+ * response is rewritten to match the request, and the handler is marked as
+ * having a shared result (see DNSQueryTransportHandler.getShared()).
+ *
+ * Entries are evicted least recently used first, to keep the responses cached
+ * within the maximum size.  A cache may be shared by several managers, and
+ * its settings may be changed at any time.
+ */
+public class DNSQueryCache {
+	public static final long DEFAULT_TTL = 0;
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	/* an estimate of the memory used by an entry, apart from the messages */
+	private final static int ENTRY_OVERHEAD = 200;
+
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+
+	/**
+	 * @return the number of milliseconds for which a result is reused, or 0
+	 * if identical queries are only coalesced
+	 */
+	public long getTTL() {
+		return ttl;
+	}
+
+	public void setTTL(long ttl) {
+		this.ttl = Math.max(ttl, 0);
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(maxBytes, 0);
+	}
+
+	/**
+	 * @return the estimated number of bytes used by the entries in the cache
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return the key identifying queries identical to `qh`
+	 */
+	Object getKey(DNSQueryTransportHandler qh) {
+		return new Key(qh);
+	}
+
+	/**
+	 * Answers `qh` from the cache, if there is an unexpired result for `key`.
+	 *
+	 * @return false if there is none
+	 */
+	synchronized boolean get(Object key, DNSQueryTransportHandler qh) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return false;
+		}
+		if (entry.expiration <= new Date().getTime()) {
+			remove((Key)key);
+			return false;
+		}
+		qh.share(entry.res, null, null, entry.src, entry.sport, entry.elapsed, DNSQueryTransportHandler.SHARED_CACHED);
+		return true;
+	}
+
+	/**
+	 * Caches the result of `qh`, which has finished, if it was a response and
+	 * results are being reused.
+	 */
+	void put(Object key, DNSQueryTransportHandler qh) {
+		long ttl = this.ttl;
+		Entry entry;
+
+		if (ttl == 0 || qh.hasError() || qh.res == null) {
+			return;
+		}
+		entry = new Entry();
+		entry.res = copy(qh.res, 0, qh.res.limit());
+		entry.src = qh.src;
+		entry.sport = qh.sport;
+		entry.elapsed = qh.timeElapsed();
+		entry.expiration = new Date().getTime() + ttl;
+		entry.size = entry.res.length + ((Key)key).msg.length + ENTRY_OVERHEAD;
+
+		synchronized (this) {
+			remove((Key)key);
+			entries.put((Key)key, entry);
+			bytes += entry.size;
+
+			Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				bytes -= it.next().getValue().size;
+				it.remove();
+			}
+		}
+	}
+
+	private void remove(Key key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			bytes -= entry.size;
+		}
+	}
+
+	static byte[] copy(ByteBuffer buf, int start, int end) {
+		byte[] ret = new byte[Math.max(end - start, 0)];
+		ByteBuffer dup = buf.duplicate();
+		dup.limit(end);
+		dup.position(start);
+		dup.get(ret);
+		return ret;
+	}
+
+	private static class Key {
+		final byte[] msg;
+		final InetAddress dst;
+		final int dport;
+		final InetAddress src;
+		final int sport;
+		final Class<?> transport;
+		final int hash;
+
+		Key(DNSQueryTransportHandler qh) {
+			int start = qh.getStartOfReqPayload();
+			msg = copy(qh.req, start, qh.req.limit());
+			// mask the ID
+			for (int i = 0; i < 2 && i < msg.length; i++) {
+				msg[i] = 0;
+			}
+			dst = qh.dst;
+			dport = qh.dport;
+			src = qh.src;
+			sport = qh.sport;
+			transport = qh.getClass();
+			hash = Arrays.hashCode(msg) * 31 + (dst != null ? dst.hashCode() : 0) * 31 + dport;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return hash == k.hash && dport == k.dport && sport == k.sport && transport == k.transport &&
+				(dst == null ? k.dst == null : dst.equals(k.dst)) &&
+				(src == null ? k.src == null : src.equals(k.src)) &&
+				Arrays.equals(msg, k.msg);
+		}
+	}
+
+	private static class Entry {
+		byte[] res;
+		InetAddress src;
+		int sport;
+		long elapsed;
+		long expiration;
+		int size;
+	}
+}
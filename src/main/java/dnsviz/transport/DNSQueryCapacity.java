@@ -0,0 +1,117 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+/**
+ * How much more work a DNSQueryTransportManager can take on, as of when it
+ * was taken (see DNSQueryTransportManager.getCapacity()): the queries it may
+ * yet start and the room left in its queue, given its admission limits, and
+ * the rate at which it has recently been finishing queries.
+ */
+public class DNSQueryCapacity {
+	/* the retry delay suggested when there is no recent throughput from which
+	 * to estimate one */
+	public final static long DEFAULT_RETRY_AFTER = 1000;
+
+	private final int inFlight;
+	private final int maxInFlight;
+	private final int queued;
+	private final int maxQueued;
+	private final boolean outOfSockets;
+	private final double throughput;
+
+	DNSQueryCapacity(int inFlight, int maxInFlight, int queued, int maxQueued, boolean outOfSockets, double throughput) {
+		this.inFlight = inFlight;
+		this.maxInFlight = maxInFlight;
+		this.queued = queued;
+		this.maxQueued = maxQueued;
+		this.outOfSockets = outOfSockets;
+		this.throughput = throughput;
+	}
+
+	/**
+	 * @return the number of queries in progress
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the number of queries that may be started now, each of which
+	 * needs a socket; 0 if the last one couldn't get a socket because too many
+	 * were open
+	 */
+	public int getFreeSlots() {
+		if (outOfSockets) {
+			return 0;
+		}
+		return Math.max(maxInFlight - inFlight, 0);
+	}
+
+	/**
+	 * @return the number of queries waiting to be started
+	 */
+	public int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return the number of queries that may be submitted before the queue is
+	 * full
+	 */
+	public int getFreeQueue() {
+		return Math.max(maxQueued - queued, 0);
+	}
+
+	/**
+	 * @return the number of queries finished per second, recently
+	 */
+	public double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * @return the milliseconds after which there should be room in the queue
+	 * for a batch of `queries`, at the recent throughput, or 0 if there is room
+	 * now, or -1 if there never will be, because the batch is larger than the
+	 * queue
+	 */
+	public long getRetryAfter(int queries) {
+		int excess = queued + queries - maxQueued;
+
+		if (queries > maxQueued) {
+			return -1;
+		}
+		if (excess <= 0) {
+			return 0;
+		}
+		if (throughput <= 0) {
+			return DEFAULT_RETRY_AFTER;
+		}
+		return (long)Math.ceil(excess * 1000 / throughput);
+	}
+
+	public String toString() {
+		return "in_flight=" + inFlight + " free_slots=" + getFreeSlots() + " queued=" + queued +
+			" free_queue=" + getFreeQueue() + " throughput=" + throughput;
+	}
+}
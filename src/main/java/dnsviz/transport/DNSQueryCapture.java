@@ -0,0 +1,365 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures the request and response of each query to pcap files, with
+ * nanosecond timestamps, as if they had been seen on the wire.  Add it to a
+ * DNSQueryTransportManager with addQueryListener().
+ *
+ * Packets are written as raw IPv4 or IPv6 (LINKTYPE_RAW), with UDP or TCP
+ * headers synthesized from the addresses and ports of the query; checksums
+ * other than that of the IPv4 header are left as 0.  A TCP query appears as a
+ * single segment each way, without the connection setup.  A DNS-over-TLS
+ * query is captured as the plaintext DNS exchanged over the connection.
+ * Queries answered from a DNSQueryCache, or by another query, are not
+ * captured, since they weren't sent.
+ *
+ * Each file is memory-mapped at its full size, and packets are appended by
+ * reserving space with an atomic add and copying into the mapping, so
+ * appending takes no locks and makes no system calls, other than when moving
+ * to a new file, and any number of managers may share a capture.  When a file
+ * is full, capture moves to a new one, the full one is truncated to what was
+ * written, and the oldest file is deleted if there are more than the maximum.
+ * Files are named PREFIX.N.pcap, with N counting up from 0.
+ */
+public class DNSQueryCapture implements DNSQueryListener {
+	public static final long DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILES = 8;
+
+	private final static int PCAP_MAGIC_NANOSECONDS = 0xa1b23c4d;
+	private final static int PCAP_HEADER_LENGTH = 24;
+	private final static int RECORD_HEADER_LENGTH = 16;
+	private final static int LINKTYPE_RAW = 101;
+	private final static int SNAPLEN = 0xffff;
+
+	private final static int IPV4_HEADER_LENGTH = 20;
+	private final static int IPV6_HEADER_LENGTH = 40;
+	private final static int UDP_HEADER_LENGTH = 8;
+	private final static int TCP_HEADER_LENGTH = 20;
+	private final static int PROTO_TCP = 6;
+	private final static int PROTO_UDP = 17;
+
+	private final static byte[] IPV4_ANY = new byte[4];
+	private final static byte[] IPV6_ANY = new byte[16];
+
+	private final File directory;
+	private final String prefix;
+	private final long fileSize;
+	private final int maxFiles;
+
+	/* wall-clock nanoseconds minus System.nanoTime(), for converting traced
+	 * times to timestamps */
+	private final long epochOffset;
+
+	private volatile Segment current;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final AtomicLong captured = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/* accessed only while rotating, which one thread does at a time */
+	private int nextIndex = 0;
+	private final LinkedList<File> files = new LinkedList<>();
+
+	public DNSQueryCapture(File directory, String prefix) throws IOException {
+		this(directory, prefix, DEFAULT_FILE_SIZE, DEFAULT_MAX_FILES);
+	}
+
+	public DNSQueryCapture(File directory, String prefix, long fileSize, int maxFiles) throws IOException {
+		if (fileSize <= PCAP_HEADER_LENGTH || fileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("file size out of range: " + fileSize);
+		}
+		if (maxFiles < 1) {
+			throw new IllegalArgumentException("maxFiles must be positive");
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.fileSize = fileSize;
+		this.maxFiles = maxFiles;
+		this.epochOffset = System.currentTimeMillis() * 1000000 - System.nanoTime();
+		this.current = openSegment();
+	}
+
+	/**
+	 * @return the number of packets captured
+	 */
+	public long getCaptured() {
+		return captured.get();
+	}
+
+	/**
+	 * @return the number of packets not captured, because they were too large
+	 * for a file, a new file couldn't be opened, or the capture was closed
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public void queryCompleted(DNSQueryTransportHandler qh) {
+		ByteBuffer res;
+		if (qh.shared != null || closed.get()) {
+			return;
+		}
+		if (qh.trace[DNSQueryTrace.LAST_WRITE] != 0 && qh.req != null) {
+			append(qh, qh.req, true, qh.trace[DNSQueryTrace.LAST_WRITE]);
+		}
+		if (qh.err == null && (res = qh.res) != null && qh.trace[DNSQueryTrace.FIRST_READ] != 0) {
+			append(qh, res, false, qh.trace[DNSQueryTrace.COMPLETED]);
+		}
+	}
+
+	/**
+	 * Appends a packet carrying `msg` (the whole buffer, up to its limit), from
+	 * the query's source to its destination if `outgoing`, or the reverse.
+	 */
+	private void append(DNSQueryTransportHandler qh, ByteBuffer msg, boolean outgoing, long nanoTime) {
+		boolean tcp = qh instanceof DNSQueryTransportHandlerTCP;
+		boolean ipv6 = qh.dst instanceof Inet6Address;
+		int prefixLength = tcp && !outgoing ? 2 : 0;
+		int payloadLength = prefixLength + msg.limit();
+		int l4Length = (tcp ? TCP_HEADER_LENGTH : UDP_HEADER_LENGTH) + payloadLength;
+		int packetLength = (ipv6 ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH) + l4Length;
+		int recordLength = RECORD_HEADER_LENGTH + packetLength;
+		byte[] local = getAddress(qh.src, ipv6);
+		byte[] remote = getAddress(qh.dst, ipv6);
+		Segment seg;
+		long pos;
+		ByteBuffer out;
+
+		if (packetLength > SNAPLEN || recordLength > fileSize - PCAP_HEADER_LENGTH) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		while (true) {
+			if ((seg = current) == null) {
+				dropped.incrementAndGet();
+				return;
+			}
+			pos = seg.reserved.getAndAdd(recordLength);
+			if (pos + recordLength <= fileSize) {
+				break;
+			}
+			if (pos <= fileSize) {
+				// this writer crossed the end of the file, so it moves capture to a
+				// new one, and the file is finished once the writes before this
+				// one are
+				seg.end = pos;
+				rotate(seg);
+				seg.finishIfComplete();
+			} else {
+				// another writer is moving capture to a new file
+				Thread.yield();
+			}
+		}
+
+		long ts = nanoTime + epochOffset;
+		out = seg.buf.duplicate();
+		out.position((int)pos);
+		out.putInt((int)(ts / 1000000000));
+		out.putInt((int)(ts % 1000000000));
+		out.putInt(packetLength);
+		out.putInt(packetLength);
+
+		if (ipv6) {
+			out.putInt(0x60000000);
+			out.putShort((short)l4Length);
+			out.put((byte)(tcp ? PROTO_TCP : PROTO_UDP));
+			out.put((byte)64);
+			out.put(outgoing ? local : remote);
+			out.put(outgoing ? remote : local);
+		} else {
+			int start = out.position();
+			out.put((byte)0x45);
+			out.put((byte)0);
+			out.putShort((short)packetLength);
+			out.putInt(0x00004000);
+			out.put((byte)64);
+			out.put((byte)(tcp ? PROTO_TCP : PROTO_UDP));
+			out.putShort((short)0);
+			out.put(outgoing ? local : remote);
+			out.put(outgoing ? remote : local);
+			out.putShort(start + 10, ipv4Checksum(out, start));
+		}
+
+		out.putShort((short)(outgoing ? qh.sport : qh.dport));
+		out.putShort((short)(outgoing ? qh.dport : qh.sport));
+		if (tcp) {
+			// each side starts from sequence number 1
+			out.putInt(1);
+			out.putInt(outgoing ? 1 : 1 + qh.req.limit());
+			out.put((byte)(5 << 4));
+			out.put((byte)0x18);
+			out.putShort((short)0xffff);
+			out.putInt(0);
+		} else {
+			out.putShort((short)l4Length);
+			out.putShort((short)0);
+		}
+		if (prefixLength > 0) {
+			out.putShort((short)msg.limit());
+		}
+		ByteBuffer dup = msg.duplicate();
+		dup.limit(msg.limit());
+		dup.position(0);
+		out.put(dup);
+
+		captured.incrementAndGet();
+		seg.written.addAndGet(recordLength);
+		seg.finishIfComplete();
+	}
+
+	private static byte[] getAddress(InetAddress addr, boolean ipv6) {
+		if (addr == null || (ipv6 ? !(addr instanceof Inet6Address) : !(addr instanceof Inet4Address))) {
+			return ipv6 ? IPV6_ANY : IPV4_ANY;
+		}
+		return addr.getAddress();
+	}
+
+	private static short ipv4Checksum(ByteBuffer buf, int start) {
+		int sum = 0;
+		for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2) {
+			sum += buf.getShort(start + i) & 0xffff;
+		}
+		while ((sum >> 16) != 0) {
+			sum = (sum & 0xffff) + (sum >> 16);
+		}
+		return (short)~sum;
+	}
+
+	/**
+	 * Moves capture from `full` to a new file.  Only the writer that filled
+	 * `full` calls this.
+	 */
+	private synchronized void rotate(Segment full) {
+		if (current != full) {
+			return;
+		}
+		try {
+			current = closed.get() ? null : openSegment();
+		} catch (IOException e) {
+			current = null;
+		}
+	}
+
+	private Segment openSegment() throws IOException {
+		File file = new File(directory, prefix + "." + nextIndex++ + ".pcap");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer buf;
+		try {
+			raf.setLength(0);
+			buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		buf.putInt(0, PCAP_MAGIC_NANOSECONDS);
+		buf.putShort(4, (short)2);
+		buf.putShort(6, (short)4);
+		buf.putInt(8, 0);
+		buf.putInt(12, 0);
+		buf.putInt(16, SNAPLEN);
+		buf.putInt(20, LINKTYPE_RAW);
+
+		files.add(file);
+		while (files.size() > maxFiles) {
+			files.poll().delete();
+		}
+		return new Segment(channel, buf);
+	}
+
+	/**
+	 * Stops capturing, and truncates the current file to what was written.
+	 */
+	public void close() {
+		Segment seg;
+		long pos;
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		synchronized (this) {
+			seg = current;
+			current = null;
+		}
+		if (seg != null) {
+			// reserve the rest of the file, so that nothing more is written to it;
+			// if a writer has already crossed the end, it set the end instead
+			pos = seg.reserved.getAndAdd(fileSize + 1);
+			if (pos <= fileSize) {
+				seg.end = pos;
+			}
+			seg.finishIfComplete();
+		}
+	}
+
+	private static class Segment {
+		final FileChannel channel;
+		final MappedByteBuffer buf;
+
+		/* the end of the space reserved by writers, and the bytes they have
+		 * finished writing, after the pcap header */
+		final AtomicLong reserved = new AtomicLong(PCAP_HEADER_LENGTH);
+		final AtomicLong written = new AtomicLong(PCAP_HEADER_LENGTH);
+
+		/* the length of the file once it is full, or -1 while it isn't */
+		volatile long end = -1;
+		final AtomicBoolean finished = new AtomicBoolean(false);
+
+		Segment(FileChannel channel, MappedByteBuffer buf) {
+			this.channel = channel;
+			this.buf = buf;
+		}
+
+		/**
+		 * Truncates and closes the file, once it is full and every write to it
+		 * has finished.
+		 */
+		void finishIfComplete() {
+			long end = this.end;
+			if (end < 0 || written.get() < end || !finished.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				buf.force();
+				channel.truncate(end);
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The kernel's counts of UDP datagrams dropped on this host, as reported in
+ * Linux's /proc/net/snmp and /proc/net/snmp6, for IPv4 and IPv6 together:
+ * those dropped because a socket's receive buffer was full, those that
+ * couldn't be sent because its send buffer was full, and all those received
+ * that couldn't be delivered (which include the first).
+ *
+ * The counts are for the whole host, so a change over the course of a batch
+ * is evidence that some of its responses may have been dropped locally,
+ * rather than lost on the way, not proof.
+ */
+public class DNSQueryDropCounters {
+	private final static String SNMP = "/proc/net/snmp";
+	private final static String SNMP6 = "/proc/net/snmp6";
+
+	/* large enough for either file */
+	private final static int BUFFER_SIZE = 32 * 1024;
+
+	private final static ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/* set once the counters have been found to be unreadable, so that they
+	 * aren't tried again */
+	private static volatile boolean unavailable = false;
+
+	private final long receiveBufferErrors;
+	private final long sendBufferErrors;
+	private final long inErrors;
+
+	DNSQueryDropCounters(long receiveBufferErrors, long sendBufferErrors, long inErrors) {
+		this.receiveBufferErrors = receiveBufferErrors;
+		this.sendBufferErrors = sendBufferErrors;
+		this.inErrors = inErrors;
+	}
+
+	/**
+	 * @return the current counts, or null if they can't be read (e.g., on a
+	 * system other than Linux)
+	 */
+	public static DNSQueryDropCounters read() {
+		byte[] buf = buffers.get();
+		long[] counts = new long[3];
+
+		if (unavailable) {
+			return null;
+		}
+		try {
+			readSNMP(buf, readFile(SNMP, buf), counts);
+		} catch (IOException | RuntimeException e) {
+			unavailable = true;
+			return null;
+		}
+		try {
+			readSNMP6(buf, readFile(SNMP6, buf), counts);
+		} catch (IOException | RuntimeException e) {
+			/* IPv6 may be disabled */
+		}
+		return new DNSQueryDropCounters(counts[0], counts[1], counts[2]);
+	}
+
+	/**
+	 * Reads as much of the file at `path` as fits into `buf`.
+	 *
+	 * @return the number of bytes read
+	 */
+	private static int readFile(String path, byte[] buf) throws IOException {
+		int len = 0;
+		int n;
+
+		FileInputStream in = new FileInputStream(path);
+		try {
+			while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+				len += n;
+			}
+		} finally {
+			in.close();
+		}
+		return len;
+	}
+
+	/**
+	 * Adds the counts from the "Udp:" lines of /proc/net/snmp, the first of
+	 * which names the fields, and the second of which holds their values.
+	 */
+	private static void readSNMP(byte[] buf, int len, long[] counts) throws IOException {
+		int names;
+		int values;
+		int nameEnd;
+		int valueEnd;
+
+		if ((names = findLine(buf, 0, len, "Udp:")) < 0 ||
+				(values = findLine(buf, nextLine(buf, names, len), len, "Udp:")) < 0) {
+			throw new IOException("No UDP counters in " + SNMP);
+		}
+		names = skipField(buf, names, len);
+		values = skipField(buf, values, len);
+		while (true) {
+			names = skipSpace(buf, names, len);
+			values = skipSpace(buf, values, len);
+			nameEnd = skipField(buf, names, len);
+			valueEnd = skipField(buf, values, len);
+			if (nameEnd == names || valueEnd == values) {
+				return;
+			}
+			add(counts, buf, names, nameEnd, parseLong(buf, values, valueEnd));
+			names = nameEnd;
+			values = valueEnd;
+		}
+	}
+
+	/**
+	 * Adds the counts from the "Udp6" lines of /proc/net/snmp6, each of which
+	 * holds the name of a field and its value.
+	 */
+	private static void readSNMP6(byte[] buf, int len, long[] counts) throws IOException {
+		int line = 0;
+		int nameEnd;
+		int value;
+
+		while ((line = findLine(buf, line, len, "Udp6")) >= 0) {
+			nameEnd = skipField(buf, line, len);
+			value = skipSpace(buf, nameEnd, len);
+			add(counts, buf, line + 4, nameEnd, parseLong(buf, value, skipField(buf, value, len)));
+			line = nextLine(buf, line, len);
+		}
+	}
+
+	/**
+	 * @return the offset of the first line at or after `off` that starts with
+	 * `prefix`, or -1 if there is none
+	 */
+	private static int findLine(byte[] buf, int off, int len, String prefix) {
+		while (off < len) {
+			if (matches(buf, off, Math.min(off + prefix.length(), len), prefix)) {
+				return off;
+			}
+			off = nextLine(buf, off, len);
+		}
+		return -1;
+	}
+
+	private static int nextLine(byte[] buf, int off, int len) {
+		while (off < len && buf[off++] != '\n') {
+		}
+		return off;
+	}
+
+	private static int skipSpace(byte[] buf, int off, int len) {
+		while (off < len && (buf[off] == ' ' || buf[off] == '\t')) {
+			off++;
+		}
+		return off;
+	}
+
+	private static int skipField(byte[] buf, int off, int len) {
+		while (off < len && buf[off] != ' ' && buf[off] != '\t' && buf[off] != '\n') {
+			off++;
+		}
+		return off;
+	}
+
+	private static boolean matches(byte[] buf, int off, int end, String s) {
+		if (end - off != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (buf[off + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseLong(byte[] buf, int off, int end) throws IOException {
+		long ret = 0;
+
+		if (off == end) {
+			throw new IOException("Missing counter");
+		}
+		for (int i = off; i < end; i++) {
+			if (buf[i] < '0' || buf[i] > '9') {
+				throw new IOException("Malformed counter");
+			}
+			ret = ret * 10 + (buf[i] - '0');
+		}
+		return ret;
+	}
+
+	private static void add(long[] counts, byte[] buf, int off, int end, long value) {
+		if (matches(buf, off, end, "RcvbufErrors")) {
+			counts[0] += value;
+		} else if (matches(buf, off, end, "SndbufErrors")) {
+			counts[1] += value;
+		} else if (matches(buf, off, end, "InErrors")) {
+			counts[2] += value;
+		}
+	}
+
+	/**
+	 * @return the change in each count since `earlier`
+	 */
+	public DNSQueryDropCounters since(DNSQueryDropCounters earlier) {
+		return new DNSQueryDropCounters(receiveBufferErrors - earlier.receiveBufferErrors,
+				sendBufferErrors - earlier.sendBufferErrors, inErrors - earlier.inErrors);
+	}
+
+	/**
+	 * @return the number of datagrams received that were dropped because a
+	 * socket's receive buffer was full
+	 */
+	public long getReceiveBufferErrors() {
+		return receiveBufferErrors;
+	}
+
+	/**
+	 * @return the number of datagrams that couldn't be sent because a socket's
+	 * send buffer was full
+	 */
+	public long getSendBufferErrors() {
+		return sendBufferErrors;
+	}
+
+	/**
+	 * @return the number of datagrams received that couldn't be delivered to a
+	 * socket, for any reason
+	 */
+	public long getInErrors() {
+		return inErrors;
+	}
+
+	/**
+	 * @return true if any count is non-zero
+	 */
+	public boolean hasDrops() {
+		return receiveBufferErrors != 0 || sendBufferErrors != 0 || inErrors != 0;
+	}
+
+	public String toString() {
+		return "rcvbuf_errors=" + receiveBufferErrors + " sndbuf_errors=" + sendBufferErrors + " in_errors=" + inErrors;
+	}
+}
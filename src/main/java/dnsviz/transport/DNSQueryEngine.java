@@ -0,0 +1,295 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs batches of queries on a thread of its own, so that they may be
+ * submitted from any number of threads without blocking.  All the batches
+ * share one DNSQueryTransportManager, and so its pacing, admission limits and
+ * TLS connections.
+ *
+ * The future returned for a batch completes once all of its handlers have
+ * finished, or completes exceptionally with the error that caused the batch
+ * to be abandoned (e.g., a DNSQueryRejectedException).  Handlers are
+ * finalized before they are handed back.  Listeners are notified, and the
+ * futures completed, on the engine's thread, so they should not block;
+ * anything slow should be handed off with the futures' async methods.
+ */
+public class DNSQueryEngine {
+	private final Selector selector;
+	private final DNSQueryTransportManager qtm;
+	private final Thread thread;
+
+	private final ConcurrentLinkedQueue<Submission> submissions = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<CompletableFuture<DNSQueryTransportHandler[]>> cancellations = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed = false;
+
+	// the batches submitted to the manager and not yet completed, accessed
+	// only from the engine's thread
+	private final IdentityHashMap<DNSQueryBatch, Submission> running = new IdentityHashMap<>();
+
+	public DNSQueryEngine() throws IOException {
+		this(new DNSQueryPacingSettings(), new DNSQueryAdmissionSettings());
+	}
+
+	public DNSQueryEngine(DNSQueryPacingSettings pacingSettings, DNSQueryAdmissionSettings admissionSettings) throws IOException {
+		this(pacingSettings, admissionSettings, DNSQueryNetwork.SYSTEM);
+	}
+
+	/**
+	 * Creates an engine whose queries are sent on `network`, e.g., a
+	 * DNSQuerySimulatedNetwork.
+	 */
+	public DNSQueryEngine(DNSQueryPacingSettings pacingSettings, DNSQueryAdmissionSettings admissionSettings, DNSQueryNetwork network) throws IOException {
+		selector = network.openSelector();
+		qtm = new DNSQueryTransportManager(selector, pacingSettings, admissionSettings, network);
+		thread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "DNSQueryEngine");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Adds a listener to be notified, on the engine's thread, as every query
+	 * finishes; see DNSQueryTransportManager.addQueryListener().
+	 */
+	public void addQueryListener(DNSQueryListener listener) {
+		qtm.addQueryListener(listener);
+	}
+
+	public void removeQueryListener(DNSQueryListener listener) {
+		qtm.removeQueryListener(listener);
+	}
+
+	/**
+	 * Sets the cache with which the engine's manager coalesces identical
+	 * queries; see DNSQueryTransportManager.setCache().
+	 */
+	public void setCache(DNSQueryCache cache) {
+		qtm.setCache(cache);
+	}
+
+	/**
+	 * Sets the pool of local addresses across which the engine's queries are
+	 * spread; see DNSQueryTransportManager.setSourcePool().
+	 */
+	public void setSourcePool(DNSQuerySourcePool sourcePool) {
+		qtm.setSourcePool(sourcePool);
+	}
+
+	/**
+	 * Sets the pool from which the engine's UDP queries take sockets; see
+	 * DNSQueryTransportManager.setSocketPool().
+	 */
+	public void setSocketPool(DNSQuerySocketPool socketPool) {
+		qtm.setSocketPool(socketPool);
+	}
+
+	/**
+	 * Sets whether the host's UDP drop counters are read before and after each
+	 * batch; see DNSQueryTransportManager.setCountDrops().
+	 */
+	public void setCountDrops(boolean countDrops) {
+		qtm.setCountDrops(countDrops);
+	}
+
+	/**
+	 * Submits a batch of handlers to be run.
+	 *
+	 * @return a future for the handlers, once they have all finished
+	 */
+	public CompletableFuture<DNSQueryTransportHandler[]> submit(DNSQueryTransportHandler[] handlers) {
+		return submit(handlers, null);
+	}
+
+	/**
+	 * Submits a batch of handlers to be run, notifying `queryListener`, if not
+	 * null, as each one finishes.
+	 *
+	 * @return a future for the handlers, once they have all finished
+	 */
+	public CompletableFuture<DNSQueryTransportHandler[]> submit(DNSQueryTransportHandler[] handlers, DNSQueryListener queryListener) {
+		return submit(handlers, queryListener, null);
+	}
+
+	/**
+	 * Submits a batch of handlers to be run on behalf of `tenant`, as above.
+	 *
+	 * @return a future for the handlers, once they have all finished
+	 */
+	public CompletableFuture<DNSQueryTransportHandler[]> submit(DNSQueryTransportHandler[] handlers, DNSQueryListener queryListener, DNSQueryTenant tenant) {
+		Submission s = new Submission(handlers, queryListener, tenant);
+		if (closed) {
+			s.future.completeExceptionally(new IOException("DNSQueryEngine is closed"));
+			return s.future;
+		}
+		submissions.add(s);
+		// if the engine closed in the meantime, its loop may already have failed
+		// the submissions it found, and won't look again
+		if (closed && submissions.remove(s)) {
+			s.future.completeExceptionally(new IOException("DNSQueryEngine is closed"));
+			return s.future;
+		}
+		selector.wakeup();
+		return s.future;
+	}
+
+	/**
+	 * Cancels the batch whose future is `future`, if it hasn't completed; see
+	 * DNSQueryTransportManager.cancel().  The future then completes with the
+	 * batch's handlers, those cut short having the error "CANCELLED".
+	 */
+	public void cancel(CompletableFuture<DNSQueryTransportHandler[]> future) {
+		cancellations.add(future);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the engine.  Batches that haven't completed fail with an
+	 * IOException.
+	 */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	private void loop() {
+		Submission s;
+		DNSQueryBatch batch;
+		CompletableFuture<DNSQueryTransportHandler[]> f;
+		long timeout;
+		IOException error = null;
+
+		try {
+			while (!closed) {
+				while ((s = submissions.poll()) != null) {
+					try {
+						batch = qtm.submit(s.handlers, s, s, s.tenant);
+						// an empty batch has already completed
+						if (!s.future.isDone()) {
+							running.put(batch, s);
+						}
+					} catch (DNSQueryRejectedException ex) {
+						s.future.completeExceptionally(ex);
+					}
+				}
+				while ((f = cancellations.poll()) != null) {
+					if ((batch = findBatch(f)) != null) {
+						qtm.cancel(batch);
+					}
+				}
+
+				timeout = qtm.service();
+				selector.select(timeout);
+
+				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+				while (keyIterator.hasNext()) {
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+					qtm.handle(key);
+				}
+			}
+		} catch (IOException | ClosedSelectorException ex) {
+			error = ex instanceof IOException ? (IOException)ex : new IOException(ex);
+		} finally {
+			closed = true;
+			if (error == null) {
+				error = new IOException("DNSQueryEngine is closed");
+			}
+			// abandon the running batches, closing their sockets, which fails
+			// their futures with `error`
+			qtm.close(error);
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+
+			for (Submission r : running.values()) {
+				r.future.completeExceptionally(error);
+			}
+			running.clear();
+			while ((s = submissions.poll()) != null) {
+				s.future.completeExceptionally(error);
+			}
+		}
+	}
+
+	/**
+	 * @return the running batch whose future is `future`, or null if there is
+	 * none
+	 */
+	private DNSQueryBatch findBatch(CompletableFuture<DNSQueryTransportHandler[]> future) {
+		for (Map.Entry<DNSQueryBatch, Submission> e : running.entrySet()) {
+			if (e.getValue().future == future) {
+				return e.getKey();
+			}
+		}
+		return null;
+	}
+
+	private class Submission implements DNSQueryBatchListener, DNSQueryListener {
+		final DNSQueryTransportHandler[] handlers;
+		final DNSQueryListener queryListener;
+		final DNSQueryTenant tenant;
+		final CompletableFuture<DNSQueryTransportHandler[]> future = new CompletableFuture<>();
+
+		Submission(DNSQueryTransportHandler[] handlers, DNSQueryListener queryListener, DNSQueryTenant tenant) {
+			this.handlers = handlers;
+			this.queryListener = queryListener;
+			this.tenant = tenant;
+		}
+
+		public void queryCompleted(DNSQueryTransportHandler qh) {
+			qh.finalize();
+			if (queryListener != null) {
+				try {
+					queryListener.queryCompleted(qh);
+				} catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+
+		public void batchCompleted(DNSQueryBatch batch) {
+			running.remove(batch);
+			if (batch.getError() != null) {
+				future.completeExceptionally(batch.getError());
+			} else {
+				future.complete(handlers);
+			}
+		}
+	}
+}
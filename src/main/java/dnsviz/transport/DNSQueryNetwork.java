@@ -0,0 +1,88 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * The network beneath the transport handlers: where their channels and
+ * selectors come from, and the clock by which they are timed.  SYSTEM is the
+ * real network; DNSQuerySimulatedNetwork is an in-memory one, with a virtual
+ * clock.
+ *
+ * A DNSQueryTransportManager uses one network for all its handlers, and its
+ * Selector must come from the same network.
+ */
+public abstract class DNSQueryNetwork {
+	public final static DNSQueryNetwork SYSTEM = new DNSQueryNetwork() {
+		public long currentTimeMillis() {
+			return new Date().getTime();
+		}
+
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public int nextPort() {
+			return new Random().nextInt(64512) + 1024;
+		}
+
+		public Selector openSelector() throws IOException {
+			return Selector.open();
+		}
+
+		public DatagramChannel openDatagramChannel() throws IOException {
+			return DatagramChannel.open();
+		}
+
+		public SocketChannel openSocketChannel() throws IOException {
+			return SocketChannel.open();
+		}
+	};
+
+	/**
+	 * @return the current time in milliseconds, as for timeouts and elapsed
+	 * times
+	 */
+	public abstract long currentTimeMillis();
+
+	/**
+	 * @return the current time in nanoseconds, as for traces
+	 */
+	public abstract long nanoTime();
+
+	/**
+	 * @return a random port from which to send a query
+	 */
+	public abstract int nextPort();
+
+	public abstract Selector openSelector() throws IOException;
+
+	public abstract DatagramChannel openDatagramChannel() throws IOException;
+
+	public abstract SocketChannel openSocketChannel() throws IOException;
+}
@@ -0,0 +1,400 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Releases queries for sending, pacing each destination group with a token
+ * bucket and a cap on outstanding queries, as configured in
+ * DNSQueryPacingSettings.  Groups with queries waiting are served round-robin,
+ * so that a group with many queries doesn't hold up the others.
+ *
+ * Queries are also queued by the tenant of their batch, and tenants are
+ * served in proportion to their weights (by stride scheduling), subject to
+ * their quotas.  The pacing of a destination is shared by all tenants.
+ * Batches submitted without a tenant belong to a default tenant.
+ */
+public class DNSQueryPacer {
+	/* the pass of a tenant advances by this much, divided by its weight, each
+	 * time it is served */
+	private final static long STRIDE = 1 << 20;
+
+	/* how often, in milliseconds, groups that have gone idle are checked for
+	 * buckets that have refilled, and forgotten */
+	private final static long FORGET_INTERVAL = 1000;
+
+	private final DNSQueryPacingSettings settings;
+	private final DNSQueryTenant defaultTenant = new DNSQueryTenant("default");
+
+	private final HashMap<InetAddress, Destination> destinations = new HashMap<>();
+	private final IdentityHashMap<DNSQueryTenant, Tenant> tenants = new IdentityHashMap<>();
+	private final IdentityHashMap<DNSQueryTransportHandler, Queue> released = new IdentityHashMap<>();
+
+	/* the queue each waiting query was added to, which remove() must use
+	 * rather than looking it up again, as the grouping of destinations may
+	 * have been changed since */
+	private final IdentityHashMap<DNSQueryTransportHandler, Queue> enqueued = new IdentityHashMap<>();
+
+	/* tenants that have queries waiting to be released */
+	private final ArrayList<Tenant> waiting = new ArrayList<>();
+
+	/* the pass of the tenant last served, from which a tenant that has been
+	 * idle resumes, so that it can't bank its idle time */
+	private long virtualTime = 0;
+
+	private int pending = 0;
+
+	private long lastForgotten = -1;
+
+	public DNSQueryPacer(DNSQueryPacingSettings settings) {
+		this.settings = settings;
+	}
+
+	private DNSQueryTenant getTenant(DNSQueryTransportHandler qh) {
+		if (qh.batch != null && qh.batch.getTenant() != null) {
+			return qh.batch.getTenant();
+		}
+		return defaultTenant;
+	}
+
+	public void add(DNSQueryTransportHandler qh) {
+		DNSQueryTenant tenant = getTenant(qh);
+		InetAddress group = settings.getGroup(qh.getDestination());
+		Destination d = destinations.get(group);
+		Tenant t = tenants.get(tenant);
+		Queue q;
+
+		if (d == null) {
+			d = new Destination(group, settings.getLimits(group));
+			destinations.put(group, d);
+		}
+		if (t == null) {
+			t = new Tenant(tenant);
+			tenants.put(tenant, t);
+		}
+		if ((q = t.queues.get(d)) == null) {
+			q = new Queue(t, d);
+			t.queues.put(d, q);
+		}
+
+		if (q.queue.isEmpty()) {
+			t.waiting.add(q);
+		}
+		if (t.pending == 0) {
+			t.pass = Math.max(t.pass, virtualTime);
+			waiting.add(t);
+		}
+		q.queue.add(qh);
+		enqueued.put(qh, q);
+		d.queued++;
+		t.pending++;
+		tenant.queued.incrementAndGet();
+		pending++;
+	}
+
+	public boolean hasPending() {
+		return pending > 0;
+	}
+
+	/**
+	 * @return the number of queries waiting to be released
+	 */
+	public int getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * @return the next query that may be sent at time `now`, or null if none
+	 * may be sent yet
+	 */
+	public DNSQueryTransportHandler poll(long now) {
+		DNSQueryTransportHandler qh = null;
+		Tenant t = null;
+		Tenant candidate;
+
+		forgetRefilled(now);
+
+		// try the tenants in order of pass, until one has a query that may be
+		// sent
+		for (int tries = waiting.size(); tries > 0 && qh == null; tries--) {
+			t = null;
+			for (int i = 0; i < waiting.size(); i++) {
+				candidate = waiting.get(i);
+				if (!candidate.tried && (t == null || candidate.pass < t.pass)) {
+					t = candidate;
+				}
+			}
+			t.tried = true;
+			if (!t.isOverQuota()) {
+				qh = t.poll(now);
+			}
+		}
+		for (int i = 0; i < waiting.size(); i++) {
+			waiting.get(i).tried = false;
+		}
+		if (qh == null) {
+			return null;
+		}
+
+		virtualTime = t.pass;
+		t.pass += STRIDE / t.tenant.getWeight();
+		if (t.pending == 0) {
+			waiting.remove(t);
+		}
+		pending--;
+		return qh;
+	}
+
+	/**
+	 * @return the earliest time at which a query held back by its group's rate
+	 * may be sent, or Long.MAX_VALUE if every waiting query is held back by
+	 * outstanding queries (of its group or its tenant) instead
+	 */
+	public long getNextReleaseTime(long now) {
+		long ret = Long.MAX_VALUE;
+		long t;
+		for (Tenant tenant : waiting) {
+			if (tenant.isOverQuota()) {
+				continue;
+			}
+			for (Queue q : tenant.waiting) {
+				Destination d = q.destination;
+				if (d.limits.isOutstandingLimited() && d.outstanding >= d.limits.getMaxOutstanding()) {
+					continue;
+				}
+				if (d.tokens >= 1 || !d.limits.isRateLimited()) {
+					return now;
+				}
+				t = d.lastRefill + (long)Math.ceil((1 - d.tokens) * 1000 / d.limits.getRate());
+				ret = Math.min(ret, t);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Marks a query previously returned by poll() as no longer outstanding.
+	 */
+	public void release(DNSQueryTransportHandler qh) {
+		Queue q = released.remove(qh);
+		if (q != null) {
+			q.destination.outstanding--;
+			q.tenant.inFlight--;
+			q.tenant.tenant.inFlight.decrementAndGet();
+			forgetIfIdle(q);
+		}
+	}
+
+	/**
+	 * Withdraws a query that has not yet been returned by poll().
+	 *
+	 * @return false if the query was not waiting to be released
+	 */
+	public boolean remove(DNSQueryTransportHandler qh) {
+		Queue q = enqueued.remove(qh);
+		Tenant t;
+		Destination d;
+
+		if (q == null) {
+			return false;
+		}
+		t = q.tenant;
+		d = q.destination;
+		q.queue.remove(qh);
+		d.queued--;
+		t.pending--;
+		t.tenant.queued.decrementAndGet();
+		pending--;
+		if (q.queue.isEmpty()) {
+			t.waiting.remove(q);
+		}
+		if (t.pending == 0) {
+			waiting.remove(t);
+		}
+		forgetIfIdle(q);
+		return true;
+	}
+
+	/**
+	 * Drops the state kept for a queue, its group and its tenant once they
+	 * have nothing waiting or outstanding, so that a long-lived pacer doesn't
+	 * accumulate them.  A group's bucket is kept until it has refilled (see
+	 * forgetRefilled()), so that the next batch to the group doesn't get a
+	 * fresh burst.
+	 */
+	private void forgetIfIdle(Queue q) {
+		if (q.queue.isEmpty() && q.tenant.queues.get(q.destination) == q) {
+			q.tenant.queues.remove(q.destination);
+		}
+		if (q.destination.isIdle() && !q.destination.limits.isRateLimited() &&
+				destinations.get(q.destination.group) == q.destination) {
+			destinations.remove(q.destination.group);
+		}
+		if (q.tenant.inFlight == 0 && q.tenant.pending == 0) {
+			tenants.remove(q.tenant.tenant);
+		}
+	}
+
+	/**
+	 * Drops idle groups whose buckets would be full by time `now`, at most
+	 * once every FORGET_INTERVAL.
+	 */
+	private void forgetRefilled(long now) {
+		Iterator<Destination> it;
+		Destination d;
+
+		if (lastForgotten >= 0 && now >= lastForgotten && now - lastForgotten < FORGET_INTERVAL) {
+			return;
+		}
+		lastForgotten = now;
+		for (it = destinations.values().iterator(); it.hasNext(); ) {
+			d = it.next();
+			if (d.isIdle() && d.isFull(settings.getLimits(d.group), now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static class Destination {
+		final InetAddress group;
+		DNSQueryPacingLimits limits;
+		double tokens;
+		long lastRefill = -1;
+		int outstanding = 0;
+		int queued = 0;
+
+		Destination(InetAddress group, DNSQueryPacingLimits limits) {
+			this.group = group;
+			this.limits = limits;
+			this.tokens = limits.getBurst();
+		}
+
+		void refill(DNSQueryPacingLimits limits, long now) {
+			this.limits = limits;
+			if (lastRefill >= 0 && now > lastRefill) {
+				tokens += (now - lastRefill) * limits.getRate() / 1000;
+			}
+			tokens = Math.min(tokens, limits.getBurst());
+			lastRefill = now;
+		}
+
+		boolean isIdle() {
+			return outstanding == 0 && queued == 0;
+		}
+
+		/**
+		 * @return true if the bucket would hold a full burst at time `now`,
+		 * so that forgetting it makes no difference
+		 */
+		boolean isFull(DNSQueryPacingLimits limits, long now) {
+			if (!limits.isRateLimited() || lastRefill < 0) {
+				return true;
+			}
+			return now >= lastRefill && tokens + (now - lastRefill) * limits.getRate() / 1000 >= limits.getBurst();
+		}
+
+		boolean canSend() {
+			if (limits.isOutstandingLimited() && outstanding >= limits.getMaxOutstanding()) {
+				return false;
+			}
+			return !limits.isRateLimited() || tokens >= 1;
+		}
+	}
+
+	/* the queries of one tenant to one destination group */
+	private static class Queue {
+		final Tenant tenant;
+		final Destination destination;
+		final LinkedList<DNSQueryTransportHandler> queue = new LinkedList<>();
+
+		Queue(Tenant tenant, Destination destination) {
+			this.tenant = tenant;
+			this.destination = destination;
+		}
+	}
+
+	private class Tenant {
+		final DNSQueryTenant tenant;
+		final HashMap<Destination, Queue> queues = new HashMap<>();
+
+		/* queues that have queries waiting, in round-robin order */
+		final LinkedList<Queue> waiting = new LinkedList<>();
+
+		long pass = 0;
+		int pending = 0;
+		int inFlight = 0;
+		boolean tried = false;
+
+		Tenant(DNSQueryTenant tenant) {
+			this.tenant = tenant;
+		}
+
+		boolean isOverQuota() {
+			int max = tenant.getMaxInFlight();
+			return max > 0 && inFlight >= max;
+		}
+
+		/**
+		 * @return the tenant's next query that its destination's pacing allows
+		 * to be sent at time `now`, or null if there is none
+		 */
+		DNSQueryTransportHandler poll(long now) {
+			Queue q;
+			Destination d;
+			DNSQueryTransportHandler qh;
+
+			for (int i = waiting.size(); i > 0; i--) {
+				q = waiting.poll();
+				d = q.destination;
+				d.refill(settings.getLimits(d.group), now);
+				if (!d.canSend()) {
+					waiting.add(q);
+					continue;
+				}
+
+				qh = q.queue.poll();
+				if (d.limits.isRateLimited()) {
+					d.tokens -= 1;
+				}
+				d.outstanding++;
+				d.queued--;
+				pending--;
+				inFlight++;
+				tenant.queued.decrementAndGet();
+				tenant.inFlight.incrementAndGet();
+				enqueued.remove(qh);
+				released.put(qh, q);
+				if (!q.queue.isEmpty()) {
+					waiting.add(q);
+				}
+				return qh;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+/**
+ * Limits on how queries are sent to a single destination: a token bucket that
+ * refills at `rate` queries per second up to `burst` queries, and a cap on the
+ * number of queries outstanding at once.  A rate or cap of zero or less means
+ * unlimited.
+ */
+public class DNSQueryPacingLimits {
+	public static final DNSQueryPacingLimits UNLIMITED = new DNSQueryPacingLimits(0, 0, 0);
+
+	private final double rate;
+	private final int burst;
+	private final int maxOutstanding;
+
+	public DNSQueryPacingLimits(double rate, int burst, int maxOutstanding) {
+		this.rate = rate;
+		this.burst = Math.max(burst, 1);
+		this.maxOutstanding = maxOutstanding;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	public int getMaxOutstanding() {
+		return maxOutstanding;
+	}
+
+	public boolean isRateLimited() {
+		return rate > 0;
+	}
+
+	public boolean isOutstandingLimited() {
+		return maxOutstanding > 0;
+	}
+}
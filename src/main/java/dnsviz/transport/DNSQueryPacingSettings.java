@@ -0,0 +1,118 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pacing configuration shared across batches.  Destinations are grouped by
+ * prefix, and each group is paced according to its own limits, if any have
+ * been set, or the default limits otherwise.  All settings may be changed at
+ * any time, including from other threads while a batch is running; a running
+ * batch picks up the change the next time it considers the destination.
+ *
+ * Pacing is on by default: each destination is sent at most DEFAULT_RATE
+ * queries per second, in bursts of up to DEFAULT_BURST, with at most
+ * DEFAULT_MAX_OUTSTANDING outstanding at once.  To turn it off, set the
+ * default limits to DNSQueryPacingLimits.UNLIMITED.
+ */
+public class DNSQueryPacingSettings {
+	public static final double DEFAULT_RATE = 200;
+	public static final int DEFAULT_BURST = 40;
+	public static final int DEFAULT_MAX_OUTSTANDING = 100;
+
+	private volatile DNSQueryPacingLimits defaultLimits = new DNSQueryPacingLimits(DEFAULT_RATE, DEFAULT_BURST, DEFAULT_MAX_OUTSTANDING);
+	private volatile int ipv4PrefixLength = 32;
+	private volatile int ipv6PrefixLength = 128;
+
+	private final ConcurrentHashMap<InetAddress, DNSQueryPacingLimits> limits = new ConcurrentHashMap<>();
+
+	public DNSQueryPacingLimits getDefaultLimits() {
+		return defaultLimits;
+	}
+
+	public void setDefaultLimits(DNSQueryPacingLimits limits) {
+		defaultLimits = limits;
+	}
+
+	/**
+	 * Sets the prefix lengths by which destinations are grouped.  Limits set
+	 * for individual destinations should be set again after changing these.
+	 */
+	public void setPrefixLengths(int ipv4PrefixLength, int ipv6PrefixLength) {
+		this.ipv4PrefixLength = Math.max(0, Math.min(ipv4PrefixLength, 32));
+		this.ipv6PrefixLength = Math.max(0, Math.min(ipv6PrefixLength, 128));
+	}
+
+	/**
+	 * Sets the limits for the group containing `addr`.
+	 */
+	public void setLimits(InetAddress addr, DNSQueryPacingLimits limits) {
+		this.limits.put(getGroup(addr), limits);
+	}
+
+	/**
+	 * Reverts the group containing `addr` to the default limits.
+	 */
+	public void removeLimits(InetAddress addr) {
+		this.limits.remove(getGroup(addr));
+	}
+
+	public DNSQueryPacingLimits getLimits(InetAddress group) {
+		DNSQueryPacingLimits ret = group != null ? limits.get(group) : null;
+		return ret != null ? ret : defaultLimits;
+	}
+
+	/**
+	 * @return the address of the prefix containing `addr`, which identifies the
+	 * group it is paced with
+	 */
+	public InetAddress getGroup(InetAddress addr) {
+		byte[] bytes;
+		int prefixLength;
+
+		if (addr == null) {
+			return null;
+		}
+		bytes = addr.getAddress();
+		prefixLength = addr instanceof Inet4Address ? ipv4PrefixLength : ipv6PrefixLength;
+		if (prefixLength >= bytes.length * 8) {
+			return addr;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (prefixLength >= 8) {
+				prefixLength -= 8;
+			} else {
+				bytes[i] &= (byte)(0xff << (8 - prefixLength));
+				prefixLength = 0;
+			}
+		}
+		try {
+			return InetAddress.getByAddress(bytes);
+		} catch (UnknownHostException e) {
+			return addr;
+		}
+	}
+}
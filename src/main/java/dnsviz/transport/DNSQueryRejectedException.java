@@ -0,0 +1,76 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a batch is submitted to a DNSQueryTransportManager whose queue
+ * doesn't have room for it.  It carries the manager's capacity at the time,
+ * from which the submitter may tell when to try again.
+ */
+public class DNSQueryRejectedException extends IOException {
+	private final static long serialVersionUID = 1L;
+
+	private final int queueDepth;
+	private final int queries;
+	private final DNSQueryCapacity capacity;
+
+	public DNSQueryRejectedException(String message, int queueDepth) {
+		this(message, queueDepth, 0, null);
+	}
+
+	public DNSQueryRejectedException(String message, int queueDepth, int queries, DNSQueryCapacity capacity) {
+		super(message);
+		this.queueDepth = queueDepth;
+		this.queries = queries;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the number of queries that were waiting when the batch was
+	 * rejected
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the capacity of the manager when the batch was rejected, or null
+	 * if it isn't known
+	 */
+	public DNSQueryCapacity getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the milliseconds after which the batch might be accepted, if
+	 * submitted again (see DNSQueryCapacity.getRetryAfter()), or -1 if it
+	 * never would be, or the capacity isn't known
+	 */
+	public long getRetryAfter() {
+		if (capacity == null) {
+			return -1;
+		}
+		return capacity.getRetryAfter(queries);
+	}
+}
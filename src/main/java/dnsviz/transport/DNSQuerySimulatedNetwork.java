@@ -0,0 +1,1141 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * An in-memory network, with a virtual clock, on which large batches of
+ * queries can be run in a fraction of the time they would take on the real
+ * one, and with the same results every time for the same seed.
+ *
+ * Every destination answers queries over UDP and TCP, by default with the
+ * query itself, marked as a response; see setResponder().  How each
+ * destination's answers are delayed, lost, truncated or refused is governed
+ * by its Profile, or the default profile.  Each query draws its fate from a
+ * Random seeded at construction, so a run is reproducible as long as the
+ * queries are submitted in the same order.
+ *
+ * Time stands still except in select(), which, if no channel is ready,
+ * advances the clock to the next event (e.g., a response arriving), or to the
+ * end of its timeout, whichever comes first, without actually waiting.
+ * DNS-over-TLS is not simulated: connections are made, but nothing is
+ * answered over them.
+ *
+ * Channels from a simulated network may only be used in non-blocking mode,
+ * with a Selector from the same network, and, apart from wakeup(), only from
+ * one thread at a time.
+ */
+public class DNSQuerySimulatedNetwork extends DNSQueryNetwork {
+	/* the virtual clock starts at a fixed time, for reproducibility */
+	public final static long START_TIME = 1000000000000L;
+
+	private final static long NANOS_PER_MILLI = 1000000;
+	private final static int FIRST_EPHEMERAL_PORT = 1024;
+	private final static int EPHEMERAL_PORTS = 64512;
+
+	/**
+	 * A distribution of delays, in milliseconds.
+	 */
+	public interface Distribution {
+		double sample(Random random);
+	}
+
+	/**
+	 * Produces the response of a destination to a query, or null for none.
+	 */
+	public interface Responder {
+		byte[] respond(byte[] query, InetSocketAddress dst, boolean tcp);
+	}
+
+	/**
+	 * How a destination answers: the round-trip time of each exchange, and the
+	 * probabilities that a query is lost (never answered), that its response
+	 * is truncated (UDP only), and that it is refused (ICMP port unreachable
+	 * for UDP; a refused connection, or a reset once connected, for TCP).
+	 */
+	public static class Profile {
+		private final Distribution latency;
+		private final double loss;
+		private final double truncation;
+		private final double reset;
+
+		public Profile(Distribution latency, double loss, double truncation, double reset) {
+			this.latency = latency;
+			this.loss = loss;
+			this.truncation = truncation;
+			this.reset = reset;
+		}
+
+		public Distribution getLatency() {
+			return latency;
+		}
+
+		public double getLoss() {
+			return loss;
+		}
+
+		public double getTruncation() {
+			return truncation;
+		}
+
+		public double getReset() {
+			return reset;
+		}
+	}
+
+	public static Distribution constant(final double ms) {
+		return new Distribution() {
+			public double sample(Random random) {
+				return ms;
+			}
+		};
+	}
+
+	public static Distribution uniform(final double min, final double max) {
+		return new Distribution() {
+			public double sample(Random random) {
+				return min + random.nextDouble() * (max - min);
+			}
+		};
+	}
+
+	/**
+	 * @return a distribution of at least `min`, plus an exponentially
+	 * distributed delay with mean `mean`, as for a long-tailed round trip
+	 */
+	public static Distribution exponential(final double min, final double mean) {
+		return new Distribution() {
+			public double sample(Random random) {
+				return min - mean * Math.log(1 - random.nextDouble());
+			}
+		};
+	}
+
+	/* an outcome of an exchange, drawn from a Profile */
+	private final static int ANSWERED = 0;
+	private final static int LOST = 1;
+	private final static int TRUNCATED = 2;
+	private final static int RESET = 3;
+
+	private final Random random;
+	private final SimulatedProvider provider = new SimulatedProvider();
+
+	/* the virtual time, in nanoseconds since START_TIME */
+	private long now = 0;
+	private long sequence = 0;
+	private final PriorityQueue<Event> events = new PriorityQueue<>(11, new Comparator<Event>() {
+		public int compare(Event a, Event b) {
+			if (a.time != b.time) {
+				return a.time < b.time ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	});
+
+	private Profile defaultProfile = new Profile(constant(10), 0, 0, 0);
+	private final HashMap<InetAddress, Profile> profiles = new HashMap<>();
+	private Responder responder = new Responder() {
+		public byte[] respond(byte[] query, InetSocketAddress dst, boolean tcp) {
+			byte[] ret = Arrays.copyOf(query, query.length);
+			if (ret.length > 2) {
+				ret[2] |= (byte)0x80;
+			}
+			return ret;
+		}
+	};
+
+	private final LinkedList<SimulatedSelector> selectors = new LinkedList<>();
+
+	private final InetAddress localAddress4;
+	private final InetAddress localAddress6;
+	/* the addresses and ports bound by open channels */
+	private final HashSet<InetSocketAddress> udpPorts = new HashSet<>();
+	private final HashSet<InetSocketAddress> tcpPorts = new HashSet<>();
+
+	private int maxSockets = 0;
+	private int openSockets = 0;
+	private int peakOpenSockets = 0;
+	private long queriesReceived = 0;
+
+	public DNSQuerySimulatedNetwork(long seed) {
+		random = new Random(seed);
+		try {
+			localAddress4 = InetAddress.getByAddress(new byte[] { (byte)192, 0, 2, 1 });
+			localAddress6 = InetAddress.getByAddress(new byte[] { 0x20, 0x01, 0x0d, (byte)0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 });
+		} catch (UnknownHostException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Profile getDefaultProfile() {
+		return defaultProfile;
+	}
+
+	public void setDefaultProfile(Profile profile) {
+		defaultProfile = profile;
+	}
+
+	public void setProfile(InetAddress dst, Profile profile) {
+		profiles.put(dst, profile);
+	}
+
+	public Profile getProfile(InetAddress dst) {
+		Profile ret = profiles.get(dst);
+		return ret != null ? ret : defaultProfile;
+	}
+
+	public void setResponder(Responder responder) {
+		this.responder = responder;
+	}
+
+	/**
+	 * Limits the number of channels that may be open at once, as the limit on
+	 * file descriptors would; 0 means unlimited.
+	 */
+	public void setMaxSockets(int maxSockets) {
+		this.maxSockets = maxSockets;
+	}
+
+	public int getOpenSockets() {
+		return openSockets;
+	}
+
+	public int getPeakOpenSockets() {
+		return peakOpenSockets;
+	}
+
+	/**
+	 * @return the number of queries that have reached their destinations
+	 */
+	public long getQueriesReceived() {
+		return queriesReceived;
+	}
+
+	public long currentTimeMillis() {
+		return START_TIME + now / NANOS_PER_MILLI;
+	}
+
+	public long nanoTime() {
+		return now;
+	}
+
+	public int nextPort() {
+		return random.nextInt(EPHEMERAL_PORTS) + FIRST_EPHEMERAL_PORT;
+	}
+
+	public Selector openSelector() {
+		return provider.openSelector();
+	}
+
+	public DatagramChannel openDatagramChannel() throws IOException {
+		opened();
+		return new SimulatedDatagramChannel();
+	}
+
+	public SocketChannel openSocketChannel() throws IOException {
+		opened();
+		return new SimulatedSocketChannel();
+	}
+
+	private void opened() throws IOException {
+		if (maxSockets > 0 && openSockets >= maxSockets) {
+			throw new IOException("Too many open files");
+		}
+		peakOpenSockets = Math.max(peakOpenSockets, ++openSockets);
+	}
+
+	private void schedule(double delay, Runnable action) {
+		events.add(new Event(now + Math.max((long)(delay * NANOS_PER_MILLI), 0), sequence++, action));
+	}
+
+	/**
+	 * Runs the events due at the time of the next one, first advancing the
+	 * clock to it, as long as it is no later than `deadline`.
+	 *
+	 * @return false if there was no such event
+	 */
+	private boolean runNextEvents(long deadline) {
+		Event e = events.peek();
+		if (e == null || e.time > deadline) {
+			return false;
+		}
+		now = Math.max(now, e.time);
+		while ((e = events.peek()) != null && e.time <= now) {
+			events.poll().action.run();
+		}
+		return true;
+	}
+
+	private int draw(Profile profile) {
+		double r = random.nextDouble();
+		if (r < profile.getLoss()) {
+			return LOST;
+		}
+		r -= profile.getLoss();
+		if (r < profile.getReset()) {
+			return RESET;
+		}
+		r -= profile.getReset();
+		if (r < profile.getTruncation()) {
+			return TRUNCATED;
+		}
+		return ANSWERED;
+	}
+
+	private InetAddress getSourceAddress(InetAddress dst) {
+		return dst instanceof Inet6Address ? localAddress6 : localAddress4;
+	}
+
+	/**
+	 * Binds to `local`, or to a random port, if its port is 0.  Ports are in
+	 * use separately for each address, and for the wildcard address.
+	 */
+	private InetSocketAddress bind(HashSet<InetSocketAddress> ports, InetSocketAddress local) throws IOException {
+		InetAddress addr = local != null ? local.getAddress() : null;
+		int port = local != null ? local.getPort() : 0;
+		InetSocketAddress ret;
+
+		if (port == 0) {
+			do {
+				ret = new InetSocketAddress(addr, nextPort());
+			} while (ports.contains(ret));
+		} else if (ports.contains(ret = new InetSocketAddress(addr, port))) {
+			throw new BindException("Address already in use");
+		}
+		ports.add(ret);
+		return ret;
+	}
+
+	/**
+	 * Has the selectors with which `channel` is registered check whether it
+	 * is ready, after its state has changed.
+	 */
+	private void changed(SelectableChannel channel) {
+		SelectionKey key;
+		for (SimulatedSelector selector : selectors) {
+			if ((key = channel.keyFor(selector)) != null) {
+				selector.watch(key);
+			}
+		}
+	}
+
+	private static byte[] remove(ByteBuffer src) {
+		byte[] ret = new byte[src.remaining()];
+		src.get(ret);
+		return ret;
+	}
+
+	private static class Event {
+		final long time;
+		final long sequence;
+		final Runnable action;
+
+		Event(long time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+	}
+
+	/* the operations for which a simulated channel is ready */
+	private interface SimulatedChannel {
+		int readyOps();
+	}
+
+	private class SimulatedProvider extends SelectorProvider {
+		public DatagramChannel openDatagramChannel() throws IOException {
+			return DNSQuerySimulatedNetwork.this.openDatagramChannel();
+		}
+
+		public DatagramChannel openDatagramChannel(ProtocolFamily family) throws IOException {
+			return DNSQuerySimulatedNetwork.this.openDatagramChannel();
+		}
+
+		public Pipe openPipe() {
+			throw new UnsupportedOperationException();
+		}
+
+		public AbstractSelector openSelector() {
+			SimulatedSelector selector = new SimulatedSelector();
+			selectors.add(selector);
+			return selector;
+		}
+
+		public ServerSocketChannel openServerSocketChannel() {
+			throw new UnsupportedOperationException();
+		}
+
+		public SocketChannel openSocketChannel() throws IOException {
+			return DNSQuerySimulatedNetwork.this.openSocketChannel();
+		}
+	}
+
+	private class SimulatedSelectionKey extends AbstractSelectionKey {
+		private final SelectableChannel channel;
+		private final Selector selector;
+		private int interestOps = 0;
+		int readyOps = 0;
+
+		SimulatedSelectionKey(SelectableChannel channel, Selector selector) {
+			this.channel = channel;
+			this.selector = selector;
+		}
+
+		public SelectableChannel channel() {
+			return channel;
+		}
+
+		public Selector selector() {
+			return selector;
+		}
+
+		public int interestOps() {
+			if (!isValid()) {
+				throw new CancelledKeyException();
+			}
+			return interestOps;
+		}
+
+		public SelectionKey interestOps(int ops) {
+			if (!isValid()) {
+				throw new CancelledKeyException();
+			}
+			if ((ops & ~channel.validOps()) != 0) {
+				throw new IllegalArgumentException();
+			}
+			interestOps = ops;
+			((SimulatedSelector)selector).watch(this);
+			return this;
+		}
+
+		public int readyOps() {
+			if (!isValid()) {
+				throw new CancelledKeyException();
+			}
+			return readyOps;
+		}
+	}
+
+	private class SimulatedSelector extends AbstractSelector {
+		private final LinkedHashSet<SelectionKey> keys = new LinkedHashSet<>();
+		private final LinkedHashSet<SelectionKey> selectedKeys = new LinkedHashSet<>();
+
+		/* the keys that may be ready: those whose channels or interests have
+		 * changed, and those that were ready when last checked */
+		private final LinkedHashSet<SelectionKey> watched = new LinkedHashSet<>();
+		private boolean woken = false;
+
+		SimulatedSelector() {
+			super(provider);
+		}
+
+		protected SelectionKey register(AbstractSelectableChannel ch, int ops, Object att) {
+			SimulatedSelectionKey key;
+			if (!(ch instanceof SimulatedChannel) || ch.provider() != provider) {
+				throw new IllegalSelectorException();
+			}
+			key = new SimulatedSelectionKey(ch, this);
+			key.attach(att);
+			keys.add(key);
+			key.interestOps(ops);
+			return key;
+		}
+
+		protected void implCloseSelector() {
+			removeCancelled();
+			for (SelectionKey key : keys.toArray(new SelectionKey[keys.size()])) {
+				key.cancel();
+			}
+			removeCancelled();
+			selectors.remove(this);
+		}
+
+		public Set<SelectionKey> keys() {
+			checkOpen();
+			return Collections.unmodifiableSet(keys);
+		}
+
+		public Set<SelectionKey> selectedKeys() {
+			checkOpen();
+			return selectedKeys;
+		}
+
+		public int selectNow() {
+			checkOpen();
+			removeCancelled();
+			return updateSelectedKeys();
+		}
+
+		public int select() {
+			return select(0);
+		}
+
+		/**
+		 * Runs events, advancing the clock, until a channel is ready or
+		 * `timeout` milliseconds have passed on the clock.  If there is nothing
+		 * left to happen, and no timeout, this blocks until wakeup() is called.
+		 */
+		public int select(long timeout) {
+			long deadline = timeout > 0 ? now + timeout * NANOS_PER_MILLI : Long.MAX_VALUE;
+			int n;
+
+			checkOpen();
+			removeCancelled();
+			while (true) {
+				if ((n = updateSelectedKeys()) > 0 || takeWakeup()) {
+					return n;
+				}
+				if (!runNextEvents(deadline)) {
+					break;
+				}
+			}
+			if (deadline != Long.MAX_VALUE) {
+				now = deadline;
+				return updateSelectedKeys();
+			}
+			waitForWakeup();
+			return 0;
+		}
+
+		public synchronized Selector wakeup() {
+			woken = true;
+			notifyAll();
+			return this;
+		}
+
+		private synchronized boolean takeWakeup() {
+			boolean ret = woken;
+			woken = false;
+			return ret;
+		}
+
+		private synchronized void waitForWakeup() {
+			while (!woken && isOpen()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			woken = false;
+		}
+
+		private void checkOpen() {
+			if (!isOpen()) {
+				throw new ClosedSelectorException();
+			}
+		}
+
+		private void removeCancelled() {
+			Set<SelectionKey> cancelled = cancelledKeys();
+			synchronized (cancelled) {
+				for (SelectionKey key : cancelled) {
+					keys.remove(key);
+					selectedKeys.remove(key);
+					watched.remove(key);
+					deregister((AbstractSelectionKey)key);
+				}
+				cancelled.clear();
+			}
+		}
+
+		void watch(SelectionKey key) {
+			watched.add(key);
+		}
+
+		/**
+		 * @return the number of keys whose ready operations were updated
+		 */
+		private int updateSelectedKeys() {
+			Iterator<SelectionKey> iterator = watched.iterator();
+			SimulatedSelectionKey key;
+			int ready;
+			int n = 0;
+
+			while (iterator.hasNext()) {
+				key = (SimulatedSelectionKey)iterator.next();
+				if (!key.isValid() || !key.channel().isOpen()) {
+					iterator.remove();
+					continue;
+				}
+				ready = ((SimulatedChannel)key.channel()).readyOps() & key.interestOps();
+				if (ready == 0) {
+					iterator.remove();
+					continue;
+				}
+				if (selectedKeys.add(key)) {
+					key.readyOps = ready;
+					n++;
+				} else if ((key.readyOps | ready) != key.readyOps) {
+					key.readyOps |= ready;
+					n++;
+				}
+			}
+			return n;
+		}
+	}
+
+	private class SimulatedDatagramChannel extends DatagramChannel implements SimulatedChannel {
+		private final HashMap<SocketOption<?>, Object> options = new HashMap<>();
+		private InetSocketAddress local = null;
+		private InetSocketAddress bound = null;
+		private InetSocketAddress remote = null;
+		private final LinkedList<byte[]> received = new LinkedList<>();
+		private final LinkedList<InetSocketAddress> senders = new LinkedList<>();
+		private IOException error = null;
+
+		SimulatedDatagramChannel() {
+			super(provider);
+		}
+
+		public int readyOps() {
+			return SelectionKey.OP_WRITE | (received.isEmpty() && error == null ? 0 : SelectionKey.OP_READ);
+		}
+
+		public DatagramChannel bind(SocketAddress addr) throws IOException {
+			checkOpen();
+			if (local != null) {
+				throw new IOException("Already bound");
+			}
+			local = bound = DNSQuerySimulatedNetwork.this.bind(udpPorts, (InetSocketAddress)addr);
+			return this;
+		}
+
+		public <T> DatagramChannel setOption(SocketOption<T> name, T value) throws IOException {
+			checkOpen();
+			options.put(name, value);
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T> T getOption(SocketOption<T> name) throws IOException {
+			checkOpen();
+			return (T)options.get(name);
+		}
+
+		public Set<SocketOption<?>> supportedOptions() {
+			return new HashSet<SocketOption<?>>(Arrays.<SocketOption<?>>asList(StandardSocketOptions.SO_SNDBUF,
+					StandardSocketOptions.SO_RCVBUF, StandardSocketOptions.SO_REUSEADDR, StandardSocketOptions.IP_TOS));
+		}
+
+		public MembershipKey join(InetAddress group, NetworkInterface interf) {
+			throw new UnsupportedOperationException();
+		}
+
+		public MembershipKey join(InetAddress group, NetworkInterface interf, InetAddress source) {
+			throw new UnsupportedOperationException();
+		}
+
+		public DatagramSocket socket() {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean isConnected() {
+			return remote != null;
+		}
+
+		public DatagramChannel connect(SocketAddress addr) throws IOException {
+			checkOpen();
+			remote = (InetSocketAddress)addr;
+			if (local == null) {
+				bind(null);
+			}
+			if (local.getAddress() == null || local.getAddress().isAnyLocalAddress()) {
+				local = new InetSocketAddress(getSourceAddress(remote.getAddress()), local.getPort());
+			}
+			return this;
+		}
+
+		public DatagramChannel disconnect() {
+			remote = null;
+			return this;
+		}
+
+		public SocketAddress getRemoteAddress() throws IOException {
+			checkOpen();
+			return remote;
+		}
+
+		public SocketAddress getLocalAddress() throws IOException {
+			checkOpen();
+			return local;
+		}
+
+		public SocketAddress receive(ByteBuffer dst) throws IOException {
+			byte[] datagram;
+			checkOpen();
+			if (error != null) {
+				throwError();
+			}
+			if ((datagram = received.poll()) == null) {
+				return null;
+			}
+			dst.put(datagram, 0, Math.min(datagram.length, dst.remaining()));
+			return senders.poll();
+		}
+
+		public int send(ByteBuffer src, SocketAddress target) throws IOException {
+			final InetSocketAddress dst = (InetSocketAddress)target;
+			final byte[] query;
+			final byte[] response;
+			Profile profile;
+			double delay;
+			int outcome;
+
+			checkOpen();
+			if (local == null) {
+				bind(null);
+			}
+			query = remove(src);
+			profile = getProfile(dst.getAddress());
+			delay = profile.getLatency().sample(random);
+			outcome = draw(profile);
+			if (outcome == LOST) {
+				return query.length;
+			}
+			queriesReceived++;
+			if (outcome == RESET) {
+				schedule(delay, new Runnable() {
+					public void run() {
+						if (isOpen()) {
+							error = new PortUnreachableException();
+							changed(SimulatedDatagramChannel.this);
+						}
+					}
+				});
+				return query.length;
+			}
+			response = outcome == TRUNCATED ? truncate(query) : responder.respond(query, dst, false);
+			if (response != null) {
+				schedule(delay, new Runnable() {
+					public void run() {
+						if (isOpen() && (remote == null || remote.equals(dst))) {
+							received.add(response);
+							senders.add(dst);
+							changed(SimulatedDatagramChannel.this);
+						}
+					}
+				});
+			}
+			return query.length;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			if (remote == null) {
+				throw new NotYetConnectedException();
+			}
+			if (receive(dst) == null) {
+				return 0;
+			}
+			return dst.position() - start;
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return read(dsts[offset]);
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			if (remote == null) {
+				throw new NotYetConnectedException();
+			}
+			return send(src, remote);
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			ByteArrayOutputStream datagram = new ByteArrayOutputStream();
+			for (int i = offset; i < offset + length; i++) {
+				byte[] data = remove(srcs[i]);
+				datagram.write(data, 0, data.length);
+			}
+			return write(ByteBuffer.wrap(datagram.toByteArray()));
+		}
+
+		protected void implCloseSelectableChannel() {
+			if (bound != null) {
+				udpPorts.remove(bound);
+			}
+			openSockets--;
+		}
+
+		protected void implConfigureBlocking(boolean block) {
+		}
+
+		private void checkOpen() throws ClosedChannelException {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		private void throwError() throws IOException {
+			IOException e = error;
+			error = null;
+			throw e;
+		}
+
+		/* the header and question of `query`, marked as a truncated response */
+		private byte[] truncate(byte[] query) {
+			byte[] ret = Arrays.copyOf(query, query.length);
+			if (ret.length > 2) {
+				ret[2] |= (byte)0x82;
+			}
+			return ret;
+		}
+	}
+
+	private class SimulatedSocketChannel extends SocketChannel implements SimulatedChannel {
+		private final HashMap<SocketOption<?>, Object> options = new HashMap<>();
+		private InetSocketAddress local = null;
+		private InetSocketAddress bound = null;
+		private InetSocketAddress remote = null;
+		private boolean connectPending = false;
+		private boolean established = false;
+		private boolean connected = false;
+		private IOException connectError = null;
+		private boolean peerClosed = false;
+		private boolean inputShutdown = false;
+		private boolean outputShutdown = false;
+
+		private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		private final LinkedList<ByteBuffer> received = new LinkedList<>();
+
+		SimulatedSocketChannel() {
+			super(provider);
+		}
+
+		public int readyOps() {
+			int ops = 0;
+			if (connectPending && (established || connectError != null)) {
+				ops |= SelectionKey.OP_CONNECT;
+			}
+			if (connected) {
+				ops |= SelectionKey.OP_WRITE;
+				if (!received.isEmpty() || peerClosed) {
+					ops |= SelectionKey.OP_READ;
+				}
+			}
+			return ops;
+		}
+
+		public SocketChannel bind(SocketAddress addr) throws IOException {
+			checkOpen();
+			if (local != null) {
+				throw new IOException("Already bound");
+			}
+			local = bound = DNSQuerySimulatedNetwork.this.bind(tcpPorts, (InetSocketAddress)addr);
+			return this;
+		}
+
+		public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+			checkOpen();
+			options.put(name, value);
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T> T getOption(SocketOption<T> name) throws IOException {
+			checkOpen();
+			return (T)options.get(name);
+		}
+
+		public Set<SocketOption<?>> supportedOptions() {
+			return new HashSet<SocketOption<?>>(Arrays.<SocketOption<?>>asList(StandardSocketOptions.SO_SNDBUF,
+					StandardSocketOptions.SO_RCVBUF, StandardSocketOptions.SO_REUSEADDR, StandardSocketOptions.SO_LINGER,
+					StandardSocketOptions.TCP_NODELAY, StandardSocketOptions.SO_KEEPALIVE));
+		}
+
+		public SocketChannel shutdownInput() {
+			inputShutdown = true;
+			return this;
+		}
+
+		public SocketChannel shutdownOutput() {
+			outputShutdown = true;
+			return this;
+		}
+
+		public Socket socket() {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+
+		public boolean isConnectionPending() {
+			return connectPending;
+		}
+
+		/**
+		 * Starts connecting; the handshake takes one round trip, unless it is
+		 * lost, in which case it never completes, or refused.
+		 */
+		public boolean connect(SocketAddress addr) throws IOException {
+			Profile profile;
+			double delay;
+			int outcome;
+
+			checkOpen();
+			if (connected) {
+				throw new AlreadyConnectedException();
+			}
+			if (connectPending) {
+				throw new ConnectionPendingException();
+			}
+			remote = (InetSocketAddress)addr;
+			if (local == null) {
+				bind(null);
+			}
+			if (local.getAddress() == null || local.getAddress().isAnyLocalAddress()) {
+				local = new InetSocketAddress(getSourceAddress(remote.getAddress()), local.getPort());
+			}
+			connectPending = true;
+
+			profile = getProfile(remote.getAddress());
+			delay = profile.getLatency().sample(random);
+			outcome = draw(profile);
+			if (outcome == LOST) {
+				return false;
+			}
+			schedule(delay, outcome == RESET ? new Runnable() {
+				public void run() {
+					connectError = new ConnectException("Connection refused");
+					changed(SimulatedSocketChannel.this);
+				}
+			} : new Runnable() {
+				public void run() {
+					established = true;
+					changed(SimulatedSocketChannel.this);
+				}
+			});
+			return false;
+		}
+
+		public boolean finishConnect() throws IOException {
+			IOException e;
+			checkOpen();
+			if (connected) {
+				return true;
+			}
+			if (!connectPending) {
+				throw new NoConnectionPendingException();
+			}
+			if (connectError != null) {
+				e = connectError;
+				connectError = null;
+				connectPending = false;
+				throw e;
+			}
+			if (!established) {
+				return false;
+			}
+			connectPending = false;
+			connected = true;
+			changed(this);
+			return true;
+		}
+
+		public SocketAddress getRemoteAddress() throws IOException {
+			checkOpen();
+			return remote;
+		}
+
+		public SocketAddress getLocalAddress() throws IOException {
+			checkOpen();
+			return local;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			ByteBuffer src;
+			int n = 0;
+
+			checkOpen();
+			if (!connected) {
+				throw new NotYetConnectedException();
+			}
+			if (inputShutdown) {
+				return -1;
+			}
+			while (dst.hasRemaining() && (src = received.peek()) != null) {
+				while (dst.hasRemaining() && src.hasRemaining()) {
+					dst.put(src.get());
+					n++;
+				}
+				if (!src.hasRemaining()) {
+					received.poll();
+				}
+			}
+			if (n == 0 && peerClosed && received.isEmpty()) {
+				return -1;
+			}
+			return n;
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			long n = 0;
+			int r;
+			for (int i = offset; i < offset + length; i++) {
+				if ((r = read(dsts[i])) < 0) {
+					return n > 0 ? n : -1;
+				}
+				n += r;
+			}
+			return n;
+		}
+
+		/**
+		 * Takes the data written, and answers each complete, length-prefixed
+		 * message in it.
+		 */
+		public int write(ByteBuffer src) throws IOException {
+			byte[] data;
+			byte[] buf;
+			int len;
+
+			checkOpen();
+			if (!connected) {
+				throw new NotYetConnectedException();
+			}
+			if (outputShutdown || peerClosed) {
+				throw new IOException("Broken pipe");
+			}
+			data = remove(src);
+			written.write(data, 0, data.length);
+			buf = written.toByteArray();
+			while (buf.length >= 2 && buf.length >= 2 + (len = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff))) {
+				answer(Arrays.copyOfRange(buf, 2, 2 + len));
+				buf = Arrays.copyOfRange(buf, 2 + len, buf.length);
+			}
+			written.reset();
+			written.write(buf, 0, buf.length);
+			return data.length;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long n = 0;
+			for (int i = offset; i < offset + length; i++) {
+				n += write(srcs[i]);
+			}
+			return n;
+		}
+
+		private void answer(byte[] query) {
+			final byte[] response;
+			final ByteBuffer framed;
+			Profile profile = getProfile(remote.getAddress());
+			double delay = profile.getLatency().sample(random);
+			int outcome = draw(profile);
+
+			if (outcome == LOST) {
+				return;
+			}
+			queriesReceived++;
+			if (outcome == RESET) {
+				schedule(delay, new Runnable() {
+					public void run() {
+						peerClosed = true;
+						changed(SimulatedSocketChannel.this);
+					}
+				});
+				return;
+			}
+			if ((response = responder.respond(query, remote, true)) == null) {
+				return;
+			}
+			framed = ByteBuffer.allocate(response.length + 2);
+			framed.putShort((short)response.length);
+			framed.put(response);
+			framed.flip();
+			schedule(delay, new Runnable() {
+				public void run() {
+					received.add(framed);
+					changed(SimulatedSocketChannel.this);
+				}
+			});
+		}
+
+		protected void implCloseSelectableChannel() {
+			if (bound != null) {
+				tcpPorts.remove(bound);
+			}
+			openSockets--;
+		}
+
+		protected void implConfigureBlocking(boolean block) {
+		}
+
+		private void checkOpen() throws ClosedChannelException {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A pool of UDP sockets, opened, made non-blocking and bound to random ports
+ * ahead of time, on a thread of its own, so that a query can be sent without
+ * waiting for all that.  Sockets are kept for each address they may be bound
+ * to: the IPv4 and IPv6 wildcard addresses, and any others added, e.g., those
+ * of a DNSQuerySourcePool.
+ *
+ * Sockets taken are replaced once no more have been taken for REFILL_DELAY
+ * milliseconds, so that replacing them doesn't compete with sending the
+ * queries that took them, unless fewer than a quarter are left.
+ *
+ * So that ports remain unpredictable, the oldest socket is handed out first,
+ * and sockets that have sat unused for longer than the maximum idle time are
+ * closed and replaced.  Pooled sockets count against the limit on open files.
+ *
+ * A pool may be shared by several managers, but is used only by those on the
+ * real network (DNSQueryNetwork.SYSTEM).
+ */
+public class DNSQuerySocketPool {
+	public final static int DEFAULT_SIZE = 32;
+	public final static long DEFAULT_MAX_IDLE = 10000;
+
+	public final static long REFILL_DELAY = 100;
+
+	private final static int MAX_PORT_BIND_ATTEMPTS = 10;
+
+	private final int size;
+	private final long maxIdle;
+	private final Thread thread;
+
+	/* the sockets bound to each address, oldest first, and the time at which
+	 * each was bound */
+	private final LinkedHashMap<InetAddress, LinkedList<DatagramChannel>> sockets = new LinkedHashMap<>();
+	private final LinkedHashMap<DatagramChannel, Long> boundTimes = new LinkedHashMap<>();
+
+	private boolean closed = false;
+	private boolean low = true;
+	private long lastTaken = 0;
+
+	private long taken = 0;
+	private long missed = 0;
+	private long expired = 0;
+
+	public DNSQuerySocketPool() {
+		this(DEFAULT_SIZE, DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * @param size - the number of sockets to keep ready for each address
+	 * @param maxIdle - the number of milliseconds after which an unused
+	 * socket is replaced
+	 */
+	public DNSQuerySocketPool(int size, long maxIdle) {
+		this.size = size;
+		this.maxIdle = maxIdle;
+		try {
+			sockets.put(InetAddress.getByAddress(new byte[4]), new LinkedList<DatagramChannel>());
+			sockets.put(InetAddress.getByAddress(new byte[16]), new LinkedList<DatagramChannel>());
+		} catch (UnknownHostException e) {
+			throw new RuntimeException(e);
+		}
+		thread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "DNSQuerySocketPool");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Keeps sockets bound to `addr` ready, as well as those bound to the
+	 * wildcard addresses.
+	 */
+	public synchronized void addAddress(InetAddress addr) {
+		if (!sockets.containsKey(addr)) {
+			sockets.put(addr, new LinkedList<DatagramChannel>());
+			low = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the number of sockets handed out
+	 */
+	public synchronized long getTaken() {
+		return taken;
+	}
+
+	/**
+	 * @return the number of times a socket was wanted but none was ready
+	 */
+	public synchronized long getMissed() {
+		return missed;
+	}
+
+	/**
+	 * @return the number of sockets closed for having been idle too long
+	 */
+	public synchronized long getExpired() {
+		return expired;
+	}
+
+	/**
+	 * Takes a socket bound to `src`, or to the wildcard address of the family
+	 * of `dst`, if `src` is null or the wildcard address.
+	 *
+	 * @return the socket, or null if none is ready
+	 */
+	synchronized DatagramChannel take(InetAddress src, InetAddress dst) {
+		LinkedList<DatagramChannel> ready;
+		DatagramChannel ret;
+		long now;
+
+		if (closed) {
+			return null;
+		}
+		if (src == null || src.isAnyLocalAddress()) {
+			src = getWildcard(dst);
+		}
+		if ((ready = sockets.get(src)) == null) {
+			return null;
+		}
+		now = System.currentTimeMillis();
+		while ((ret = ready.poll()) != null) {
+			if (now - boundTimes.remove(ret) <= maxIdle) {
+				break;
+			}
+			expire(ret);
+		}
+		lastTaken = now;
+		if (ready.size() < size / 4) {
+			low = true;
+			notifyAll();
+		}
+		if (ret == null) {
+			missed++;
+		} else {
+			taken++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Stops refilling the pool, and closes the sockets in it.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (DatagramChannel channel : boundTimes.keySet()) {
+				closeQuietly(channel);
+			}
+			boundTimes.clear();
+			for (LinkedList<DatagramChannel> ready : sockets.values()) {
+				ready.clear();
+			}
+		}
+	}
+
+	private InetAddress getWildcard(InetAddress dst) {
+		for (InetAddress addr : sockets.keySet()) {
+			if (addr.isAnyLocalAddress() && (addr instanceof Inet6Address) == (dst instanceof Inet6Address)) {
+				return addr;
+			}
+		}
+		return null;
+	}
+
+	private void expire(DatagramChannel channel) {
+		expired++;
+		closeQuietly(channel);
+	}
+
+	private static void closeQuietly(DatagramChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Replaces expired sockets, and those taken, once the pool is running low,
+	 * or no more have been taken for REFILL_DELAY milliseconds.
+	 */
+	private void loop() {
+		long now;
+		long wait;
+
+		while (true) {
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						return;
+					}
+					expireIdle();
+					now = System.currentTimeMillis();
+					if (low || (isShort() && now - lastTaken >= REFILL_DELAY)) {
+						break;
+					}
+					wait = isShort() ? REFILL_DELAY - (now - lastTaken) : maxIdle / 4;
+					try {
+						wait(Math.max(wait, 1));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				low = false;
+			}
+			refill();
+		}
+	}
+
+	/**
+	 * @return true if any address has fewer sockets ready than it should
+	 */
+	private boolean isShort() {
+		for (LinkedList<DatagramChannel> ready : sockets.values()) {
+			if (ready.size() < size) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* closes the sockets that have been idle too long, oldest first */
+	private void expireIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<DatagramChannel, Long>> iterator = boundTimes.entrySet().iterator();
+		Map.Entry<DatagramChannel, Long> e;
+
+		while (iterator.hasNext()) {
+			e = iterator.next();
+			if (now - e.getValue() > maxIdle) {
+				iterator.remove();
+				for (LinkedList<DatagramChannel> ready : sockets.values()) {
+					ready.remove(e.getKey());
+				}
+				expire(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Opens sockets, outside the lock, until every address has its fill.  An
+	 * address to which sockets can't be bound (e.g., the IPv6 wildcard on a
+	 * host without IPv6) is skipped until the next round.
+	 */
+	private void refill() {
+		InetAddress[] addrs;
+		DatagramChannel channel;
+
+		synchronized (this) {
+			addrs = sockets.keySet().toArray(new InetAddress[sockets.size()]);
+		}
+		for (InetAddress addr : addrs) {
+			while (true) {
+				synchronized (this) {
+					if (closed || !sockets.containsKey(addr) || sockets.get(addr).size() >= size) {
+						break;
+					}
+				}
+				try {
+					channel = open(addr);
+				} catch (IOException e) {
+					break;
+				}
+				synchronized (this) {
+					if (closed) {
+						closeQuietly(channel);
+						return;
+					}
+					sockets.get(addr).add(channel);
+					boundTimes.put(channel, System.currentTimeMillis());
+				}
+			}
+		}
+	}
+
+	private static DatagramChannel open(InetAddress addr) throws IOException {
+		DatagramChannel channel = DNSQueryNetwork.SYSTEM.openDatagramChannel();
+		int i = 0;
+		try {
+			channel.configureBlocking(false);
+			while (true) {
+				try {
+					channel.bind(new InetSocketAddress(addr, DNSQueryNetwork.SYSTEM.nextPort()));
+					return channel;
+				} catch (BindException e) {
+					if (++i > MAX_PORT_BIND_ATTEMPTS || !e.getMessage().contains("ddress already in use")) {
+						throw e;
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/**
+ * A pool of local addresses from which queries that don't specify a source
+ * are sent, so that they aren't all confined to the ports of one address.
+ * Each query is sent from whichever address of its destination's family has
+ * the fewest queries in flight, taking turns among those with equally few,
+ * and the address is reported as the query's source.  Queries to a family
+ * with no address in the pool are sent from the wildcard address, as they
+ * would be without a pool.
+ *
+ * A pool may be shared by several managers, and changed at any time.
+ * DNS-over-TLS queries are not spread across the pool, since they share
+ * connections.
+ */
+public class DNSQuerySourcePool {
+	/* the addresses, and the number of queries in flight from each */
+	private final ArrayList<InetAddress> addrs = new ArrayList<>();
+	private final ArrayList<Integer> inFlight = new ArrayList<>();
+
+	/* the index after that of the address last picked, from which the next
+	 * search starts */
+	private int next = 0;
+
+	public DNSQuerySourcePool() {
+	}
+
+	public DNSQuerySourcePool(InetAddress[] addrs) {
+		for (InetAddress addr : addrs) {
+			add(addr);
+		}
+	}
+
+	public synchronized void add(InetAddress addr) {
+		if (!addrs.contains(addr)) {
+			addrs.add(addr);
+			inFlight.add(0);
+		}
+	}
+
+	/**
+	 * Removes `addr` from the pool.  Queries already in flight from it are
+	 * unaffected.
+	 */
+	public synchronized void remove(InetAddress addr) {
+		int i = addrs.indexOf(addr);
+		if (i >= 0) {
+			addrs.remove(i);
+			inFlight.remove(i);
+		}
+	}
+
+	public synchronized InetAddress[] getAddresses() {
+		return addrs.toArray(new InetAddress[addrs.size()]);
+	}
+
+	/**
+	 * @return the number of queries in flight from `addr`
+	 */
+	public synchronized int getInFlight(InetAddress addr) {
+		int i = addrs.indexOf(addr);
+		return i >= 0 ? inFlight.get(i) : 0;
+	}
+
+	/**
+	 * Picks the address from which to send a query to `dst`, and counts the
+	 * query as in flight from it.
+	 *
+	 * @return the address, or null if there is none of the same family
+	 */
+	synchronized InetAddress acquire(InetAddress dst) {
+		boolean ipv6 = dst instanceof Inet6Address;
+		int min = Integer.MAX_VALUE;
+		int best = -1;
+		int j;
+
+		for (int i = 0; i < addrs.size(); i++) {
+			j = (next + i) % addrs.size();
+			if ((addrs.get(j) instanceof Inet6Address) == ipv6 && inFlight.get(j) < min) {
+				best = j;
+				min = inFlight.get(j);
+			}
+		}
+		if (best < 0) {
+			return null;
+		}
+		inFlight.set(best, min + 1);
+		next = best + 1;
+		return addrs.get(best);
+	}
+
+	synchronized void release(InetAddress addr) {
+		int i = addrs.indexOf(addr);
+		if (i >= 0 && inFlight.get(i) > 0) {
+			inFlight.set(i, inFlight.get(i) - 1);
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import dnsviz.util.ByteBufferPool;
+import dnsviz.util.SSLEngineChannel;
+
+/**
+ * A DNS-over-TLS connection to one server, shared by the TLS queries sent to
+ * it.  Queries are pipelined: each is written as soon as the handshake has
+ * completed and the queries ahead of it have been written, without waiting
+ * for responses, which may arrive in any order and are matched to their
+ * queries by message ID.
+ *
+ * The channel is registered with the manager's Selector with the connection
+ * as the key's attachment.
+ */
+class DNSQueryTLSConnection {
+	private final static String[] APPLICATION_PROTOCOLS = new String[] { "dot" };
+
+	private final static int STATE_CONNECTING = 0;
+	private final static int STATE_HANDSHAKE = 1;
+	private final static int STATE_OPEN = 2;
+	private final static int STATE_CLOSED = 3;
+
+	private final InetAddress dst;
+	private final int dport;
+	private final InetAddress src;
+	private final int sport;
+	private final DNSQueryNetwork network;
+
+	private SocketChannel channel = null;
+	private SSLEngine engine = null;
+	private SSLEngineChannel tls = null;
+	private SelectionKey key = null;
+	private ByteBufferPool pool = null;
+	private InetSocketAddress localAddress = null;
+	private int state = STATE_CONNECTING;
+
+	// the queries awaiting responses, by message ID, and the requests not yet
+	// completely written, in the order they are to be written
+	private final HashMap<Integer, DNSQueryTransportHandlerTLS> queries = new HashMap<>();
+	private final LinkedList<ByteBuffer> unwritten = new LinkedList<>();
+
+	// the length prefix and body of the response being read
+	private final ByteBuffer lengthBuf = ByteBuffer.allocate(2);
+	private ByteBuffer responseBuf = null;
+
+	private long connectStart = 0;
+
+	// the network's nanoTime() at which the socket was created, bound and
+	// connected, which are traced for the queries that wait for them
+	private long createdTime = 0;
+	private long boundTime = 0;
+	private long connectedTime = 0;
+	private long idleSince = 0;
+
+	DNSQueryTLSConnection(InetAddress dst, int dport, InetAddress src, int sport, DNSQueryNetwork network) {
+		this.dst = dst;
+		this.dport = dport;
+		this.src = src;
+		this.sport = sport;
+		this.network = network;
+	}
+
+	/**
+	 * @return true if `qh` may be sent over this connection: it is going to the
+	 * same place, from the same place, and no query with the same message ID is
+	 * outstanding
+	 */
+	boolean canAccept(DNSQueryTransportHandlerTLS qh) {
+		return state != STATE_CLOSED &&
+			dst.equals(qh.getDestination()) && dport == qh.getDPort() &&
+			(src == null ? qh.getSource() == null : src.equals(qh.getSource())) &&
+			sport == qh.getSPort() &&
+			!queries.containsKey(qh.getQueryId());
+	}
+
+	/**
+	 * Starts connecting, and registers the channel with `selector`.  The TLS
+	 * session is cached by `context` under the destination address and port,
+	 * so that later connections to the same server resume it.
+	 */
+	void open(Selector selector, SSLContext context, ByteBufferPool pool) throws IOException {
+		this.pool = pool;
+		connectStart = network.currentTimeMillis();
+		idleSince = connectStart;
+
+		// the server is known only by its address, so its certificate chain is
+		// validated, but not its name
+		engine = SSLEngineChannel.createClientEngine(context, dst.getHostAddress(), dport, APPLICATION_PROTOCOLS, null);
+
+		channel = network.openSocketChannel();
+		createdTime = network.nanoTime();
+		try {
+			channel.configureBlocking(false);
+			if (src != null || sport > 0) {
+				channel.bind(new InetSocketAddress(src, sport));
+			}
+			boundTime = network.nanoTime();
+			key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			if (channel.connect(new InetSocketAddress(dst, dport))) {
+				connected();
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void connected() throws IOException {
+		connectedTime = network.nanoTime();
+		localAddress = (InetSocketAddress)channel.getLocalAddress();
+		tls = new SSLEngineChannel(channel, engine, pool);
+		state = STATE_HANDSHAKE;
+	}
+
+	InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	boolean isOpen() {
+		return state == STATE_OPEN;
+	}
+
+	boolean isClosed() {
+		return state == STATE_CLOSED;
+	}
+
+	/**
+	 * @return true if no queries are using the connection
+	 */
+	boolean isIdle() {
+		return queries.isEmpty() && unwritten.isEmpty();
+	}
+
+	long getIdleSince() {
+		return idleSince;
+	}
+
+	/**
+	 * Queues `qh` to be written as soon as the connection allows.
+	 */
+	void add(DNSQueryTransportHandlerTLS qh) throws IOException {
+		qh.connection = this;
+		qh.pendingReq = qh.req.duplicate();
+		queries.put(qh.getQueryId(), qh);
+		unwritten.add(qh.pendingReq);
+		if (state == STATE_OPEN) {
+			try {
+				write();
+			} catch (IOException e) {
+				// the failure is picked up when the channel is next selected
+			}
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Stops waiting for a response to `qh`.  A request that has been partly
+	 * written is still finished, so as not to corrupt the stream.
+	 */
+	void remove(DNSQueryTransportHandlerTLS qh) {
+		Iterator<ByteBuffer> iterator;
+		if (queries.get(qh.getQueryId()) == qh) {
+			queries.remove(qh.getQueryId());
+		}
+		if (qh.pendingReq != null && qh.pendingReq.position() == 0) {
+			iterator = unwritten.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next() == qh.pendingReq) {
+					iterator.remove();
+					break;
+				}
+			}
+		}
+		qh.pendingReq = null;
+		if (isIdle()) {
+			idleSince = network.currentTimeMillis();
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Performs the I/O for which the channel has been selected.  Queries that
+	 * are answered, or that fail along with the connection, are added to
+	 * `done`.
+	 */
+	void handle(SelectionKey key, LinkedList<DNSQueryTransportHandlerTLS> done) {
+		try {
+			if (state == STATE_CONNECTING) {
+				if (!key.isConnectable() || !channel.finishConnect()) {
+					return;
+				}
+				connected();
+			}
+			if (read(done)) {
+				write();
+			}
+		} catch (SSLException e) {
+			fail(null, Errno.EPROTO, done);
+		} catch (IOException e) {
+			fail(e, Errno.ECONNRESET, done);
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Reads and dispatches whatever responses are available, advancing the
+	 * handshake as needed.
+	 *
+	 * @return false if the connection was closed
+	 */
+	private boolean read(LinkedList<DNSQueryTransportHandlerTLS> done) throws IOException {
+		int bytesRead;
+		int len;
+
+		while (state != STATE_CLOSED) {
+			bytesRead = tls.read(responseBuf != null ? responseBuf : lengthBuf);
+			checkHandshake();
+			if (bytesRead < 0) {
+				fail(null, Errno.ECONNRESET, done);
+				return false;
+			}
+			if (bytesRead == 0) {
+				break;
+			}
+
+			if (responseBuf == null && !lengthBuf.hasRemaining()) {
+				len = ((lengthBuf.get(0) & 0xff) << 8) | (lengthBuf.get(1) & 0xff);
+				responseBuf = ByteBuffer.allocate(len);
+				lengthBuf.clear();
+			}
+			if (responseBuf != null && !responseBuf.hasRemaining()) {
+				responseReceived(responseBuf, done);
+				responseBuf = null;
+			}
+		}
+		return state != STATE_CLOSED;
+	}
+
+	private void responseReceived(ByteBuffer buf, LinkedList<DNSQueryTransportHandlerTLS> done) {
+		DNSQueryTransportHandlerTLS qh;
+		int id;
+
+		// anything that isn't the response to an outstanding query (e.g., a late
+		// response to one that has timed out) is ignored
+		if (buf.limit() < 12 || (buf.get(2) & 0x80) == 0) {
+			return;
+		}
+		id = ((buf.get(0) & 0xff) << 8) | (buf.get(1) & 0xff);
+		if ((qh = queries.get(id)) == null) {
+			return;
+		}
+		qh.trace(DNSQueryTrace.FIRST_READ);
+		qh.setResponse(buf);
+		qh.cleanup();
+		done.add(qh);
+	}
+
+	private void checkHandshake() {
+		long now;
+		if (state != STATE_HANDSHAKE || !tls.isHandshakeComplete()) {
+			return;
+		}
+		state = STATE_OPEN;
+
+		// attribute the time spent connecting to the queries that waited for it
+		now = network.currentTimeMillis();
+		for (DNSQueryTransportHandlerTLS qh : queries.values()) {
+			qh.setHandshakeTime(now - Math.max(qh.startTime, connectStart));
+			qh.trace[DNSQueryTrace.SOCKET_CREATED] = createdTime;
+			qh.trace[DNSQueryTrace.BOUND] = boundTime;
+			qh.trace[DNSQueryTrace.CONNECTED] = connectedTime;
+		}
+	}
+
+	private void write() throws IOException {
+		ByteBuffer buf;
+		DNSQueryTransportHandlerTLS qh;
+		if (state != STATE_OPEN) {
+			return;
+		}
+		while ((buf = unwritten.peek()) != null) {
+			tls.write(buf);
+			qh = getWriter(buf);
+			if (qh != null && buf.position() > 0) {
+				qh.trace(DNSQueryTrace.FIRST_WRITE);
+			}
+			if (buf.hasRemaining()) {
+				break;
+			}
+			if (qh != null) {
+				qh.trace(DNSQueryTrace.LAST_WRITE);
+			}
+			unwritten.poll();
+		}
+		tls.flush();
+	}
+
+	/**
+	 * @return the query whose request `buf` is, or null if it has been removed
+	 */
+	private DNSQueryTransportHandlerTLS getWriter(ByteBuffer buf) {
+		DNSQueryTransportHandlerTLS qh;
+		if (buf.limit() < 4) {
+			return null;
+		}
+		qh = queries.get(((buf.get(2) & 0xff) << 8) | (buf.get(3) & 0xff));
+		return qh != null && qh.pendingReq == buf ? qh : null;
+	}
+
+	private void updateInterestOps() {
+		int ops;
+		if (state == STATE_CLOSED || key == null || !key.isValid()) {
+			return;
+		}
+		if (state == STATE_CONNECTING) {
+			ops = SelectionKey.OP_CONNECT;
+		} else if (tls.needsWrite() || (state == STATE_OPEN && !unwritten.isEmpty())) {
+			ops = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		} else {
+			ops = SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Closes the connection, and fails every query still using it with the
+	 * error `ex`, if it can be identified, or else `errno`.
+	 */
+	private void fail(IOException ex, int errno, LinkedList<DNSQueryTransportHandlerTLS> done) {
+		close();
+		for (DNSQueryTransportHandlerTLS qh : new ArrayList<>(queries.values())) {
+			if (ex != null) {
+				try {
+					qh.setError(ex);
+				} catch (IOException e) {
+					/* not an error that setError() knows; use errno instead */
+				}
+			}
+			if (!qh.hasError()) {
+				qh.setError(errno);
+			}
+			qh.cleanup();
+			done.add(qh);
+		}
+	}
+
+	void close() {
+		state = STATE_CLOSED;
+		try {
+			if (tls != null) {
+				tls.close();
+			} else if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.util.Arrays;
+
+/**
+ * The queries in progress, ordered by expiration.
+ *
+ * Each query occupies a slot, and the per-query state the manager consults
+ * in its loop (the expiration, and the query's place in the ordering) is held
+ * in primitive arrays indexed by slot, rather than in the handlers.  The
+ * ordering is a binary heap of slots that also tracks where each slot is in
+ * the heap, so that a query finishing early (as most do) is removed in
+ * logarithmic time, where a PriorityQueue would search the whole queue.
+ */
+class DNSQueryTable {
+	private final static int INITIAL_CAPACITY = 16;
+
+	// by slot
+	private DNSQueryTransportHandler[] handlers;
+	private long[] expirations;
+	private int[] heapIndex;
+
+	// the heap of slots, ordered by expiration
+	private int[] heap;
+	private int size = 0;
+
+	// slots not in use
+	private int[] freeSlots;
+	private int freeCount;
+
+	DNSQueryTable() {
+		handlers = new DNSQueryTransportHandler[INITIAL_CAPACITY];
+		expirations = new long[INITIAL_CAPACITY];
+		heapIndex = new int[INITIAL_CAPACITY];
+		heap = new int[INITIAL_CAPACITY];
+		freeSlots = new int[INITIAL_CAPACITY];
+		for (int i = 0; i < INITIAL_CAPACITY; i++) {
+			freeSlots[i] = INITIAL_CAPACITY - 1 - i;
+		}
+		freeCount = INITIAL_CAPACITY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	private void grow() {
+		int oldCapacity = handlers.length;
+		int capacity = oldCapacity * 2;
+
+		handlers = Arrays.copyOf(handlers, capacity);
+		expirations = Arrays.copyOf(expirations, capacity);
+		heapIndex = Arrays.copyOf(heapIndex, capacity);
+		heap = Arrays.copyOf(heap, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+		for (int i = capacity - 1; i >= oldCapacity; i--) {
+			freeSlots[freeCount++] = i;
+		}
+	}
+
+	void add(DNSQueryTransportHandler qh) {
+		int slot;
+
+		if (qh.slot >= 0) {
+			return;
+		}
+		if (freeCount == 0) {
+			grow();
+		}
+		slot = freeSlots[--freeCount];
+		qh.slot = slot;
+		handlers[slot] = qh;
+		expirations[slot] = qh.getExpiration();
+
+		heap[size] = slot;
+		heapIndex[slot] = size;
+		siftUp(size++);
+	}
+
+	/**
+	 * @return false if `qh` was not in the table
+	 */
+	boolean remove(DNSQueryTransportHandler qh) {
+		int slot = qh.slot;
+		int i;
+		int last;
+
+		if (slot < 0 || handlers[slot] != qh) {
+			return false;
+		}
+		i = heapIndex[slot];
+		if (i != --size) {
+			// fill the hole with the last entry, and restore the heap around it
+			last = heap[size];
+			move(last, i);
+			siftDown(i);
+			siftUp(heapIndex[last]);
+		}
+
+		handlers[slot] = null;
+		qh.slot = -1;
+		freeSlots[freeCount++] = slot;
+		return true;
+	}
+
+	/**
+	 * @return the query that expires first, or null if there is none
+	 */
+	DNSQueryTransportHandler peek() {
+		return size == 0 ? null : handlers[heap[0]];
+	}
+
+	/**
+	 * @return the time at which the first query expires, which must exist
+	 */
+	long peekExpiration() {
+		return expirations[heap[0]];
+	}
+
+	DNSQueryTransportHandler poll() {
+		DNSQueryTransportHandler qh = peek();
+		if (qh != null) {
+			remove(qh);
+		}
+		return qh;
+	}
+
+	private void move(int slot, int i) {
+		heap[i] = slot;
+		heapIndex[slot] = i;
+	}
+
+	private void siftUp(int i) {
+		int slot = heap[i];
+		long expiration = expirations[slot];
+		int parent;
+
+		while (i > 0) {
+			parent = (i - 1) >>> 1;
+			if (expirations[heap[parent]] <= expiration) {
+				break;
+			}
+			move(heap[parent], i);
+			i = parent;
+		}
+		move(slot, i);
+	}
+
+	private void siftDown(int i) {
+		int slot = heap[i];
+		long expiration = expirations[slot];
+		int child;
+
+		while ((child = 2 * i + 1) < size) {
+			if (child + 1 < size && expirations[heap[child + 1]] < expirations[heap[child]]) {
+				child++;
+			}
+			if (expiration <= expirations[heap[child]]) {
+				break;
+			}
+			move(heap[child], i);
+			i = child;
+		}
+		move(slot, i);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A party whose batches share a DNSQueryTransportManager with those of
+ * others, e.g., one of several DNSViz servers served by one looking glass.
+ * Queries waiting to be sent are released to tenants in proportion to their
+ * weights, so that a tenant with a very large batch can't hold up one with a
+ * small batch, and no tenant may have more than its quota of queries in
+ * flight, if it has one.
+ *
+ * The weight and quota may be changed at any time.  The counters are
+ * maintained by the managers the tenant's batches are submitted to, and may
+ * be read from any thread.
+ */
+public class DNSQueryTenant {
+	public static final int DEFAULT_WEIGHT = 1;
+
+	private final String name;
+	private volatile int weight = DEFAULT_WEIGHT;
+	private volatile int maxInFlight = 0;
+
+	final AtomicLong batchesSubmitted = new AtomicLong();
+	final AtomicLong batchesRejected = new AtomicLong();
+	final AtomicLong queriesSubmitted = new AtomicLong();
+	final AtomicLong queriesCompleted = new AtomicLong();
+	final AtomicLong queriesFailed = new AtomicLong();
+	final AtomicLong queriesTimedOut = new AtomicLong();
+	final AtomicLong queriesCancelled = new AtomicLong();
+	final AtomicInteger queued = new AtomicInteger();
+	final AtomicInteger inFlight = new AtomicInteger();
+
+	public DNSQueryTenant(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	public void setWeight(int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be positive");
+		}
+		this.weight = weight;
+	}
+
+	/**
+	 * @return the number of queries the tenant may have in flight at once, or
+	 * 0 if it is limited only by the manager's admission settings
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException("maxInFlight must not be negative");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	public long getBatchesSubmitted() {
+		return batchesSubmitted.get();
+	}
+
+	/**
+	 * @return the number of batches refused because the manager's queue was
+	 * full
+	 */
+	public long getBatchesRejected() {
+		return batchesRejected.get();
+	}
+
+	public long getQueriesSubmitted() {
+		return queriesSubmitted.get();
+	}
+
+	/**
+	 * @return the number of queries that have finished, including those that
+	 * failed or timed out
+	 */
+	public long getQueriesCompleted() {
+		return queriesCompleted.get();
+	}
+
+	/**
+	 * @return the number of queries that finished with an error other than a
+	 * timeout or cancellation
+	 */
+	public long getQueriesFailed() {
+		return queriesFailed.get();
+	}
+
+	public long getQueriesTimedOut() {
+		return queriesTimedOut.get();
+	}
+
+	/**
+	 * @return the number of queries cut short because their batch was
+	 * cancelled
+	 */
+	public long getQueriesCancelled() {
+		return queriesCancelled.get();
+	}
+
+	/**
+	 * @return the number of queries waiting to be sent
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of queries sent and not yet finished
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public String toString() {
+		return name;
+	}
+}
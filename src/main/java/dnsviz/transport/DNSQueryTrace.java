@@ -0,0 +1,117 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.InetAddress;
+
+/**
+ * The System.nanoTime() at which each stage of a query was reached, as
+ * recorded by a DNSQueryTraceBuffer.  A time of 0 means the stage wasn't
+ * reached, or doesn't apply (e.g., a DNS-over-TLS query sent over a connection
+ * that was already open has no socket stages of its own).
+ */
+public class DNSQueryTrace {
+	public static final int SOCKET_CREATED = 0;
+	public static final int BOUND = 1;
+	public static final int CONNECTED = 2;
+	public static final int FIRST_WRITE = 3;
+	public static final int LAST_WRITE = 4;
+	public static final int FIRST_READ = 5;
+	public static final int COMPLETED = 6;
+	public static final int EVENTS = 7;
+
+	private static final String[] NAMES = {
+		"socket_created", "bound", "connected", "first_write", "last_write", "first_read", "completed"
+	};
+
+	private final long[] times;
+	private final InetAddress dst;
+	private final int dport;
+	private final String transport;
+	private final String err;
+
+	DNSQueryTrace(long[] times, InetAddress dst, int dport, String transport, String err) {
+		this.times = times;
+		this.dst = dst;
+		this.dport = dport;
+		this.transport = transport;
+		this.err = err;
+	}
+
+	/**
+	 * @return the name of `event`, as used in JSON responses
+	 */
+	public static String getEventName(int event) {
+		return NAMES[event];
+	}
+
+	public long getTime(int event) {
+		return times[event];
+	}
+
+	/**
+	 * @return the earliest time recorded, from which the others may be
+	 * measured, or 0 if none was
+	 */
+	public long getFirstTime() {
+		return getFirstTime(times);
+	}
+
+	static long getFirstTime(long[] times) {
+		long ret = 0;
+		for (int i = 0; i < times.length; i++) {
+			if (times[i] != 0 && (ret == 0 || times[i] - ret < 0)) {
+				ret = times[i];
+			}
+		}
+		return ret;
+	}
+
+	public InetAddress getDestination() {
+		return dst;
+	}
+
+	public int getDPort() {
+		return dport;
+	}
+
+	/**
+	 * @return "UDP", "TCP" or "TLS"
+	 */
+	public String getTransport() {
+		return transport;
+	}
+
+	public String getError() {
+		return err;
+	}
+
+	static String getTransport(DNSQueryTransportHandler qh) {
+		if (qh instanceof DNSQueryTransportHandlerTLS) {
+			return "TLS";
+		}
+		if (qh instanceof DNSQueryTransportHandlerTCP) {
+			return "TCP";
+		}
+		return "UDP";
+	}
+}
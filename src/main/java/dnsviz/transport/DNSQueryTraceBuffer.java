@@ -0,0 +1,112 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed-size ring buffer of the traces of the most recently finished
+ * queries.  Add it to a DNSQueryTransportManager with addQueryListener() to
+ * record the manager's queries.  Recording copies a handful of fields into
+ * preallocated arrays, so it can be left on; the oldest traces are
+ * overwritten once the buffer is full.
+ */
+public class DNSQueryTraceBuffer implements DNSQueryListener {
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final int capacity;
+	private final long[] times;
+	private final InetAddress[] dsts;
+	private final int[] dports;
+	private final String[] transports;
+	private final String[] errs;
+
+	/* the number of traces ever recorded; the next is stored at
+	 * count % capacity */
+	private long count = 0;
+
+	public DNSQueryTraceBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DNSQueryTraceBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.times = new long[capacity * DNSQueryTrace.EVENTS];
+		this.dsts = new InetAddress[capacity];
+		this.dports = new int[capacity];
+		this.transports = new String[capacity];
+		this.errs = new String[capacity];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of traces ever recorded, including those since
+	 * overwritten
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized void queryCompleted(DNSQueryTransportHandler qh) {
+		int i = (int)(count++ % capacity);
+		System.arraycopy(qh.trace, 0, times, i * DNSQueryTrace.EVENTS, DNSQueryTrace.EVENTS);
+		dsts[i] = qh.dst;
+		dports[i] = qh.dport;
+		transports[i] = DNSQueryTrace.getTransport(qh);
+		errs[i] = qh.err;
+	}
+
+	/**
+	 * @return the traces in the buffer, oldest first
+	 */
+	public synchronized List<DNSQueryTrace> getTraces() {
+		int n = (int)Math.min(count, capacity);
+		ArrayList<DNSQueryTrace> ret = new ArrayList<>(n);
+		long[] t;
+		int i;
+
+		for (long j = count - n; j < count; j++) {
+			i = (int)(j % capacity);
+			t = new long[DNSQueryTrace.EVENTS];
+			System.arraycopy(times, i * DNSQueryTrace.EVENTS, t, 0, DNSQueryTrace.EVENTS);
+			ret.add(new DNSQueryTrace(t, dsts[i], dports[i], transports[i], errs[i]));
+		}
+		return ret;
+	}
+
+	public synchronized void clear() {
+		count = 0;
+		for (int i = 0; i < capacity; i++) {
+			dsts[i] = null;
+			transports[i] = null;
+			errs[i] = null;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emits a JDK Flight Recorder event, "dnsviz.DNSQuery", as each query
+ * finishes, with the time from the first stage of its trace to each of the
+ * others, so that a recording can break down where the time went.  Add it to
+ * a DNSQueryTransportManager with addQueryListener().
+ *
+ * The events are defined at run time, with jdk.jfr.EventFactory, so that this
+ * builds for, and loads on, JVMs without Flight Recorder; there,
+ * isSupported() returns false and the constructor throws
+ * UnsupportedOperationException.  Events are only emitted while a recording
+ * has them enabled.
+ */
+public class DNSQueryTraceJFR implements DNSQueryListener {
+	public static final String EVENT_NAME = "dnsviz.DNSQuery";
+
+	/* the fields preceding the time of each stage */
+	private final static int FIELD_DESTINATION = 0;
+	private final static int FIELD_DPORT = 1;
+	private final static int FIELD_TRANSPORT = 2;
+	private final static int FIELD_ERROR = 3;
+	private final static int FIELD_SHARED = 4;
+	private final static int FIELD_FIRST_STAGE = 5;
+
+	private final Object factory;
+	private final Method newEvent;
+	private final Method isEnabled;
+	private final Method set;
+	private final Method commit;
+
+	/* an event that is never committed, used to check whether events are
+	 * enabled without creating one for every query */
+	private final Object probe;
+
+	public DNSQueryTraceJFR() {
+		Class<?> annotationElement;
+		Class<?> valueDescriptor;
+		Class<?> eventFactory;
+		Class<?> event;
+		Constructor<?> newAnnotation;
+		Constructor<?> newField;
+		List<Object> annotations = new ArrayList<>();
+		List<Object> fields = new ArrayList<>();
+		List<Object> timespan = new ArrayList<>();
+
+		try {
+			annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			eventFactory = Class.forName("jdk.jfr.EventFactory");
+			event = Class.forName("jdk.jfr.Event");
+			newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+			newField = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME));
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), "DNS Query"));
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "DNSViz" }));
+			timespan.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"));
+
+			fields.add(newField.newInstance(String.class, "destination", new ArrayList<Object>()));
+			fields.add(newField.newInstance(int.class, "dport", new ArrayList<Object>()));
+			fields.add(newField.newInstance(String.class, "transport", new ArrayList<Object>()));
+			fields.add(newField.newInstance(String.class, "error", new ArrayList<Object>()));
+			fields.add(newField.newInstance(String.class, "shared", new ArrayList<Object>()));
+			for (int i = 0; i < DNSQueryTrace.EVENTS; i++) {
+				fields.add(newField.newInstance(long.class, DNSQueryTrace.getEventName(i), timespan));
+			}
+
+			factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			newEvent = eventFactory.getMethod("newEvent");
+			isEnabled = event.getMethod("isEnabled");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+			probe = newEvent.invoke(factory);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new UnsupportedOperationException("JDK Flight Recorder events are not available", e);
+		}
+	}
+
+	/**
+	 * @return whether the JVM supports events defined at run time
+	 */
+	public static boolean isSupported() {
+		try {
+			Class.forName("jdk.jfr.EventFactory");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Emits the event for `qh`.  Stages that weren't reached are given as -1.
+	 */
+	public void queryCompleted(DNSQueryTransportHandler qh) {
+		long first = DNSQueryTrace.getFirstTime(qh.trace);
+		Object event;
+
+		try {
+			if (!(Boolean)isEnabled.invoke(probe)) {
+				return;
+			}
+			event = newEvent.invoke(factory);
+			set.invoke(event, FIELD_DESTINATION, qh.dst != null ? qh.dst.getHostAddress() : null);
+			set.invoke(event, FIELD_DPORT, qh.dport);
+			set.invoke(event, FIELD_TRANSPORT, DNSQueryTrace.getTransport(qh));
+			set.invoke(event, FIELD_ERROR, qh.err);
+			set.invoke(event, FIELD_SHARED, qh.shared);
+			for (int i = 0; i < DNSQueryTrace.EVENTS; i++) {
+				set.invoke(event, FIELD_FIRST_STAGE + i, qh.trace[i] != 0 ? qh.trace[i] - first : -1L);
+			}
+			commit.invoke(event);
+		} catch (ReflectiveOperationException e) {
+			/* the event was defined, so this shouldn't happen; drop it */
+		}
+	}
+}
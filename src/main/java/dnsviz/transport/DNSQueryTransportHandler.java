@@ -31,20 +31,25 @@ import java.net.PortUnreachableException;
 import java.net.BindException;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NetworkChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Date;
-import java.util.Random;
+import java.util.Arrays;
 
 import dnsviz.util.Base64Encoder;
 import dnsviz.util.Base64Decoder;
+import dnsviz.util.DNSMessageView;
 
 public abstract class DNSQueryTransportHandler {
 	private final static int MAX_PORT_BIND_ATTEMPTS = 10;
 
+	/* how a handler's result was obtained, if it wasn't its own exchange */
+	public final static String SHARED_COALESCED = "coalesced";
+	public final static String SHARED_CACHED = "cached";
+
 	protected ByteBuffer req = null;
 	protected ByteBuffer res = null;
 	protected String err = null;
@@ -62,6 +67,48 @@ public abstract class DNSQueryTransportHandler {
 	protected long startTime = 0;
 	protected long endTime = 0;
 
+	protected String shared = null;
+
+	/* the network's nanoTime() at each DNSQueryTrace event, or 0 if it hasn't
+	 * happened */
+	protected final long[] trace = new long[DNSQueryTrace.EVENTS];
+
+	/* the batch this handler was submitted in, and whether it has finished,
+	 * maintained by DNSQueryTransportManager, and its slot in the manager's
+	 * DNSQueryTable, if it is in progress */
+	DNSQueryBatch batch = null;
+	boolean finished = false;
+	int slot = -1;
+
+	/* whether this handler has been admitted to run, and the response buffer
+	 * bytes it was admitted with, maintained by DNSQueryTransportManager */
+	boolean admitted = false;
+	int admittedBytes = 0;
+
+	/* the key under which identical queries are coalesced with this one, and
+	 * whether this one is waiting on the result of another, rather than being
+	 * sent itself, maintained by DNSQueryTransportManager if it has a cache */
+	Object cacheKey = null;
+	boolean follower = false;
+
+	/* the source pool from which this handler's source address was taken,
+	 * and the address, maintained by DNSQueryTransportManager */
+	DNSQuerySourcePool sourcePool = null;
+	InetAddress pooledSource = null;
+
+	/* the pool from which a socket may be taken, rather than opened, set by
+	 * DNSQueryTransportManager if it has one */
+	DNSQuerySocketPool socketPool = null;
+
+	/* the SO_RCVBUF and SO_SNDBUF to set on the socket, or 0 to leave the
+	 * system's defaults, set by DNSQueryTransportManager */
+	int receiveBufferSize = 0;
+	int sendBufferSize = 0;
+
+	/* the network on which the query is sent, and by whose clock it is timed,
+	 * set by DNSQueryTransportManager */
+	DNSQueryNetwork network = DNSQueryNetwork.SYSTEM;
+
 	protected DNSQueryTransportHandler(byte[] req, InetAddress dst, int dport, InetAddress src, int sport, long timeout) {
 		this.dst = dst;
 		this.dport = dport;
@@ -77,6 +124,35 @@ public abstract class DNSQueryTransportHandler {
 
 	public abstract int getStartOfReqPayload();
 
+	/**
+	 * Points `view` at the DNS message in the request buffer.
+	 */
+	public void viewRequest(DNSMessageView view) {
+		view.wrap(req, getStartOfReqPayload(), req.limit());
+	}
+
+	/**
+	 * Points `view` at the DNS message in the response buffer, once the
+	 * response is complete.
+	 *
+	 * @return false if there is no response
+	 */
+	public boolean viewResponse(DNSMessageView view) {
+		if (err != null || res == null) {
+			return false;
+		}
+		view.wrap(res, 0, res.limit());
+		return true;
+	}
+
+	/**
+	 * @return the batch in which the handler was last submitted, or null if it
+	 * hasn't been
+	 */
+	public DNSQueryBatch getBatch() {
+		return batch;
+	}
+
 	public NetworkChannel getChannel() {
 		return channel;
 	}
@@ -142,10 +218,65 @@ public abstract class DNSQueryTransportHandler {
 		return errno;
 	}
 
+	/**
+	 * @return SHARED_COALESCED if the result is that of an identical query sent
+	 * at the same time, SHARED_CACHED if it is that of one sent earlier, or
+	 * null if the query was sent itself
+	 */
+	public String getShared() {
+		return shared;
+	}
+
+	/**
+	 * Takes the result of an identical query in place of sending this one,
+	 * rewriting the ID of the response to match the request.
+	 */
+	void share(byte[] res, String err, String errno, InetAddress src, int sport, long elapsed, String shared) {
+		int start = getStartOfReqPayload();
+
+		this.err = err;
+		this.errno = errno;
+		this.src = src;
+		this.sport = sport;
+		this.shared = shared;
+		if (err == null && res != null) {
+			this.res = ByteBuffer.wrap(Arrays.copyOf(res, res.length));
+			if (res.length >= 2 && req.limit() >= start + 2) {
+				this.res.put(0, req.get(start));
+				this.res.put(1, req.get(start + 1));
+			}
+		} else {
+			this.res = null;
+		}
+		endTime = network.currentTimeMillis();
+		startTime = endTime - elapsed;
+		trace(DNSQueryTrace.COMPLETED);
+	}
+
+	/**
+	 * Records the time of `event`, if it hasn't been recorded already.
+	 */
+	protected void trace(int event) {
+		if (trace[event] == 0) {
+			trace[event] = network.nanoTime();
+		}
+	}
+
+	/**
+	 * @return the times at which the query reached each stage so far
+	 */
+	public DNSQueryTrace getTrace() {
+		return new DNSQueryTrace(trace.clone(), dst, dport, DNSQueryTrace.getTransport(this), err);
+	}
+
 	public long timeElapsed() {
 		return endTime - startTime;
 	}
 
+	public InetAddress getDestination() {
+		return dst;
+	}
+
 	public long getSPort() {
 		return sport;
 	}
@@ -156,11 +287,13 @@ public abstract class DNSQueryTransportHandler {
 
 	protected abstract void initRequestBuffer(byte[] req);
 
-	protected void initResponseBuffer() {
-		//TODO start more conservative and dynamically grow if more buffer space is
-		//needed
-		res = ByteBuffer.allocate(65536);
-	}
+	protected abstract void initResponseBuffer();
+
+	/**
+	 * @return the number of bytes of response buffer the handler allocates
+	 * while it is running, or at most allocates, if that isn't known in advance
+	 */
+	public abstract int getResponseBufferSize();
 
 	protected abstract void createSocket() throws IOException;
 
@@ -168,6 +301,15 @@ public abstract class DNSQueryTransportHandler {
 		((SelectableChannel)channel).configureBlocking(false);
 	}
 
+	protected void sizeSocketBuffers() throws IOException {
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+	}
+
 	protected void bindSocket() throws IOException {
 		if (sport > 0) {
 			try {
@@ -179,7 +321,7 @@ public abstract class DNSQueryTransportHandler {
 
 			int i = 0;
 			while (true) {
-				int randomPort = new Random().nextInt(64512) + 1024;
+				int randomPort = network.nextPort();
 				try {
 					channel.bind(new InetSocketAddress(src, randomPort));
 					break;
@@ -198,8 +340,11 @@ public abstract class DNSQueryTransportHandler {
 		initResponseBuffer();
 		try {
 			createSocket();
+			trace(DNSQueryTrace.SOCKET_CREATED);
 			configureSocket();
+			sizeSocketBuffers();
 			bindSocket();
+			trace(DNSQueryTrace.BOUND);
 			setStart();
 			connect();
 		} catch (IOException ex) {
@@ -224,9 +369,9 @@ public abstract class DNSQueryTransportHandler {
 	}
 
 	protected void setStart() {
-		Date date = new Date();
-		expiration = date.getTime() + timeout;
-		startTime = date.getTime();
+		long now = network.currentTimeMillis();
+		expiration = now + timeout;
+		startTime = now;
 	}
 
 	protected abstract void connect() throws IOException;
@@ -235,7 +380,9 @@ public abstract class DNSQueryTransportHandler {
 
 	public boolean doWrite() throws IOException {
 		try {
-			((WritableByteChannel)channel).write(req);
+			if (((WritableByteChannel)channel).write(req) > 0) {
+				trace(DNSQueryTrace.FIRST_WRITE);
+			}
 		} catch (IOException e) {
 			setError((IOException)e);
 			cleanup();
@@ -244,6 +391,7 @@ public abstract class DNSQueryTransportHandler {
 			throw e;
 		}
 		if (!req.hasRemaining()) {
+			trace(DNSQueryTrace.LAST_WRITE);
 			return true;
 		}
 		return false;
@@ -258,10 +406,11 @@ public abstract class DNSQueryTransportHandler {
 
 	protected void setEnd() {
 		// set end (and start, if necessary) times, as appropriate
-		endTime = new Date().getTime();
+		endTime = network.currentTimeMillis();
 		if (startTime == 0) {
 			startTime = endTime;
 		}
+		trace(DNSQueryTrace.COMPLETED);
 	}
 
 	/** 
@@ -278,6 +427,25 @@ public abstract class DNSQueryTransportHandler {
 		}
 	}
 
+	/**
+	 * Closes the socket, if one was created, without recording any result.
+	 */
+	void abort() {
+		if (channel != null) {
+			closeSocket();
+		}
+	}
+
+	/**
+	 * Marks a query that was cut short, its socket closed by abort(), because
+	 * its batch was cancelled.
+	 */
+	void cancel() {
+		err = "CANCELLED";
+		errno = null;
+		setEnd();
+	}
+
 	public void cleanup() {
 		setEnd();
 		setSocketInfo();
@@ -57,7 +57,7 @@ public class DNSQueryTransportHandlerTCP extends DNSQueryTransportHandler {
 	}
 
 	protected void createSocket() throws IOException {
-		channel = SocketChannel.open();
+		channel = network.openSocketChannel();
 	}
 
 	protected void connect() throws IOException {
@@ -70,7 +70,11 @@ public class DNSQueryTransportHandlerTCP extends DNSQueryTransportHandler {
 
 	public boolean finishConnect() throws IOException {
 		try {
-			return ((SocketChannel)channel).finishConnect();
+			if (((SocketChannel)channel).finishConnect()) {
+				trace(DNSQueryTrace.CONNECTED);
+				return true;
+			}
+			return false;
 		} catch (IOException ex) {
 			setError(ex);
 			cleanup();
@@ -78,12 +82,37 @@ public class DNSQueryTransportHandlerTCP extends DNSQueryTransportHandler {
 		}
 	}
 
+	/**
+	 * Allocates just enough buffer for the 2-byte length prefix; the buffer for
+	 * the message itself is allocated once its length is known.
+	 */
+	protected void initResponseBuffer() {
+		res = ByteBuffer.allocate(2);
+	}
+
+	/**
+	 * @return the most the response buffers can hold, since the size of the
+	 * message isn't known until its length prefix has been read
+	 */
+	public int getResponseBufferSize() {
+		return 2 + 0xffff;
+	}
+
 	public boolean doRead() throws IOException {
 		int bytesRead;
-		ByteBuffer buf;
 
 		try {
 			bytesRead = ((ReadableByteChannel)channel).read(res);
+			if (!lengthKnown && !res.hasRemaining()) {
+				int len = ((res.get(0) & 0xff) << 8) | (res.get(1) & 0xff);
+				res = ByteBuffer.allocate(len);
+				lengthKnown = true;
+
+				// read whatever part of the message arrived with the length prefix
+				if (res.hasRemaining() && ((ReadableByteChannel)channel).read(res) < 0) {
+					bytesRead = -1;
+				}
+			}
 		} catch (IOException e) {
 			setError(e);
 			cleanup();
@@ -92,25 +121,16 @@ public class DNSQueryTransportHandlerTCP extends DNSQueryTransportHandler {
 			throw e;
 		}
 
+		if (bytesRead > 0) {
+			trace(DNSQueryTrace.FIRST_READ);
+		}
 		if (bytesRead < 1) {
 			setError(Errno.ECONNRESET);
 			cleanup();
 			return true;
 		}
 
-		if (!lengthKnown && res.position() > 1) {
-			res.limit(res.position());
-			byte b1 = res.get(0);
-			byte b2 = res.get(1);
-			int len = ((b1 & 0xff) << 8) | (b2 & 0xff);
-			buf = ByteBuffer.allocate(len);
-			buf.clear();
-			res.rewind().position(2);
-			buf.put(res);
-			res = buf;
-			lengthKnown = true;
-		}
-		if (!res.hasRemaining()) {
+		if (lengthKnown && !res.hasRemaining()) {
 			cleanup();
 			return true;
 		}
@@ -120,7 +140,7 @@ public class DNSQueryTransportHandlerTCP extends DNSQueryTransportHandler {
 	protected InetAddress getLocalAddress() {
 		InetAddress localAddress;
 		try {
-			final DatagramChannel datagramChannel = DatagramChannel.open();
+			final DatagramChannel datagramChannel = network.openDatagramChannel();
 			try {
 				datagramChannel.connect(new InetSocketAddress(dst, dport));
 				localAddress = ((InetSocketAddress)datagramChannel.getLocalAddress()).getAddress();
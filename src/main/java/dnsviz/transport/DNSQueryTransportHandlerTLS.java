@@ -0,0 +1,114 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A DNS-over-TLS (RFC 7858) query.  Unlike the other handlers, a TLS handler
+ * has no socket of its own: DNSQueryTransportManager sends it over a
+ * DNSQueryTLSConnection to its destination, which may be shared with other
+ * queries, and may already have been opened by earlier ones.
+ *
+ * The time spent waiting for the connection and its TLS handshake is
+ * reported by getHandshakeTime(), and is not included in timeElapsed().
+ */
+public class DNSQueryTransportHandlerTLS extends DNSQueryTransportHandlerTCP {
+	public final static int DEFAULT_PORT = 853;
+
+	/* the connection this query is being sent over, and the copy of the
+	 * request it is writing, maintained by DNSQueryTLSConnection */
+	DNSQueryTLSConnection connection = null;
+	ByteBuffer pendingReq = null;
+
+	protected long handshakeTime = 0;
+
+	public DNSQueryTransportHandlerTLS(byte[] req, InetAddress dst, int dport, InetAddress src, int sport, long timeout) {
+		super(req, dst, dport, src, sport, timeout);
+	}
+
+	/**
+	 * @return the message ID of the query
+	 */
+	public int getQueryId() {
+		return ((req.get(2) & 0xff) << 8) | (req.get(3) & 0xff);
+	}
+
+	public int getDPort() {
+		return dport;
+	}
+
+	/**
+	 * @return the number of milliseconds this query waited for its connection
+	 * to be established and its TLS handshake completed, or 0 if the connection
+	 * was already open
+	 */
+	public long getHandshakeTime() {
+		return handshakeTime;
+	}
+
+	public long timeElapsed() {
+		return endTime - startTime - handshakeTime;
+	}
+
+	/**
+	 * Sets the timer running; the connection is managed separately.
+	 */
+	public void prepare() {
+		initResponseBuffer();
+		setStart();
+	}
+
+	void setResponse(ByteBuffer res) {
+		this.res = res;
+	}
+
+	void setHandshakeTime(long handshakeTime) {
+		this.handshakeTime = handshakeTime;
+	}
+
+	/**
+	 * Detaches the query from its connection, which stays open for others.
+	 */
+	public void cleanup() {
+		InetSocketAddress addr;
+		setEnd();
+		if (connection != null) {
+			if ((addr = connection.getLocalAddress()) != null) {
+				src = addr.getAddress();
+				sport = addr.getPort();
+			}
+			connection.remove(this);
+			connection = null;
+		}
+	}
+
+	void abort() {
+		if (connection != null) {
+			connection.remove(this);
+			connection = null;
+		}
+	}
+}
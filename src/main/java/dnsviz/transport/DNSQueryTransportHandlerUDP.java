@@ -29,9 +29,30 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 
+import dnsviz.util.DNSMessageView;
+
 public class DNSQueryTransportHandlerUDP extends DNSQueryTransportHandler {
+	private final static int MIN_UDP_PAYLOAD_SIZE = 512;
+	private final static int MAX_UDP_PAYLOAD_SIZE = 65535;
+
+	/* extra space beyond the advertised payload size, so that responses from
+	 * servers that slightly overrun it are still received intact */
+	private final static int RESPONSE_BUFFER_MARGIN = 1024;
+
+	protected int payloadSize = MIN_UDP_PAYLOAD_SIZE;
+
+	/* whether the socket came from a DNSQuerySocketPool, already non-blocking
+	 * and bound */
+	protected boolean pooled = false;
+
 	public DNSQueryTransportHandlerUDP(byte[] req, InetAddress dst, int dport, InetAddress src, int sport, long timeout) {
 		super(req, dst, dport, src, sport, timeout);
+
+		DNSMessageView view = new DNSMessageView();
+		viewRequest(view);
+		if (view.hasOPT()) {
+			payloadSize = Math.max(view.getUDPPayloadSize(), MIN_UDP_PAYLOAD_SIZE);
+		}
 	}
 
 	public int getInitialSelectionOp() {
@@ -49,19 +70,48 @@ public class DNSQueryTransportHandlerUDP extends DNSQueryTransportHandler {
 		this.req.flip();
 	}
 
+	/**
+	 * Sizes the response buffer from the UDP payload size advertised by the
+	 * request, plus a margin.  The buffer is always at least one byte larger
+	 * than any datagram considered acceptable, so that a datagram that fills it
+	 * can be identified as truncated.
+	 */
 	protected void initResponseBuffer() {
-		//TODO start more conservative and dynamically grow if more buffer space is
-		//needed
-		res = ByteBuffer.allocate(65536);
+		res = ByteBuffer.allocate(getResponseBufferSize());
 	}
 
+	public int getResponseBufferSize() {
+		return Math.min(payloadSize + RESPONSE_BUFFER_MARGIN, MAX_UDP_PAYLOAD_SIZE + 1);
+	}
+
+	/**
+	 * Takes a socket from the pool, if there is one ready for the source
+	 * address, and the source port is to be random, or else opens one.
+	 */
 	protected void createSocket() throws IOException {
-		channel = DatagramChannel.open();
+		if (socketPool != null && sport == 0 && (channel = socketPool.take(src, dst)) != null) {
+			pooled = true;
+			return;
+		}
+		channel = network.openDatagramChannel();
+	}
+
+	protected void configureSocket() throws IOException {
+		if (!pooled) {
+			super.configureSocket();
+		}
+	}
+
+	protected void bindSocket() throws IOException {
+		if (!pooled) {
+			super.bindSocket();
+		}
 	}
 
 	protected void connect() throws IOException {
 		try {
 			((DatagramChannel)channel).connect(new InetSocketAddress(dst, dport));
+			trace(DNSQueryTrace.CONNECTED);
 		} catch (IOException | RuntimeException e) {
 			throw e;
 		}
@@ -83,13 +133,23 @@ public class DNSQueryTransportHandlerUDP extends DNSQueryTransportHandler {
 			throw e;
 		}
 
+		if (bytesRead > 0) {
+			trace(DNSQueryTrace.FIRST_READ);
+		}
 		if (bytesRead < 1) {
 			setError(Errno.ECONNREFUSED);
 			cleanup();
 			return true;
 		}
 
-		//TODO check response consistency
+		if (!res.hasRemaining()) {
+			/* the datagram filled the buffer, so some of it may have been
+			 * discarded */
+			setError(Errno.EMSGSIZE);
+		} else if (bytesRead < DNSMessageView.HEADER_LENGTH) {
+			setError(Errno.EBADMSG);
+		}
+
 		res.limit(bytesRead);
 		cleanup();
 		return true;
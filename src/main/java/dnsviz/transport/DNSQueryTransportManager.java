@@ -23,148 +23,896 @@ package dnsviz.transport;
 
 import java.io.IOException;
 import java.net.SocketException;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
-import java.util.Date;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.net.ssl.SSLContext;
+
+import dnsviz.util.ByteBufferPool;
 
 /**
- * The TransportManager works on an array of TransportHandlers, managing the
+ * The TransportManager works on arrays of TransportHandlers, managing the
  * execution of each and performing proper error-checking and cleanup.
+ *
+ * A manager can either run a batch to completion with query(), or be driven
+ * by an event loop that owns the Selector: batches are added with submit(),
+ * service() is called before each select, and handle() is called for each
+ * selected key whose attachment is a DNSQueryTransportHandler.  In the latter
+ * case, the same Selector may also be used for other channels.
+ *
+ * Submitted queries wait in a queue, bounded as configured in
+ * DNSQueryAdmissionSettings, until their destinations' pacing allows them to
+ * be sent and there is room for them among the queries in flight.  Only then
+ * are their sockets opened and their response buffers allocated.
+ *
+ * Batches may be submitted on behalf of DNSQueryTenants, among which waiting
+ * queries are released in proportion to their weights; see DNSQueryPacer.
+ *
+ * If a DNSQueryCache is set, identical queries are coalesced, and recent
+ * results may be reused; see DNSQueryCache.
+ *
+ * Unless turned off with setCountDrops(), the host's UDP drop counters are
+ * read as each batch is submitted and completes, so that responses dropped
+ * locally, which would otherwise look like timeouts, may be suspected; see
+ * DNSQueryBatch.getDrops().
+ *
+ * DNS-over-TLS queries share connections: a query is sent over an open
+ * connection to its destination if there is one, and connections are kept
+ * open for TLS_IDLE_TIMEOUT milliseconds after their last query finishes.
+ * close() closes them, and abandons the batches still running.
  */
 public class DNSQueryTransportManager {
+	public final static long TLS_IDLE_TIMEOUT = 10000;
+
+	/* the number of seconds over which throughput is measured */
+	public final static int THROUGHPUT_WINDOW = 10;
+
+	private final static ByteBufferPool tlsBufferPool = new ByteBufferPool();
+
+	private final DNSQueryPacingSettings pacingSettings;
+	private final DNSQueryPacer pacer;
+	private final DNSQueryTable activeQueue;
+	private final DNSQueryAdmissionSettings admissionSettings;
+	private final DNSQueryNetwork network;
+	private Selector selector;
+
+	/* queries released by the pacer that are waiting for room to be admitted;
+	 * normally there is at most one */
+	private final LinkedList<DNSQueryTransportHandler> admissionQueue = new LinkedList<>();
+	private int inFlight = 0;
+	private long responseBytes = 0;
+
+	/* set when a socket couldn't be created because too many were open, until
+	 * one is closed */
+	private boolean waitingForSocket = false;
+
+	/* the number of queries finished in each second of the throughput window,
+	 * indexed by the second modulo THROUGHPUT_WINDOW, and the last second
+	 * counted */
+	private final long[] finishedBySecond = new long[THROUGHPUT_WINDOW];
+	private long finishedSecond = 0;
+
+	private volatile DNSQueryCache cache = null;
+	private volatile DNSQuerySourcePool sourcePool = null;
+	private volatile DNSQuerySocketPool socketPool = null;
+	private volatile boolean countDrops = true;
+	private final CopyOnWriteArrayList<DNSQueryListener> queryListeners = new CopyOnWriteArrayList<>();
+
+	/* the queries waiting on each query sent on behalf of identical ones, by
+	 * cache key */
+	private final HashMap<Object, LinkedList<DNSQueryTransportHandler>> coalesced = new HashMap<>();
+
+	/* the batches submitted and not yet completed */
+	private final LinkedHashSet<DNSQueryBatch> running = new LinkedHashSet<>();
+
+	private SSLContext sslContext = null;
+	private final LinkedList<DNSQueryTLSConnection> tlsConnections = new LinkedList<>();
+
+	public DNSQueryTransportManager() {
+		this(new DNSQueryPacingSettings());
+	}
+
+	public DNSQueryTransportManager(DNSQueryPacingSettings pacingSettings) {
+		this(null, pacingSettings);
+	}
+
+	/**
+	 * Creates a manager that registers its sockets with `selector`, which is
+	 * owned by the caller's event loop.
+	 */
+	public DNSQueryTransportManager(Selector selector, DNSQueryPacingSettings pacingSettings) {
+		this(selector, pacingSettings, new DNSQueryAdmissionSettings());
+	}
+
+	public DNSQueryTransportManager(Selector selector, DNSQueryPacingSettings pacingSettings, DNSQueryAdmissionSettings admissionSettings) {
+		this(selector, pacingSettings, admissionSettings, DNSQueryNetwork.SYSTEM);
+	}
+
+	/**
+	 * Creates a manager that sends its queries on `network`, and times them by
+	 * its clock.  `selector`, if not null, must have been opened by `network`.
+	 */
+	public DNSQueryTransportManager(Selector selector, DNSQueryPacingSettings pacingSettings, DNSQueryAdmissionSettings admissionSettings, DNSQueryNetwork network) {
+		this.selector = selector;
+		this.pacingSettings = pacingSettings;
+		this.admissionSettings = admissionSettings;
+		this.network = network;
+		this.pacer = new DNSQueryPacer(pacingSettings);
+		this.activeQueue = new DNSQueryTable();
+	}
+
+	public DNSQueryAdmissionSettings getAdmissionSettings() {
+		return admissionSettings;
+	}
+
+	public DNSQueryCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Adds a listener to be notified as every query run by this manager
+	 * finishes, whatever its batch, e.g., a DNSQueryTraceBuffer.  Listeners
+	 * are called from service() or handle(), or from submit() for a query
+	 * answered from the cache, before the listeners of the query's batch.
+	 */
+	public void addQueryListener(DNSQueryListener listener) {
+		queryListeners.add(listener);
+	}
+
+	public void removeQueryListener(DNSQueryListener listener) {
+		queryListeners.remove(listener);
+	}
+
+	/**
+	 * Sets the cache with which identical queries are coalesced, and their
+	 * results reused, or null (the default) to send every query.  This takes
+	 * effect for batches submitted afterwards.
+	 */
+	public void setCache(DNSQueryCache cache) {
+		this.cache = cache;
+	}
+
+	public DNSQuerySourcePool getSourcePool() {
+		return sourcePool;
+	}
+
+	/**
+	 * Sets the pool of local addresses across which queries that don't
+	 * specify a source are spread, or null (the default) to send them from
+	 * the wildcard address.  This takes effect for queries started
+	 * afterwards.
+	 */
+	public void setSourcePool(DNSQuerySourcePool sourcePool) {
+		this.sourcePool = sourcePool;
+	}
+
+	public DNSQuerySocketPool getSocketPool() {
+		return socketPool;
+	}
+
+	/**
+	 * Sets the pool from which UDP queries take sockets that are ready to
+	 * send, or null (the default) to open a socket for each query.  The pool
+	 * is not used on a network other than DNSQueryNetwork.SYSTEM.  This takes
+	 * effect for queries started afterwards.
+	 */
+	public void setSocketPool(DNSQuerySocketPool socketPool) {
+		this.socketPool = socketPool;
+	}
+
+	public boolean isCountingDrops() {
+		return countDrops;
+	}
+
+	/**
+	 * Sets whether the host's UDP drop counters are read before and after each
+	 * batch (by default, they are, where they can be read).  They are never
+	 * read for batches on a simulated network.
+	 */
+	public void setCountDrops(boolean countDrops) {
+		this.countDrops = countDrops;
+	}
+
+	/**
+	 * @return the number of queries submitted that have not yet been started
+	 */
+	public int getQueueDepth() {
+		return pacer.getPendingCount() + admissionQueue.size();
+	}
+
+	/**
+	 * @return the number of queries that have been started and not finished
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the number of bytes of response buffer reserved by the queries
+	 * in flight
+	 */
+	public long getResponseBytesInFlight() {
+		return responseBytes;
+	}
+
+	/**
+	 * @return the capacity of the manager to take on more queries now
+	 */
+	public DNSQueryCapacity getCapacity() {
+		return new DNSQueryCapacity(inFlight, admissionSettings.getMaxInFlight(), getQueueDepth(),
+				admissionSettings.getMaxQueued(), waitingForSocket, getThroughput());
+	}
+
+	/**
+	 * @return the number of queries finished per second over the last
+	 * THROUGHPUT_WINDOW seconds, not counting the current one
+	 */
+	private double getThroughput() {
+		long second = advanceThroughputWindow(network.currentTimeMillis());
+		long finished = 0;
+
+		for (int i = 0; i < THROUGHPUT_WINDOW; i++) {
+			if (i != (int)(second % THROUGHPUT_WINDOW)) {
+				finished += finishedBySecond[i];
+			}
+		}
+		return (double)finished / (THROUGHPUT_WINDOW - 1);
+	}
+
+	/**
+	 * Clears the counts of the seconds that have passed since the last one
+	 * counted.
+	 *
+	 * @return the current second
+	 */
+	private long advanceThroughputWindow(long currTime) {
+		long second = currTime / 1000;
+
+		if (second != finishedSecond) {
+			for (long s = Math.max(finishedSecond + 1, second - THROUGHPUT_WINDOW + 1); s <= second; s++) {
+				finishedBySecond[(int)(s % THROUGHPUT_WINDOW)] = 0;
+			}
+			finishedSecond = second;
+		}
+		return second;
+	}
+
+	/**
+	 * Sets the context from which TLS connections are created.  By default,
+	 * the default SSLContext is used, so TLS sessions are resumed across
+	 * managers.
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	private SSLContext getSSLContext() throws IOException {
+		if (sslContext == null) {
+			try {
+				sslContext = SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+		return sslContext;
+	}
+
+	/**
+	 * Sends a TLS query over an existing connection to its destination, or
+	 * opens a new one.
+	 */
+	private void prepareAndQueueTLS(DNSQueryTransportHandlerTLS qh) throws IOException {
+		DNSQueryTLSConnection conn = null;
+		Iterator<DNSQueryTLSConnection> iterator = tlsConnections.iterator();
 
-	private void prepareAndQueue(DNSQueryTransportHandler qh, PriorityQueue<DNSQueryTransportHandler> q, Selector selector) throws IOException {
+		qh.prepare();
+		while (iterator.hasNext()) {
+			conn = iterator.next();
+			if (conn.canAccept(qh)) {
+				break;
+			}
+			conn = null;
+		}
+
+		if (conn == null) {
+			conn = new DNSQueryTLSConnection(qh.getDestination(), qh.getDPort(), qh.getSource(), (int)qh.getSPort(), network);
+			try {
+				conn.open(selector, getSSLContext(), tlsBufferPool);
+			} catch (IOException ex) {
+				qh.setError(ex);
+				qh.setEnd();
+				return;
+			}
+			tlsConnections.add(conn);
+		}
+
+		conn.add(qh);
+		activeQueue.add(qh);
+	}
+
+	private void prepareAndQueue(DNSQueryTransportHandler qh) throws IOException {
+		if (qh instanceof DNSQueryTransportHandlerTLS) {
+			prepareAndQueueTLS((DNSQueryTransportHandlerTLS)qh);
+			return;
+		}
+
+		acquireSource(qh);
+		if (network == DNSQueryNetwork.SYSTEM) {
+			qh.socketPool = socketPool;
+		}
+		qh.receiveBufferSize = admissionSettings.getReceiveBufferSize(qh.getResponseBufferSize());
+		qh.sendBufferSize = admissionSettings.getSendBufferSize();
 		qh.prepare();
 		if (!qh.hasError()) {
 			// if we successfully bound and connected the socket, then register this
 			// socket in the write fd list
 			((SelectableChannel)qh.getChannel()).register(selector, qh.getInitialSelectionOp(), qh);
-			q.add(qh);
+			activeQueue.add(qh);
 		}
 	}
 
-	public void query(DNSQueryTransportHandler[] queryHandlers) throws IOException {
-		int timeout;
-		DNSQueryTransportHandler qh = null;
-		DNSQueryTransportHandler standbyQH = null;
-		DNSQueryTransportHandlerComparator cmp = new DNSQueryTransportHandlerComparator();
-		PriorityQueue<DNSQueryTransportHandler> standbyQueue = new PriorityQueue<>(queryHandlers.length, cmp);
-		PriorityQueue<DNSQueryTransportHandler> activeQueue = new PriorityQueue<>(queryHandlers.length, cmp);
-
-		Selector selector = Selector.open();
-		for (int i = 0; i < queryHandlers.length; i++) {
-			qh = queryHandlers[i];
-			try {
-				prepareAndQueue(qh, activeQueue, selector);
-			} catch (IOException ex) {
-				if (ex instanceof SocketException && ex.getMessage().contains("maximum number of ")) {
-					/* if we couldn't create the socket because too many datagrams were
-					 * open, then place this one in the standbyQueue */
-					standbyQueue.add(qh);
-				} else {
-					throw ex;
+	/**
+	 * @return true if a query with a response buffer of `bytes` bytes may be
+	 * admitted now
+	 */
+	private boolean hasRoom(int bytes) {
+		if (inFlight == 0) {
+			return true;
+		}
+		return !waitingForSocket &&
+			inFlight < admissionSettings.getMaxInFlight() &&
+			responseBytes + bytes <= admissionSettings.getMaxResponseBytes();
+	}
+
+	/**
+	 * Sends `qh` from an address in the source pool, if it doesn't specify
+	 * one.
+	 */
+	private void acquireSource(DNSQueryTransportHandler qh) {
+		DNSQuerySourcePool pool = sourcePool;
+		if (pool == null || qh.sourcePool != null || (qh.src != null && !qh.src.isAnyLocalAddress())) {
+			return;
+		}
+		if ((qh.pooledSource = pool.acquire(qh.dst)) != null) {
+			qh.sourcePool = pool;
+			qh.src = qh.pooledSource;
+		}
+	}
+
+	private void releaseSource(DNSQueryTransportHandler qh) {
+		if (qh.sourcePool != null) {
+			qh.sourcePool.release(qh.pooledSource);
+			qh.sourcePool = null;
+			qh.pooledSource = null;
+		}
+	}
+
+	private void admit(DNSQueryTransportHandler qh) {
+		qh.admitted = true;
+		qh.admittedBytes = qh.getResponseBufferSize();
+		inFlight++;
+		responseBytes += qh.admittedBytes;
+	}
+
+	private void unadmit(DNSQueryTransportHandler qh) {
+		if (qh.admitted) {
+			qh.admitted = false;
+			inFlight--;
+			responseBytes -= qh.admittedBytes;
+		}
+	}
+
+	/**
+	 * @return true if `ex` reports that no more sockets (or descriptors) may be
+	 * opened
+	 */
+	private static boolean isOutOfSockets(IOException ex) {
+		String m = ex.getMessage();
+		if (m == null) {
+			return false;
+		}
+		return (ex instanceof SocketException && m.contains("maximum number of ")) ||
+			m.contains("Too many open files");
+	}
+
+	/**
+	 * Admits and starts a query.
+	 *
+	 * @return false if it couldn't get a socket because too many are open, in
+	 * which case it goes back to the head of the admission queue
+	 */
+	private boolean start(DNSQueryTransportHandler qh) {
+		admit(qh);
+		try {
+			prepareAndQueue(qh);
+		} catch (IOException ex) {
+			if (isOutOfSockets(ex)) {
+				if (inFlight > 1) {
+					/* wait until another query frees up a socket */
+					unadmit(qh);
+					if (qh.sourcePool != null) {
+						releaseSource(qh);
+						qh.src = null;
+					}
+					admissionQueue.addFirst(qh);
+					waitingForSocket = true;
+					return false;
 				}
+				/* nothing is open that might free up a socket */
+				qh.setError(Errno.EMFILE);
+			} else {
+				fail(qh.batch, ex);
+				return true;
 			}
 		}
+		if (qh.hasError()) {
+			finish(qh);
+		}
+		return true;
+	}
+
+	/**
+	 * Accounts for a handler that has finished, whether successfully or not.
+	 */
+	private void finish(DNSQueryTransportHandler qh) {
+		activeQueue.remove(qh);
+		pacer.release(qh);
+		unadmit(qh);
+		releaseSource(qh);
+		if (qh.getChannel() != null) {
+			waitingForSocket = false;
+		}
+		qh.finished = true;
+		finishedBySecond[(int)(advanceThroughputWindow(network.currentTimeMillis()) % THROUGHPUT_WINDOW)]++;
+		if (qh.cacheKey != null) {
+			shareResult(qh);
+		}
+		if (qh.batch.getTenant() != null) {
+			count(qh.batch.getTenant(), qh);
+		}
+		for (DNSQueryListener l : queryListeners) {
+			l.queryCompleted(qh);
+		}
+		qh.batch.handlerFinished(qh);
+		if (qh.batch.isComplete()) {
+			running.remove(qh.batch);
+		}
+	}
 
-		while (activeQueue.peek() != null) {
-			long currTime = new Date().getTime();
+	/**
+	 * Passes the result of `qh`, which has finished, to the identical queries
+	 * waiting on it, and caches it.  If `qh` was abandoned or cancelled along
+	 * with its batch, one of the waiting queries is sent in its place instead.  If `qh`
+	 * was itself waiting, it stops.
+	 */
+	private void shareResult(DNSQueryTransportHandler qh) {
+		Object key = qh.cacheKey;
+		LinkedList<DNSQueryTransportHandler> followers;
+		DNSQueryTransportHandler next;
+		byte[] res;
 
-			// remove expired entries
-			while (((qh = activeQueue.peek()) != null) && currTime >= qh.getExpiration()) {
-				// remove the qh from the priority queue, and run doTimeout()
-				qh = activeQueue.poll();
-				qh.doTimeout();
+		qh.cacheKey = null;
+		if (qh.follower) {
+			qh.follower = false;
+			if ((followers = coalesced.get(key)) != null) {
+				followers.remove(qh);
+			}
+			return;
+		}
 
-				if (qh.getChannel() instanceof DatagramChannel) {
-					/* prepare and queue one from the standbyQueue, now that
-					 * there's a space available */
-					standbyQH = standbyQueue.poll();
-					if (standbyQH != null) {
-						prepareAndQueue(standbyQH, activeQueue, selector);
-					}
+		followers = coalesced.remove(key);
+		if (qh.batch.error != null || qh.batch.cancelled) {
+			if (followers != null && (next = followers.poll()) != null) {
+				next.follower = false;
+				next.cacheKey = key;
+				coalesced.put(key, followers);
+				pacer.add(next);
+			}
+			return;
+		}
+
+		if (cache != null) {
+			cache.put(key, qh);
+		}
+		if (followers == null) {
+			return;
+		}
+		res = qh.res != null && !qh.hasError() ? DNSQueryCache.copy(qh.res, 0, qh.res.limit()) : null;
+		for (DNSQueryTransportHandler f : followers) {
+			f.follower = false;
+			f.cacheKey = null;
+			f.share(res, qh.err, qh.errno, qh.src, qh.sport, qh.timeElapsed(), DNSQueryTransportHandler.SHARED_COALESCED);
+			finish(f);
+		}
+	}
+
+	private void count(DNSQueryTenant tenant, DNSQueryTransportHandler qh) {
+		tenant.queriesCompleted.incrementAndGet();
+		if ("TIMEOUT".equals(qh.getError())) {
+			tenant.queriesTimedOut.incrementAndGet();
+		} else if ("CANCELLED".equals(qh.getError())) {
+			tenant.queriesCancelled.incrementAndGet();
+		} else if (qh.hasError()) {
+			tenant.queriesFailed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Abandons every unfinished handler in `batch` because of an error that
+	 * could not be attributed to any one of them.
+	 */
+	private void fail(DNSQueryBatch batch, IOException ex) {
+		if (batch.error == null) {
+			batch.error = ex;
+		}
+		abandon(batch);
+	}
+
+	/**
+	 * Cancels the handlers of `batch` that haven't finished: those waiting are
+	 * dropped from the queue, and those in flight have their sockets closed,
+	 * releasing their admission, and all of them finish with the error
+	 * "CANCELLED".  The batch then completes, without an error, so that the
+	 * results of those that had already finished are kept.
+	 *
+	 * @return false if the batch had already completed
+	 */
+	public boolean cancel(DNSQueryBatch batch) {
+		if (batch.isComplete()) {
+			return false;
+		}
+		batch.cancelled = true;
+		abandon(batch);
+		return true;
+	}
+
+	/**
+	 * Stops every unfinished handler in `batch`, which has failed or been
+	 * cancelled, and accounts for it.
+	 */
+	private void abandon(DNSQueryBatch batch) {
+		DNSQueryTransportHandler[] qhs = batch.getHandlers();
+		for (int i = 0; i < qhs.length; i++) {
+			if (!qhs[i].finished) {
+				pacer.remove(qhs[i]);
+				admissionQueue.remove(qhs[i]);
+				qhs[i].abort();
+				if (batch.error == null) {
+					qhs[i].cancel();
 				}
+				finish(qhs[i]);
+			}
+		}
+	}
+
+	/**
+	 * Queues a batch of handlers to be run.  `listener`, if not null, is
+	 * notified from service() or handle() once all of them have finished.
+	 *
+	 * @throws DNSQueryRejectedException if the queue doesn't have room for the
+	 * whole batch, which gives the time after which it might be accepted
+	 */
+	public DNSQueryBatch submit(DNSQueryTransportHandler[] queryHandlers, DNSQueryBatchListener listener) throws DNSQueryRejectedException {
+		return submit(queryHandlers, listener, null);
+	}
+
+	/**
+	 * Queues a batch of handlers to be run, as above, and notifies
+	 * `queryListener`, if not null, as each of them finishes.
+	 */
+	public DNSQueryBatch submit(DNSQueryTransportHandler[] queryHandlers, DNSQueryBatchListener listener, DNSQueryListener queryListener) throws DNSQueryRejectedException {
+		return submit(queryHandlers, listener, queryListener, null);
+	}
+
+	/**
+	 * Queues a batch of handlers to be run on behalf of `tenant`, as above.
+	 * The tenant's weight and quota govern when the queries are sent relative
+	 * to those of other tenants, and its counters are updated as they run.
+	 * Batches submitted without a tenant share a default one.
+	 */
+	public DNSQueryBatch submit(DNSQueryTransportHandler[] queryHandlers, DNSQueryBatchListener listener, DNSQueryListener queryListener, DNSQueryTenant tenant) throws DNSQueryRejectedException {
+		int depth = getQueueDepth();
+
+		if (queryHandlers.length > 0 && depth + queryHandlers.length > admissionSettings.getMaxQueued()) {
+			if (tenant != null) {
+				tenant.batchesRejected.incrementAndGet();
+			}
+			throw new DNSQueryRejectedException("Queue full: " + queryHandlers.length +
+					" queries submitted, " + depth + " waiting, limit " + admissionSettings.getMaxQueued(), depth,
+					queryHandlers.length, getCapacity());
+		}
+		return enqueue(queryHandlers, listener, queryListener, tenant);
+	}
+
+	/**
+	 * Queues a batch of handlers to be run, whatever the depth of the queue.
+	 */
+	private DNSQueryBatch enqueue(DNSQueryTransportHandler[] queryHandlers, DNSQueryBatchListener listener, DNSQueryListener queryListener, DNSQueryTenant tenant) {
+		DNSQueryBatch batch;
+
+		batch = new DNSQueryBatch(queryHandlers, listener, queryListener, tenant);
+		if (countDrops && network == DNSQueryNetwork.SYSTEM && queryHandlers.length > 0) {
+			batch.dropsAtStart = DNSQueryDropCounters.read();
+		}
+		if (tenant != null) {
+			tenant.batchesSubmitted.incrementAndGet();
+			tenant.queriesSubmitted.addAndGet(queryHandlers.length);
+		}
+		for (int i = 0; i < queryHandlers.length; i++) {
+			queryHandlers[i].batch = batch;
+			queryHandlers[i].finished = false;
+			queryHandlers[i].network = network;
+		}
+		if (queryHandlers.length > 0) {
+			running.add(batch);
+		}
+		for (int i = 0; i < queryHandlers.length; i++) {
+			if (cache == null || !coalesce(queryHandlers[i], cache)) {
+				pacer.add(queryHandlers[i]);
 			}
-			if (qh == null) {
-				// all entries have expired
+		}
+		if (queryHandlers.length == 0 && listener != null) {
+			listener.batchCompleted(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Answers `qh` from `cache`, or has it wait on an identical query that is
+	 * waiting or in flight, if possible, and otherwise marks it as the query to
+	 * be sent on behalf of identical ones submitted while it runs.
+	 *
+	 * @return false if `qh` must be sent
+	 */
+	private boolean coalesce(DNSQueryTransportHandler qh, DNSQueryCache cache) {
+		Object key = cache.getKey(qh);
+		LinkedList<DNSQueryTransportHandler> followers;
+
+		if (cache.get(key, qh)) {
+			finish(qh);
+			return true;
+		}
+		if ((followers = coalesced.get(key)) != null) {
+			qh.cacheKey = key;
+			qh.follower = true;
+			followers.add(qh);
+			return true;
+		}
+		qh.cacheKey = key;
+		coalesced.put(key, new LinkedList<DNSQueryTransportHandler>());
+		return false;
+	}
+
+	/**
+	 * Starts whatever queries can be started now, and times out those that have
+	 * expired.
+	 *
+	 * @return the number of milliseconds to wait in select() before calling
+	 * this again, or 0 if there is nothing to wait for
+	 */
+	public long service() {
+		long currTime = network.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		DNSQueryTransportHandler qh;
+
+		// start whatever the pacer allows to be sent now, while there is room
+		while (true) {
+			if ((qh = admissionQueue.peek()) == null) {
+				if (!hasRoom(0) || (qh = pacer.poll(currTime)) == null) {
+					break;
+				}
+				admissionQueue.add(qh);
+			}
+			if (!hasRoom(qh.getResponseBufferSize())) {
 				break;
 			}
+			admissionQueue.poll();
+			if (!start(qh)) {
+				break;
+			}
+		}
+
+		// remove expired entries
+		while (!activeQueue.isEmpty() && currTime >= activeQueue.peekExpiration()) {
+			// remove the qh from the priority queue, and run doTimeout()
+			qh = activeQueue.poll();
+			qh.doTimeout();
+			finish(qh);
+		}
+
+		if (!activeQueue.isEmpty()) {
+			next = activeQueue.peekExpiration();
+		}
+		next = Math.min(next, closeIdleConnections(currTime));
+		// while admission is held up, the next query can only be started once
+		// another finishes
+		if (pacer.hasPending() && admissionQueue.isEmpty() && hasRoom(0)) {
+			next = Math.min(next, pacer.getNextReleaseTime(currTime));
+		}
+		if (next == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(next - currTime, 1);
+	}
+
+	/**
+	 * Closes TLS connections that have failed, or that have had no queries for
+	 * TLS_IDLE_TIMEOUT milliseconds.  Connections that never completed their
+	 * handshake are closed as soon as they have no queries.
+	 *
+	 * @return the time at which the next idle connection is due to be closed,
+	 * or Long.MAX_VALUE if there is none
+	 */
+	private long closeIdleConnections(long currTime) {
+		long next = Long.MAX_VALUE;
+		DNSQueryTLSConnection conn;
+		Iterator<DNSQueryTLSConnection> iterator = tlsConnections.iterator();
+
+		while (iterator.hasNext()) {
+			conn = iterator.next();
+			if (!conn.isClosed() && conn.isIdle() &&
+					(!conn.isOpen() || currTime >= conn.getIdleSince() + TLS_IDLE_TIMEOUT)) {
+				conn.close();
+				waitingForSocket = false;
+			}
+			if (conn.isClosed()) {
+				iterator.remove();
+			} else if (conn.isIdle()) {
+				next = Math.min(next, conn.getIdleSince() + TLS_IDLE_TIMEOUT);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Abandons the batches still running, as if they had failed with the error
+	 * "DNSQueryTransportManager is closed", and closes any TLS connections
+	 * still open.
+	 */
+	public void close() {
+		close(new IOException("DNSQueryTransportManager is closed"));
+	}
 
-			timeout = (int)(qh.getExpiration() - currTime);
-			/* timeout should never be less than 1 because of the loop termination test
-			 * of the while loop above */
-
-			selector.select(timeout);
-
-			Set<SelectionKey> selectedKeys = selector.selectedKeys();
-			Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-			while (keyIterator.hasNext()) {
-				SelectionKey key = keyIterator.next();
-				qh = (DNSQueryTransportHandler)key.attachment();
-
-				if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0 && key.isConnectable()) {
-					if (qh.finishConnect()) {
-						if (qh.hasError()) {
-							activeQueue.remove(qh);
-
-							if (qh.getChannel() instanceof DatagramChannel) {
-								/* prepare and queue one from the standbyQueue, now that
-								 * there's a space available */
-								standbyQH = standbyQueue.poll();
-								if (standbyQH != null) {
-									prepareAndQueue(standbyQH, activeQueue, selector);
-								}
-							}
-							continue;
-						} else {
-							key.interestOps(SelectionKey.OP_WRITE);
-						}
+	/**
+	 * Abandons the batches still running, failing them with `error`: the
+	 * sockets of their queries in flight are closed, and every query that
+	 * hasn't finished releases its admission, pacing and source, and finishes.
+	 * Then closes any TLS connections still open.
+	 */
+	public void close(IOException error) {
+		DNSQueryTLSConnection conn;
+		Iterator<DNSQueryBatch> iterator;
+		DNSQueryBatch batch;
+
+		while (!running.isEmpty()) {
+			iterator = running.iterator();
+			batch = iterator.next();
+			iterator.remove();
+			fail(batch, error);
+		}
+		while ((conn = tlsConnections.poll()) != null) {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Performs the I/O for which the socket of a handler, or a TLS connection,
+	 * has been selected.
+	 *
+	 * @return false if the key does not belong to a DNSQueryTransportHandler
+	 * or a TLS connection
+	 */
+	public boolean handle(SelectionKey key) {
+		DNSQueryTransportHandler qh;
+
+		if (key.attachment() instanceof DNSQueryTLSConnection) {
+			handleTLS(key);
+			return true;
+		}
+		if (!(key.attachment() instanceof DNSQueryTransportHandler)) {
+			return false;
+		}
+		qh = (DNSQueryTransportHandler)key.attachment();
+		if (!key.isValid()) {
+			return true;
+		}
+
+		try {
+			if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0 && key.isConnectable()) {
+				if (qh.finishConnect()) {
+					if (qh.hasError()) {
+						finish(qh);
+						return true;
+					} else {
+						key.interestOps(SelectionKey.OP_WRITE);
 					}
 				}
+			}
 
-				if ((key.interestOps() & SelectionKey.OP_WRITE) != 0 && key.isWritable()) {
-					if (qh.doWrite()) {
-						if (qh.hasError()) {
-							activeQueue.remove(qh);
-
-							if (qh.getChannel() instanceof DatagramChannel) {
-								/* prepare and queue one from the standbyQueue, now that
-								 * there's a space available */
-								standbyQH = standbyQueue.poll();
-								if (standbyQH != null) {
-									prepareAndQueue(standbyQH, activeQueue, selector);
-								}
-							}
-							continue;
-						} else {
-							key.interestOps(SelectionKey.OP_READ);
-						}
+			if ((key.interestOps() & SelectionKey.OP_WRITE) != 0 && key.isWritable()) {
+				if (qh.doWrite()) {
+					if (qh.hasError()) {
+						finish(qh);
+						return true;
+					} else {
+						key.interestOps(SelectionKey.OP_READ);
 					}
 				}
+			}
 
-				if ((key.interestOps() & SelectionKey.OP_READ) != 0 && key.isReadable()) {
-					if (qh.doRead()) {
-						activeQueue.remove(qh);
+			if ((key.interestOps() & SelectionKey.OP_READ) != 0 && key.isReadable()) {
+				if (qh.doRead()) {
+					finish(qh);
+				}
+			}
+		} catch (IOException ex) {
+			fail(qh.batch, ex);
+		}
+		return true;
+	}
 
-						if (qh.getChannel() instanceof DatagramChannel) {
-							/* prepare and queue one from the standbyQueue, now that
-							 * there's a space available */
+	private void handleTLS(SelectionKey key) {
+		LinkedList<DNSQueryTransportHandlerTLS> done = new LinkedList<>();
+		DNSQueryTransportHandlerTLS qh;
 
-							standbyQH = standbyQueue.poll();
-							if (standbyQH != null) {
-								prepareAndQueue(standbyQH, activeQueue, selector);
-							}
-						}
-						continue;
-					}
+		if (!key.isValid()) {
+			return;
+		}
+		((DNSQueryTLSConnection)key.attachment()).handle(key, done);
+		while ((qh = done.poll()) != null) {
+			finish(qh);
+		}
+	}
+
+	/**
+	 * Runs a batch of handlers to completion.  This must not be called on a
+	 * manager that shares its Selector with an event loop.  The batch isn't
+	 * subject to the bound on the queue, as the caller waits for it anyway;
+	 * its queries are still admitted to flight as there is room.
+	 */
+	public void query(DNSQueryTransportHandler[] queryHandlers) throws IOException {
+		long timeout;
+		boolean ownSelector = selector == null;
+		DNSQueryBatch batch;
+
+		if (ownSelector) {
+			selector = network.openSelector();
+		}
+		try {
+			batch = enqueue(queryHandlers, null, null, null);
+			while (true) {
+				timeout = service();
+				if (batch.isComplete()) {
+					break;
+				}
+
+				selector.select(timeout);
+
+				Set<SelectionKey> selectedKeys = selector.selectedKeys();
+				Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+				while (keyIterator.hasNext()) {
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+					handle(key);
 				}
 			}
+		} finally {
+			if (ownSelector) {
+				close();
+				selector.close();
+				selector = null;
+			}
+		}
+
+		if (batch.getError() != null) {
+			throw batch.getError();
 		}
 	}
 }
@@ -0,0 +1,71 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pool of direct ByteBuffers, for network buffers that are needed for the
+ * life of a connection and would otherwise be allocated for every new one.
+ */
+public class ByteBufferPool {
+	private final static int DEFAULT_MAX_POOLED = 64;
+
+	private final LinkedList<ByteBuffer> free = new LinkedList<>();
+	private final int maxPooled;
+
+	public ByteBufferPool() {
+		this(DEFAULT_MAX_POOLED);
+	}
+
+	public ByteBufferPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer with a capacity of at least `size` bytes
+	 */
+	public synchronized ByteBuffer acquire(int size) {
+		ByteBuffer buf;
+		Iterator<ByteBuffer> iterator = free.iterator();
+		while (iterator.hasNext()) {
+			buf = iterator.next();
+			if (buf.capacity() >= size) {
+				iterator.remove();
+				buf.clear();
+				return buf;
+			}
+		}
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * Returns a buffer to the pool.  The buffer must not be used afterwards.
+	 */
+	public synchronized void release(ByteBuffer buf) {
+		if (buf != null && buf.isDirect() && free.size() < maxPooled) {
+			free.add(buf);
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, read-only view of a DNS message in wire format.  All reads are
+ * absolute gets against the wrapped buffer, so wrapping a message and
+ * inspecting it neither allocates nor disturbs the buffer's position or limit.
+ */
+public class DNSMessageView {
+	public final static int HEADER_LENGTH = 12;
+	public final static int TYPE_OPT = 41;
+
+	private final static int MAX_NAME_LENGTH = 255;
+	private final static int MAX_POINTERS = 64;
+
+	private ByteBuffer buf = null;
+	private int start = 0;
+	private int end = 0;
+
+	private boolean wellFormed = false;
+	private int questionOffset = -1;
+	private int optOffset = -1;
+
+	/**
+	 * Points the view at the message occupying `buf` from `start` (inclusive)
+	 * to `end` (exclusive), and locates its question and OPT record.
+	 */
+	public void wrap(ByteBuffer buf, int start, int end) {
+		int offset;
+		int rrcount;
+		int arstart;
+
+		this.buf = buf;
+		this.start = start;
+		this.end = end;
+		wellFormed = false;
+		questionOffset = -1;
+		optOffset = -1;
+
+		if (getLength() < HEADER_LENGTH) {
+			return;
+		}
+
+		offset = start + HEADER_LENGTH;
+		for (int i = 0; i < getQDCount(); i++) {
+			if ((offset = skipName(offset)) < 0 || offset + 4 > end) {
+				return;
+			}
+			if (i == 0) {
+				questionOffset = offset;
+			}
+			offset += 4;
+		}
+
+		arstart = getANCount() + getNSCount();
+		rrcount = arstart + getARCount();
+		for (int i = 0; i < rrcount; i++) {
+			if ((offset = skipName(offset)) < 0 || offset + 10 > end) {
+				return;
+			}
+			if (i >= arstart && optOffset < 0 && getShort(offset) == TYPE_OPT) {
+				optOffset = offset;
+			}
+			offset += 10 + getShort(offset + 8);
+			if (offset > end) {
+				return;
+			}
+		}
+		wellFormed = true;
+	}
+
+	public int getLength() {
+		return end - start;
+	}
+
+	/**
+	 * @return true if every section of the message could be walked within its
+	 * bounds
+	 */
+	public boolean isWellFormed() {
+		return wellFormed;
+	}
+
+	private int getShort(int offset) {
+		return ((buf.get(offset) & 0xff) << 8) | (buf.get(offset + 1) & 0xff);
+	}
+
+	/**
+	 * Returns the offset immediately following the name starting at `offset`,
+	 * without following compression pointers, or -1 if the name is invalid or
+	 * runs past the end of the message.
+	 */
+	private int skipName(int offset) {
+		int len;
+		while (offset < end) {
+			len = buf.get(offset) & 0xff;
+			if ((len & 0xc0) == 0xc0) {
+				return offset + 2 <= end ? offset + 2 : -1;
+			} else if ((len & 0xc0) != 0) {
+				return -1;
+			}
+			offset += len + 1;
+			if (len == 0) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Follows any compression pointers at `offset` and returns the offset of
+	 * the label reached, or -1 if a pointer is invalid, does not point
+	 * backwards, or too many pointers are chained.
+	 */
+	private int resolveLabel(int offset) {
+		int len;
+		int target;
+		int pointers = 0;
+		while (offset < end) {
+			len = buf.get(offset) & 0xff;
+			if ((len & 0xc0) == 0) {
+				return offset + len < end ? offset : -1;
+			} else if ((len & 0xc0) != 0xc0 || offset + 1 >= end) {
+				return -1;
+			}
+			target = start + (((len & 0x3f) << 8) | (buf.get(offset + 1) & 0xff));
+			if (target >= offset || ++pointers > MAX_POINTERS) {
+				return -1;
+			}
+			offset = target;
+		}
+		return -1;
+	}
+
+	/* header */
+
+	public int getId() {
+		return getShort(start);
+	}
+
+	public int getFlags() {
+		return getShort(start + 2);
+	}
+
+	public boolean isResponse() {
+		return (getFlags() & 0x8000) != 0;
+	}
+
+	public int getOpcode() {
+		return (getFlags() >> 11) & 0xf;
+	}
+
+	public boolean isAuthoritative() {
+		return (getFlags() & 0x0400) != 0;
+	}
+
+	public boolean isTruncated() {
+		return (getFlags() & 0x0200) != 0;
+	}
+
+	public boolean isRecursionDesired() {
+		return (getFlags() & 0x0100) != 0;
+	}
+
+	public boolean isRecursionAvailable() {
+		return (getFlags() & 0x0080) != 0;
+	}
+
+	/**
+	 * @return the rcode, including the upper bits carried in the OPT record, if
+	 * there is one
+	 */
+	public int getRcode() {
+		int rcode = getFlags() & 0xf;
+		if (hasOPT()) {
+			rcode |= getExtendedRcode() << 4;
+		}
+		return rcode;
+	}
+
+	public int getQDCount() {
+		return getShort(start + 4);
+	}
+
+	public int getANCount() {
+		return getShort(start + 6);
+	}
+
+	public int getNSCount() {
+		return getShort(start + 8);
+	}
+
+	public int getARCount() {
+		return getShort(start + 10);
+	}
+
+	/* question */
+
+	public boolean hasQuestion() {
+		return questionOffset >= 0;
+	}
+
+	/**
+	 * @return the type of the first question, or -1 if there is none
+	 */
+	public int getQuestionType() {
+		return hasQuestion() ? getShort(questionOffset) : -1;
+	}
+
+	/**
+	 * @return the class of the first question, or -1 if there is none
+	 */
+	public int getQuestionClass() {
+		return hasQuestion() ? getShort(questionOffset + 2) : -1;
+	}
+
+	/**
+	 * Compares the name of the first question with that of the first question
+	 * in another message, ignoring ASCII case.
+	 */
+	public boolean questionNameEquals(DNSMessageView other) {
+		int offset;
+		int otherOffset;
+		int len;
+		int total = 0;
+		byte b1;
+		byte b2;
+
+		if (!hasQuestion() || !other.hasQuestion()) {
+			return false;
+		}
+
+		offset = start + HEADER_LENGTH;
+		otherOffset = other.start + HEADER_LENGTH;
+		while (true) {
+			offset = resolveLabel(offset);
+			otherOffset = other.resolveLabel(otherOffset);
+			if (offset < 0 || otherOffset < 0) {
+				return false;
+			}
+			len = buf.get(offset) & 0xff;
+			if (len != (other.buf.get(otherOffset) & 0xff)) {
+				return false;
+			}
+			if (len == 0) {
+				return true;
+			}
+			if ((total += len + 1) > MAX_NAME_LENGTH) {
+				return false;
+			}
+			for (int i = 1; i <= len; i++) {
+				b1 = buf.get(offset + i);
+				b2 = other.buf.get(otherOffset + i);
+				if (b1 != b2 && toLower(b1) != toLower(b2)) {
+					return false;
+				}
+			}
+			offset += len + 1;
+			otherOffset += len + 1;
+		}
+	}
+
+	private static byte toLower(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte)(b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * Appends the name of the first question to `sb` in presentation format.
+	 *
+	 * @return false if there is no question or its name could not be decoded
+	 */
+	public boolean appendQuestionName(StringBuilder sb) {
+		int offset;
+		int len;
+		int c;
+		int total = 0;
+
+		if (!hasQuestion()) {
+			return false;
+		}
+
+		offset = start + HEADER_LENGTH;
+		while (true) {
+			if ((offset = resolveLabel(offset)) < 0) {
+				return false;
+			}
+			len = buf.get(offset) & 0xff;
+			if (len == 0) {
+				if (total == 0) {
+					sb.append('.');
+				}
+				return true;
+			}
+			if ((total += len + 1) > MAX_NAME_LENGTH) {
+				return false;
+			}
+			for (int i = 1; i <= len; i++) {
+				c = buf.get(offset + i) & 0xff;
+				if (c == '.' || c == '\\') {
+					sb.append('\\').append((char)c);
+				} else if (c < 0x21 || c > 0x7e) {
+					sb.append('\\');
+					sb.append((char)('0' + c / 100));
+					sb.append((char)('0' + (c / 10) % 10));
+					sb.append((char)('0' + c % 10));
+				} else {
+					sb.append((char)c);
+				}
+			}
+			sb.append('.');
+			offset += len + 1;
+		}
+	}
+
+	/* EDNS */
+
+	public boolean hasOPT() {
+		return optOffset >= 0;
+	}
+
+	public int getUDPPayloadSize() {
+		return getShort(optOffset + 2);
+	}
+
+	public int getExtendedRcode() {
+		return buf.get(optOffset + 4) & 0xff;
+	}
+
+	public int getEDNSVersion() {
+		return buf.get(optOffset + 5) & 0xff;
+	}
+
+	public int getEDNSFlags() {
+		return getShort(optOffset + 6);
+	}
+
+	public boolean isDNSSECOK() {
+		return (getEDNSFlags() & 0x8000) != 0;
+	}
+
+	public int getOPTDataLength() {
+		return getShort(optOffset + 8);
+	}
+}
@@ -26,29 +26,194 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
+/**
+ * The DNS servers configured on this system.
+ *
+ * There is one instance per process, from getDefault().  The configuration
+ * is read when it is first asked for, from /etc/resolv.conf, and is then kept
+ * up to date in the background: /etc/resolv.conf (and the file it links to,
+ * if it is a link) is watched for changes by a single daemon thread.  On
+ * Windows, netsh is probed in the background too, as it can be slow, and its
+ * servers are added to the snapshot, and the listeners notified, when it
+ * finishes.  Asking for the servers again just returns the latest snapshot.
+ */
 public class DNSSettings {
+	private final static Path RESOLV_CONF = FileSystems.getDefault().getPath("/", "etc", "resolv.conf");
+	private final static Pattern ipCharsRE = Pattern.compile("[0-9a-fA-F\\.:]+(%.+)?");
+
+	private static DNSSettings defaultSettings = null;
+
+	private final CopyOnWriteArrayList<DNSSettingsListener> listeners = new CopyOnWriteArrayList<>();
+
+	// the servers found in each source, and the combined list that is
+	// handed out, guarded by `this`
+	private List<InetAddress> resolvConfServers = Collections.emptyList();
+	private List<InetAddress> platformServers = Collections.emptyList();
+	private volatile List<InetAddress> snapshot = Collections.emptyList();
+
+	private boolean started = false;
+	private WatchService watchService = null;
+	private final Set<Path> watchedFiles = new HashSet<>();
+
+	private DNSSettings() {
+	}
+
+	/**
+	 * @return the instance shared by the process
+	 */
+	public static synchronized DNSSettings getDefault() {
+		if (defaultSettings == null) {
+			defaultSettings = new DNSSettings();
+		}
+		return defaultSettings;
+	}
 
 	public InetAddress [] getDNSServers() {
-		final Pattern ipCharsRE = Pattern.compile("[0-9a-fA-F\\.:]+(%.+)?");
-		String line;
-		boolean foundColon;
-		boolean lineHasColon;
-		BufferedReader reader;
-		ProcessBuilder [] pbs;
-		Process p;
+		List<InetAddress> servers = getSnapshot();
+		return servers.toArray(new InetAddress[servers.size()]);
+	}
+
+	/**
+	 * @return an unmodifiable list of the DNS servers currently configured.
+	 * Servers from /etc/resolv.conf come first.
+	 */
+	public List<InetAddress> getSnapshot() {
+		start();
+		return snapshot;
+	}
+
+	public void addListener(DNSSettingsListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(DNSSettingsListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Reads the configuration, if it hasn't been read yet, and starts keeping
+	 * it up to date.  The snapshot from /etc/resolv.conf is published before
+	 * this returns; the platform-specific sources are probed in the
+	 * background (see refreshPlatformServers()).
+	 */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+
+		setResolvConfServers(readResolvConf());
+		startWatching();
+		refreshPlatformServers();
+	}
+
+	/**
+	 * Stops watching for changes.  The last snapshot remains available, and
+	 * the configuration is read again, and watched, when next asked for.
+	 */
+	public void close() {
+		WatchService ws;
+		synchronized (this) {
+			started = false;
+			ws = watchService;
+			watchService = null;
+		}
+		if (ws != null) {
+			try {
+				ws.close();
+			} catch (IOException e) {
+				/* Nothing more to be done.  Move along. */
+			}
+		}
+	}
+
+	/**
+	 * Probes the platform-specific sources again, in the background, e.g.,
+	 * after a change of network.  It does nothing on systems that have none.
+	 */
+	public void refreshPlatformServers() {
+		if (!isWindows()) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				setPlatformServers(readNetsh());
+			}
+		}, "DNSSettings netsh probe");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static boolean isWindows() {
+		String os = System.getProperty("os.name");
+		return os != null && os.startsWith("Windows");
+	}
+
+	private void setResolvConfServers(List<InetAddress> servers) {
+		synchronized (this) {
+			resolvConfServers = servers;
+		}
+		update();
+	}
+
+	private void setPlatformServers(List<InetAddress> servers) {
+		synchronized (this) {
+			platformServers = servers;
+		}
+		update();
+	}
 
+	/**
+	 * Combines the servers from all sources into a new snapshot, and notifies
+	 * the listeners if it differs from the last one.
+	 */
+	private void update() {
+		ArrayList<InetAddress> servers = new ArrayList<>();
+		synchronized (this) {
+			for (InetAddress addr : resolvConfServers) {
+				if (!servers.contains(addr)) {
+					servers.add(addr);
+				}
+			}
+			for (InetAddress addr : platformServers) {
+				if (!servers.contains(addr)) {
+					servers.add(addr);
+				}
+			}
+			if (servers.equals(snapshot)) {
+				return;
+			}
+			snapshot = Collections.unmodifiableList(servers);
+		}
+		for (DNSSettingsListener listener : listeners) {
+			listener.dnsServersChanged(this);
+		}
+	}
+
+	private static List<InetAddress> readResolvConf() {
 		LinkedList<InetAddress> addresses = new LinkedList<InetAddress>();
-		InetAddress [] ret;
 		InetAddress addr;
 		String [] words;
 
 		try {
-			String[] lines = Files.readAllLines(FileSystems.getDefault().getPath("/", "etc", "resolv.conf")).toArray(new String[0]);
+			String[] lines = Files.readAllLines(RESOLV_CONF).toArray(new String[0]);
 			for (int i = 0; i < lines.length; i++) {
 				words = lines[i].split("\\s+");
 				if (words.length > 1 && words[0].equals("nameserver")) {
@@ -65,6 +230,19 @@ public class DNSSettings {
 		} catch (IOException e) {
 			/* File not found, error opening or reading, etc.  Move along. */
 		}
+		return addresses;
+	}
+
+	private static List<InetAddress> readNetsh() {
+		String line;
+		boolean foundColon;
+		boolean lineHasColon;
+		ProcessBuilder [] pbs;
+		Process p;
+
+		LinkedList<InetAddress> addresses = new LinkedList<InetAddress>();
+		InetAddress addr;
+		String [] words;
 
 		pbs = new ProcessBuilder [] {
 			/* Windows XP */
@@ -77,8 +255,13 @@ public class DNSSettings {
 		for (int i = 0; i < pbs.length; i++) {
 			try {
 				p = pbs[i].start();
+			} catch (IOException e) {
+				/* Command not found, bad arguments. etc.  Move along. */
+				continue;
+			}
 
-				reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				p.getOutputStream().close();
 				foundColon = false;
 				lineHasColon = false;
 				while ((line = reader.readLine()) != null) {
@@ -103,11 +286,113 @@ public class DNSSettings {
 						foundColon = true;
 					}
 				}
+				p.waitFor();
 			} catch (IOException e) {
-					/* Command not found, bad arguments. etc.  Move along. */
+				/* Error reading the output.  Move along. */
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} finally {
+				p.destroy();
 			}
 		}
+		return addresses;
+	}
 
-		return addresses.toArray(new InetAddress[addresses.size()]);
+	/**
+	 * Watches the directory of /etc/resolv.conf, and that of the file it links
+	 * to, if it is a link (e.g., to one maintained by systemd-resolved or
+	 * NetworkManager), from a daemon thread.
+	 */
+	private void startWatching() {
+		final WatchService ws;
+		try {
+			ws = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			return;
+		}
+		try {
+			watch(ws, RESOLV_CONF);
+			watchLinkTarget(ws);
+		} catch (IOException e) {
+			/* No /etc (e.g., on Windows).  Move along. */
+			try {
+				ws.close();
+			} catch (IOException ex) {
+				/* Move along. */
+			}
+			return;
+		}
+
+		synchronized (this) {
+			watchService = ws;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				processEvents(ws);
+			}
+		}, "DNSSettings watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void watch(WatchService ws, Path file) throws IOException {
+		file.getParent().register(ws,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		synchronized (watchedFiles) {
+			watchedFiles.add(file);
+		}
+	}
+
+	private void watchLinkTarget(WatchService ws) {
+		Path target;
+		try {
+			target = RESOLV_CONF.toRealPath();
+			if (!target.equals(RESOLV_CONF)) {
+				watch(ws, target);
+			}
+		} catch (IOException e) {
+			/* Missing or dangling.  It is picked up when (re)created. */
+		}
+	}
+
+	private boolean isWatchedFile(Path dir, Object name) {
+		synchronized (watchedFiles) {
+			return name instanceof Path && watchedFiles.contains(dir.resolve((Path)name));
+		}
+	}
+
+	private void processEvents(WatchService ws) {
+		WatchKey key;
+		boolean changed;
+
+		while (true) {
+			try {
+				key = ws.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			changed = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+						isWatchedFile((Path)key.watchable(), event.context())) {
+					changed = true;
+				}
+			}
+			key.reset();
+
+			if (changed) {
+				try {
+					// the link may now point somewhere else
+					watchLinkTarget(ws);
+				} catch (ClosedWatchServiceException e) {
+					return;
+				}
+				setResolvConfServers(readResolvConf());
+			}
+		}
 	}
 }
@@ -0,0 +1,34 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.util;
+
+/**
+ * Notified by DNSSettings when the list of configured DNS servers changes.
+ */
+public interface DNSSettingsListener {
+	/**
+	 * Called after the snapshot of `settings` has been updated, from the
+	 * thread that updated it: its watcher, a netsh probe, or the thread that
+	 * first asked for the servers.
+	 */
+	public void dnsServersChanged(DNSSettings settings);
+}
@@ -0,0 +1,344 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ClosedChannelException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS connection layered over a SocketChannel with an SSLEngine.  It works
+ * with both blocking and non-blocking channels: in non-blocking mode, read()
+ * and write() return 0 when they can't make progress, and the caller should
+ * wait for the readiness given by needsWrite() before trying again.  The
+ * handshake is carried out as part of the first reads and writes.
+ *
+ * Sessions are resumed by the SSLContext, which caches them by the host and
+ * port the engine was created for, so connections that should resume each
+ * other's sessions must share an SSLContext.
+ */
+public class SSLEngineChannel implements ByteChannel {
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final ByteBufferPool pool;
+
+	// network data read but not yet unwrapped (in write mode), network data
+	// wrapped but not yet written (in read mode), and application data
+	// unwrapped but not yet read (in read mode)
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+
+	private boolean handshakeComplete = false;
+	private boolean eof = false;
+	private long handshakeStart = 0;
+	private long handshakeEnd = 0;
+
+	public SSLEngineChannel(SocketChannel channel, SSLEngine engine, ByteBufferPool pool) throws SSLException {
+		SSLSession session = engine.getSession();
+
+		this.channel = channel;
+		this.engine = engine;
+		this.pool = pool;
+
+		netIn = pool.acquire(session.getPacketBufferSize());
+		netOut = pool.acquire(session.getPacketBufferSize());
+		netOut.flip();
+		appIn = pool.acquire(session.getApplicationBufferSize());
+		appIn.flip();
+
+		handshakeStart = System.nanoTime();
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Creates a client-mode engine for connecting to `host` and `port`,
+	 * verifying that the server's certificate matches `host`, and offering
+	 * `protocols` with ALPN if the runtime supports it.
+	 */
+	public static SSLEngine createClientEngine(SSLContext context, String host, int port, String[] protocols) {
+		return createClientEngine(context, host, port, protocols, "HTTPS");
+	}
+
+	/**
+	 * Creates a client-mode engine as above, but verifying the server's
+	 * identity with `identification` (e.g., "HTTPS"), or not at all if it is
+	 * null.  The certificate chain is validated regardless.
+	 */
+	public static SSLEngine createClientEngine(SSLContext context, String host, int port, String[] protocols, String identification) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		SSLParameters params = engine.getSSLParameters();
+		engine.setUseClientMode(true);
+		params.setEndpointIdentificationAlgorithm(identification);
+		if (protocols != null) {
+			try {
+				Method m = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+				m.invoke(params, (Object)protocols);
+			} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+				/* ALPN isn't supported by this runtime.  Move along. */
+			}
+		}
+		engine.setSSLParameters(params);
+		return engine;
+	}
+
+	public SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	public boolean isHandshakeComplete() {
+		return handshakeComplete;
+	}
+
+	/**
+	 * @return the time taken by the handshake, in nanoseconds, or 0 if it
+	 * hasn't completed
+	 */
+	public long getHandshakeTime() {
+		return handshakeComplete ? handshakeEnd - handshakeStart : 0;
+	}
+
+	/**
+	 * @return true if wrapped data is waiting for the channel to become
+	 * writable
+	 */
+	public boolean needsWrite() {
+		return netOut.hasRemaining();
+	}
+
+	/**
+	 * Advances the handshake, or any post-handshake exchange, as far as
+	 * possible.
+	 *
+	 * @return true if nothing further is needed from the peer to proceed
+	 */
+	private boolean handshake() throws IOException {
+		Runnable task;
+		while (true) {
+			if (!flush()) {
+				return false;
+			}
+			switch (engine.getHandshakeStatus()) {
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					if (!handshakeComplete) {
+						handshakeComplete = true;
+						handshakeEnd = System.nanoTime();
+					}
+					return true;
+				case NEED_TASK:
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+					break;
+				case NEED_WRAP:
+					wrap(EMPTY);
+					break;
+				default: // NEED_UNWRAP
+					if (!unwrap()) {
+						return false;
+					}
+			}
+		}
+	}
+
+	/**
+	 * Unwraps network data into `appIn`, reading from the channel if more is
+	 * needed.
+	 *
+	 * @return false if no progress could be made
+	 */
+	private boolean unwrap() throws IOException {
+		SSLEngineResult result;
+		int bytesRead;
+
+		if (eof) {
+			return false;
+		}
+
+		netIn.flip();
+		appIn.compact();
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+			appIn.flip();
+		}
+
+		switch (result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				if (!netIn.hasRemaining()) {
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+				}
+				bytesRead = channel.read(netIn);
+				if (bytesRead < 0) {
+					eof = true;
+					try {
+						engine.closeInbound();
+					} catch (SSLException e) {
+						/* the peer didn't send close_notify.  Move along. */
+					}
+					return false;
+				}
+				return bytesRead > 0;
+			case BUFFER_OVERFLOW:
+				if (appIn.hasRemaining()) {
+					// the caller needs to consume what is already there
+					return false;
+				}
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+				return true;
+			case CLOSED:
+				eof = true;
+				return false;
+			default: // OK
+				return true;
+		}
+	}
+
+	private int wrap(ByteBuffer src) throws IOException {
+		SSLEngineResult result;
+
+		netOut.compact();
+		try {
+			result = engine.wrap(src, netOut);
+		} finally {
+			netOut.flip();
+		}
+
+		switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if (!netOut.hasRemaining()) {
+					netOut = grow(netOut, engine.getSession().getPacketBufferSize(), true);
+				}
+				return 0;
+			case CLOSED:
+				throw new ClosedChannelException();
+			default:
+				return result.bytesConsumed();
+		}
+	}
+
+	/**
+	 * Replaces `buf` with a pooled buffer of at least `size` bytes holding the
+	 * same contents, in the same mode.
+	 */
+	private ByteBuffer grow(ByteBuffer buf, int size, boolean readMode) {
+		ByteBuffer ret = pool.acquire(Math.max(size, buf.capacity() * 2));
+		if (readMode) {
+			ret.put(buf);
+			ret.flip();
+		} else {
+			buf.flip();
+			ret.put(buf);
+		}
+		pool.release(buf);
+		return ret;
+	}
+
+	/**
+	 * Writes as much wrapped data as the channel will take.
+	 *
+	 * @return true if all of it has been written
+	 */
+	public boolean flush() throws IOException {
+		while (netOut.hasRemaining()) {
+			if (channel.write(netOut) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		int len;
+		while (!appIn.hasRemaining()) {
+			if (eof || !handshake() || !unwrap()) {
+				break;
+			}
+		}
+		if (!appIn.hasRemaining()) {
+			return eof ? -1 : 0;
+		}
+
+		len = Math.min(appIn.remaining(), dst.remaining());
+		if (len == appIn.remaining()) {
+			dst.put(appIn);
+		} else {
+			ByteBuffer slice = appIn.duplicate();
+			slice.limit(slice.position() + len);
+			dst.put(slice);
+			appIn.position(appIn.position() + len);
+		}
+		return len;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		int consumed = 0;
+		if (!handshake()) {
+			return 0;
+		}
+		while (src.hasRemaining() && flush()) {
+			consumed += wrap(src);
+		}
+		flush();
+		return consumed;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Sends close_notify, if it can be sent without waiting, closes the
+	 * channel, and returns the buffers to the pool.
+	 */
+	public void close() throws IOException {
+		try {
+			if (channel.isOpen()) {
+				engine.closeOutbound();
+				wrap(EMPTY);
+				flush();
+			}
+		} catch (IOException e) {
+			/* the connection is being torn down anyway.  Move along. */
+		} finally {
+			channel.close();
+			pool.release(netIn);
+			pool.release(netOut);
+			pool.release(appIn);
+			netIn = netOut = appIn = EMPTY;
+		}
+	}
+}
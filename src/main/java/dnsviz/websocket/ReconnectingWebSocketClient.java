@@ -0,0 +1,291 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.websocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Random;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A WebSocketSession that keeps a connection to the DNSViz server open,
+ * reconnecting with jittered exponential backoff whenever the connection is
+ * lost, and using keepalive pings to notice a dead server quickly.  It can
+ * also keep a second, fully handshaken connection on standby, which takes
+ * over immediately if the active one fails.
+ *
+ * The session ends only when the server closes the active connection
+ * deliberately, with a close frame, or when close() is called.
+ *
+ * If an SSLContext is set, connections are made over TLS, and each new
+ * connection resumes the TLS session of the ones before it.
+ */
+public class ReconnectingWebSocketClient implements WebSocketSession {
+	public final static long DEFAULT_INITIAL_BACKOFF = 500;
+	public final static long DEFAULT_MAX_BACKOFF = 30000;
+	public final static long DEFAULT_PING_INTERVAL = 5000;
+	public final static long DEFAULT_PING_TIMEOUT = 5000;
+
+	private final String host;
+	private final int port;
+	private final String path;
+	private final String origin;
+
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+	private long pingInterval = DEFAULT_PING_INTERVAL;
+	private long pingTimeout = DEFAULT_PING_TIMEOUT;
+	private boolean standbyEnabled = false;
+	private SSLContext sslContext = null;
+
+	private final Random random = new Random();
+	private Selector selector = null;
+	private boolean closed = false;
+
+	private WebSocketClient active = null;
+	private WebSocketClient standby = null;
+
+	// connections lost since one last completed its handshake, and when the
+	// next attempt may be made, for the active and standby connections
+	// respectively
+	private int activeFailures = 0;
+	private long nextActiveAttempt = 0;
+	private int standbyFailures = 0;
+	private long nextStandbyAttempt = 0;
+
+	// the connection each polled message arrived on, in the order polled, so
+	// that each answer goes back where its request came from
+	private final LinkedList<WebSocketClient> replyTo = new LinkedList<>();
+
+	public ReconnectingWebSocketClient(String host, int port, String path, String origin) {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.origin = origin;
+	}
+
+	public void setBackoff(long initial, long max) {
+		initialBackoff = initial;
+		maxBackoff = max;
+	}
+
+	public void setKeepalive(long interval, long timeout) {
+		pingInterval = interval;
+		pingTimeout = timeout;
+	}
+
+	/**
+	 * Sets whether to keep a standby connection open alongside the active one.
+	 */
+	public void setStandby(boolean enabled) {
+		standbyEnabled = enabled;
+	}
+
+	/**
+	 * Sets the context from which to create TLS engines, or null (the
+	 * default) to connect without TLS.
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	public void register(Selector selector) throws IOException {
+		this.selector = selector;
+	}
+
+	public boolean owns(SelectionKey key) {
+		Object ws = key.attachment();
+		return ws != null && (ws == active || ws == standby);
+	}
+
+	public void handle(SelectionKey key) throws IOException {
+		WebSocketClient ws = (WebSocketClient)key.attachment();
+		try {
+			ws.handle(key);
+		} catch (IOException e) {
+			ws.close();
+		}
+	}
+
+	/**
+	 * @return the delay before the next attempt, after `failures` consecutive
+	 * failures: half the exponential backoff, plus a random part of up to the
+	 * other half
+	 */
+	private long getBackoff(int failures) {
+		long backoff = initialBackoff;
+		for (int i = 1; i < failures && backoff < maxBackoff; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, maxBackoff);
+		return backoff / 2 + (long)(random.nextDouble() * (backoff / 2));
+	}
+
+	private WebSocketClient connect() {
+		WebSocketClient ws;
+		try {
+			ws = new WebSocketClient(host, port, path, origin, false, sslContext);
+			ws.setKeepalive(pingInterval, pingTimeout);
+			ws.register(selector);
+			return ws;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces connections that have been lost, and services the keepalives
+	 * of those that remain.
+	 */
+	public long service() throws IOException {
+		long now = new Date().getTime();
+		long timeout = 0;
+
+		if (closed || selector == null) {
+			return 0;
+		}
+
+		if (active != null && active.isClosed()) {
+			if (active.isClosedByPeer()) {
+				close();
+				return 0;
+			}
+			activeFailures++;
+			nextActiveAttempt = now + getBackoff(activeFailures);
+			active = null;
+		}
+		if (standby != null && standby.isClosed()) {
+			standbyFailures++;
+			nextStandbyAttempt = now + getBackoff(standbyFailures);
+			standby = null;
+		}
+
+		// fail over to the standby, if it is ready
+		if (active == null && standby != null && standby.isOpen()) {
+			active = standby;
+			standby = null;
+		}
+
+		if (active == null && now >= nextActiveAttempt) {
+			if ((active = connect()) == null) {
+				activeFailures++;
+				nextActiveAttempt = now + getBackoff(activeFailures);
+			}
+		}
+		if (active != null && active.isOpen()) {
+			activeFailures = 0;
+			if (standbyEnabled && standby == null && now >= nextStandbyAttempt) {
+				if ((standby = connect()) == null) {
+					standbyFailures++;
+					nextStandbyAttempt = now + getBackoff(standbyFailures);
+				}
+			}
+		}
+		if (standby != null && standby.isOpen()) {
+			standbyFailures = 0;
+		}
+
+		if (active == null) {
+			timeout = Math.max(nextActiveAttempt - now, 1);
+		} else {
+			timeout = minTimeout(timeout, active.service());
+		}
+		if (standby != null) {
+			timeout = minTimeout(timeout, standby.service());
+		} else if (standbyEnabled && active != null && active.isOpen()) {
+			timeout = minTimeout(timeout, Math.max(nextStandbyAttempt - now, 1));
+		}
+		return timeout;
+	}
+
+	/* combines two select() timeouts, where 0 means no timeout */
+	private static long minTimeout(long t1, long t2) {
+		if (t1 == 0) {
+			return t2;
+		}
+		if (t2 == 0) {
+			return t1;
+		}
+		return Math.min(t1, t2);
+	}
+
+	public byte[] poll() {
+		byte[] message;
+		if (active != null && (message = active.poll()) != null) {
+			replyTo.add(active);
+			return message;
+		}
+		if (standby != null && (message = standby.poll()) != null) {
+			replyTo.add(standby);
+			return message;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends the answer to the oldest unanswered message, on the connection it
+	 * arrived on.  If that connection has since been lost, the answer is
+	 * dropped.
+	 */
+	public void write(byte[] data) throws IOException {
+		WebSocketClient ws = replyTo.poll();
+		if (ws != null && !ws.isClosed()) {
+			try {
+				ws.write(data);
+			} catch (IOException e) {
+				ws.close();
+			}
+		}
+	}
+
+	/**
+	 * Sends `data` on the active connection, if it is open, without taking the
+	 * place of any answer.  Otherwise, it is dropped.
+	 */
+	public void announce(byte[] data) throws IOException {
+		WebSocketClient ws = active;
+		if (ws != null && ws.isOpen()) {
+			try {
+				ws.announce(data);
+			} catch (IOException e) {
+				ws.close();
+			}
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		if (active != null) {
+			active.close();
+		}
+		if (standby != null) {
+			standby.close();
+		}
+	}
+}
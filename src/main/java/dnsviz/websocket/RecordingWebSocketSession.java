@@ -0,0 +1,98 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.websocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A WebSocketSession that records the requests polled from, and the responses
+ * written and announcements made to, another session.  If the recording can't
+ * be written to, it stops, but the session carries on.
+ */
+public class RecordingWebSocketSession implements WebSocketSession {
+	private final WebSocketSession session;
+	private final SessionRecording recording;
+	private final int index;
+	private boolean failed = false;
+
+	/**
+	 * @param index - the number by which the session is identified in the
+	 * recording, if several share it
+	 */
+	public RecordingWebSocketSession(WebSocketSession session, SessionRecording recording, int index) {
+		this.session = session;
+		this.recording = recording;
+		this.index = index;
+	}
+
+	private void record(byte type, byte[] data) {
+		if (failed) {
+			return;
+		}
+		try {
+			recording.append(index, type, data);
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+	public void register(Selector selector) throws IOException {
+		session.register(selector);
+	}
+
+	public boolean owns(SelectionKey key) {
+		return session.owns(key);
+	}
+
+	public void handle(SelectionKey key) throws IOException {
+		session.handle(key);
+	}
+
+	public long service() throws IOException {
+		return session.service();
+	}
+
+	public byte[] poll() {
+		byte[] message = session.poll();
+		if (message != null) {
+			record(SessionRecording.REQUEST, message);
+		}
+		return message;
+	}
+
+	public void write(byte[] data) throws IOException {
+		record(SessionRecording.RESPONSE, data);
+		session.write(data);
+	}
+
+	public void announce(byte[] data) throws IOException {
+		record(SessionRecording.ANNOUNCEMENT, data);
+		session.announce(data);
+	}
+
+	public boolean isClosed() {
+		return session.isClosed();
+	}
+}
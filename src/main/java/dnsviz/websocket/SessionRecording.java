@@ -0,0 +1,128 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact, append-only recording of the messages exchanged on one or more
+ * WebSocketSessions: each request received, and each response and
+ * announcement sent, with the session it belongs to and the nanoseconds since
+ * the recording started.
+ * Since responses carry the DNS answers and timings of their queries, a
+ * recording holds everything needed to replay the sessions.
+ *
+ * The file is gzip-compressed, and flushed after each record, so that a
+ * recording cut short by a crash can still be read up to its last complete
+ * record.
+ */
+public class SessionRecording {
+	public static final byte REQUEST = 1;
+	public static final byte RESPONSE = 2;
+	public static final byte ANNOUNCEMENT = 3;
+
+	private final static int MAGIC = 0x4c475231;
+
+	private final DataOutputStream out;
+	private final long start;
+
+	/**
+	 * Starts a new recording in `file`, replacing any that is there.
+	 */
+	public SessionRecording(File file) throws IOException {
+		out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), true));
+		start = System.nanoTime();
+		out.writeInt(MAGIC);
+		out.writeLong(System.currentTimeMillis());
+		out.flush();
+	}
+
+	public synchronized void append(int session, byte type, byte[] data) throws IOException {
+		out.writeByte(type);
+		out.writeShort(session);
+		out.writeLong(System.nanoTime() - start);
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * @return the records in `file`, in the order they were made
+	 */
+	public static List<Record> read(File file) throws IOException {
+		ArrayList<Record> ret = new ArrayList<>();
+		byte type;
+		int session;
+		long time;
+		byte[] data;
+
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a session recording");
+			}
+			in.readLong();
+			while (true) {
+				try {
+					type = in.readByte();
+					session = in.readUnsignedShort();
+					time = in.readLong();
+					data = new byte[in.readInt()];
+					in.readFully(data);
+				} catch (EOFException e) {
+					break;
+				}
+				ret.add(new Record(session, type, time, data));
+			}
+		}
+		return ret;
+	}
+
+	public static class Record {
+		public final int session;
+		public final byte type;
+		public final long time;
+		public final byte[] data;
+
+		Record(int session, byte type, long time, byte[] data) {
+			this.session = session;
+			this.type = type;
+			this.time = time;
+			this.data = data;
+		}
+	}
+}
@@ -22,45 +22,183 @@
 package dnsviz.websocket;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Random;
+import javax.net.ssl.SSLContext;
 
 import dnsviz.util.Base64Encoder;
+import dnsviz.util.ByteBufferPool;
+import dnsviz.util.SSLEngineChannel;
 
-public class WebSocketClient {
+/**
+ * A WebSocket client for talking to the DNSViz server.
+ *
+ * A client created in blocking mode completes its connection and opening
+ * handshake in the constructor, and may then be used with read() and write().
+ * Any client may instead be registered with a Selector, in which case
+ * handle() must be called whenever its key is selected, and service()
+ * before each select; the connection and handshake (if not already done)
+ * then proceed as the channel allows, complete messages are collected with
+ * poll(), and write() queues messages to be sent as the channel becomes
+ * writable.
+ *
+ * If an SSLContext is given, the connection is made over TLS (wss://).
+ * Clients created with the same SSLContext resume each other's TLS sessions,
+ * so reconnecting to the same server skips most of the TLS handshake.
+ */
+public class WebSocketClient implements WebSocketSession {
 
 	final static protected String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
 	final static protected int WEBSOCKET_VERSION = 13;
 
+	final static protected int OPCODE_CONTINUATION = 0x0;
+	final static protected int OPCODE_TEXT = 0x1;
+	final static protected int OPCODE_BINARY = 0x2;
+	final static protected int OPCODE_CLOSE = 0x8;
+	final static protected int OPCODE_PING = 0x9;
+	final static protected int OPCODE_PONG = 0xa;
+
+	final static protected int STATE_CONNECTING = 0;
+	final static protected int STATE_HANDSHAKE = 1;
+	final static protected int STATE_OPEN = 2;
+	final static protected int STATE_CLOSED = 3;
+
+	final static protected long HANDSHAKE_TIMEOUT = 10000;
+
+	final static protected String[] TLS_APPLICATION_PROTOCOLS = new String[] { "http/1.1" };
+
+	// network buffers for TLS, kept from one connection to the next
+	final static protected ByteBufferPool tlsBufferPool = new ByteBufferPool();
+
 	protected SocketChannel channel = null;
+	protected SelectionKey key = null;
+
+	// what is read from and written to: the channel itself, or the TLS
+	// connection over it
+	protected ByteChannel io = null;
+	protected SSLContext sslContext = null;
+	protected SSLEngineChannel tls = null;
 
+	protected int state = STATE_CONNECTING;
+	protected boolean closedByPeer = false;
+
+	protected String host;
+	protected int port;
+	protected String path;
+	protected String origin;
+	protected String serverKey;
+
+	// bytes read from the channel but not yet decoded
 	protected ByteBuffer buffer = null;
 
+	protected Random random = new Random();
+
+	// how far the handshake response has been scanned for its end
+	private int headerScanOffset = 0;
+
+	// state of the frame currently being decoded; frame is null while the
+	// decoder is waiting for a frame header
+	private byte[] frame = null;
+	private int frameOffset = 0;
+	private int frameOpcode = 0;
+	private boolean frameFin = false;
+
+	// frames of the data message currently being received
+	private LinkedList<byte[]> fragments = new LinkedList<>();
+	private long fragmentsLength = 0;
+
+	// complete messages not yet returned by poll()
+	private LinkedList<byte[]> messages = new LinkedList<>();
+
+	// encoded frames not yet written to the channel
+	private LinkedList<ByteBuffer> outgoing = new LinkedList<>();
+
+	// keepalive settings and state; a ping interval of 0 disables keepalives
+	protected long pingInterval = 0;
+	protected long pingTimeout = 0;
+	private long startTime;
+	private long lastReceived;
+	private long pingSent = 0;
+
 	public WebSocketClient(String host, int port, String path, String origin) throws IOException {
-		channel = SocketChannel.open();
-		channel.connect(new InetSocketAddress(InetAddress.getByName(host), port));
+		this(host, port, path, origin, true);
+	}
+
+	/**
+	 * @param blocking - whether to complete the connection and handshake
+	 * before returning
+	 */
+	public WebSocketClient(String host, int port, String path, String origin, boolean blocking) throws IOException {
+		this(host, port, path, origin, blocking, null);
+	}
+
+	/**
+	 * @param blocking - whether to complete the connection and handshake
+	 * before returning
+	 * @param sslContext - the context from which to create the TLS engine, or
+	 * null to connect without TLS
+	 */
+	public WebSocketClient(String host, int port, String path, String origin, boolean blocking, SSLContext sslContext) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.origin = origin;
+		this.sslContext = sslContext;
 
 		buffer = ByteBuffer.allocate(8192);
+		startTime = new Date().getTime();
+		lastReceived = startTime;
 
-		final String clientKey = keyForClient();
-		final String serverKey = keyForServer(clientKey);
-		sendRequestHeaders(path, host, origin, clientKey);
-		getResponseHeaders(serverKey);
+		channel = SocketChannel.open();
+		io = channel;
+		try {
+			// the handshakes and most messages are small, and would otherwise
+			// wait on the server's delayed ACK of the previous segment
+			channel.socket().setTcpNoDelay(true);
+			channel.configureBlocking(blocking);
+			if (channel.connect(new InetSocketAddress(InetAddress.getByName(host), port))) {
+				connected();
+			}
+
+			while (blocking && state == STATE_HANDSHAKE) {
+				fill();
+			}
+			if (state == STATE_CLOSED) {
+				throw new IOException("Connection closed during handshake");
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Enables keepalives: a ping is sent after `interval` milliseconds without
+	 * hearing from the server, and the connection is considered dead if
+	 * nothing is heard within `timeout` milliseconds of the ping.
+	 */
+	public void setKeepalive(long interval, long timeout) {
+		pingInterval = interval;
+		pingTimeout = timeout;
 	}
 
 	/**
 	 * Closes the IO connection
 	 */
 	public void close() throws IOException {
-		channel.close();
+		state = STATE_CLOSED;
+		io.close();
 	}
 
 	/**
@@ -84,8 +222,24 @@ public class WebSocketClient {
 	 * @return a random string
 	 */
 	protected String keyForClient() {
-		BigInteger n = new BigInteger(64, new Random());
-		return new String(new Base64Encoder().encode(n.toByteArray()));
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		return new String(new Base64Encoder().encode(nonce));
+	}
+
+	/**
+	 * Starts the opening handshake once the connection is established.
+	 */
+	protected void connected() throws IOException {
+		final String clientKey = keyForClient();
+		serverKey = keyForServer(clientKey);
+		if (sslContext != null) {
+			tls = new SSLEngineChannel(channel,
+					SSLEngineChannel.createClientEngine(sslContext, host, port, TLS_APPLICATION_PROTOCOLS), tlsBufferPool);
+			io = tls;
+		}
+		state = STATE_HANDSHAKE;
+		sendRequestHeaders(path, host, origin, clientKey);
 	}
 
 	private void sendRequestHeaders(String path, String host, String origin, String clientKey) throws IOException {
@@ -99,62 +253,99 @@ public class WebSocketClient {
 		ByteBuffer buf = ByteBuffer.allocate(headers.length());
 		buf.put(headers.getBytes());
 		buf.flip();
-		channel.write(buf);
+		outgoing.add(buf);
+		flush();
 	}
 
-	protected void getResponseHeaders(String serverKey) throws IOException {
-		String headers = "";
-		String[] headerLines;
-		byte[] bytes;
-		int endOfHeadersIndex = -1;
-		int endOfName = -1;
+	/**
+	 * Scans the bytes received so far for the end of the handshake response,
+	 * picking up where the previous scan left off, and validates the response
+	 * once it is complete.  Anything the server sent after the response is
+	 * left in `buffer`.
+	 */
+	protected void parseResponseHeaders() throws IOException {
+		int endOfHeaders = -1;
+		byte b;
+		byte prev;
+
+		for (; headerScanOffset < buffer.position(); headerScanOffset++) {
+			if (headerScanOffset < 1) {
+				continue;
+			}
+			b = buffer.get(headerScanOffset);
+			prev = buffer.get(headerScanOffset - 1);
+			if ((b == '\n' && prev == '\n') || (b == '\r' && prev == '\r') ||
+					(b == '\n' && prev == '\r' && headerScanOffset >= 3 &&
+					 buffer.get(headerScanOffset - 2) == '\n' && buffer.get(headerScanOffset - 3) == '\r')) {
+				endOfHeaders = headerScanOffset + 1;
+				break;
+			}
+		}
+
+		if (endOfHeaders < 0) {
+			if (!buffer.hasRemaining()) {
+				throw new IOException("Invalid response: headers too long");
+			}
+			return;
+		}
+
+		checkResponseHeaders(endOfHeaders);
+
+		// keep only what follows the headers
+		buffer.flip();
+		buffer.position(endOfHeaders);
+		buffer.compact();
+		state = STATE_OPEN;
+	}
+
+	/**
+	 * Validates the handshake response occupying the first `len` bytes of
+	 * `buffer`.
+	 */
+	protected void checkResponseHeaders(int len) throws IOException {
+		String line;
+		String name;
+		String value;
+		int start = 0;
+		int colon;
+		boolean statusLine = true;
 		boolean upgradeFound = false;
 		boolean connectionFound = false;
 		boolean acceptFound = false;
+		byte b;
 
-		ByteBuffer buf = ByteBuffer.allocate(2048);
-
-		while (true) {
-			channel.read(buf);
-			bytes = new byte [buf.position()];
-			buf.rewind();
-			buf.get(bytes);
-			headers += new String(bytes);
-			buf.clear();
-
-			endOfHeadersIndex = headers.indexOf("\r\n\r\n");
-			if (endOfHeadersIndex >= 0) {
-				endOfHeadersIndex += 4;
-				break;
+		for (int i = 0; i <= len; i++) {
+			b = i < len ? buffer.get(i) : (byte)'\n';
+			if (b != '\r' && b != '\n') {
+				continue;
 			}
-			endOfHeadersIndex = headers.indexOf("\n\n");
-			if (endOfHeadersIndex >= 0) {
-				endOfHeadersIndex += 2;
-				break;
-			}
-			endOfHeadersIndex = headers.indexOf("\r\r");
-			if (endOfHeadersIndex >= 0) {
-				endOfHeadersIndex += 2;
-				break;
+			if (i == start) {
+				start = i + 1;
+				continue;
 			}
-		}
 
-		// put any buffered data beyond headers into buffer
-		if (headers.length() > endOfHeadersIndex) {
-			buffer.put(headers.substring(endOfHeadersIndex).getBytes());
-		}
+			line = getHeaderLine(start, i);
+			start = i + 1;
 
-		headerLines = headers.split("\r\n|\n|\r");
-		if (!headerLines[0].matches("HTTP/\\d\\.\\d+ 101 .*")) {
-			throw new IOException("Invalid status response: " + headerLines[0]);
-		}
+			if (statusLine) {
+				String[] words = line.split(" ", 3);
+				if (words.length < 2 || !words[0].startsWith("HTTP/") || !words[1].equals("101")) {
+					throw new IOException("Invalid status response: " + line);
+				}
+				statusLine = false;
+				continue;
+			}
 
-		for (int i = 1; i < headerLines.length; i++) {
-			if (headerLines[i].matches("Upgrade:\\s*websocket\\s*")) {
+			if ((colon = line.indexOf(':')) < 0) {
+				continue;
+			}
+			name = line.substring(0, colon).trim();
+			value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Upgrade") && value.equalsIgnoreCase("websocket")) {
 				upgradeFound = true;
-			} else if (headerLines[i].matches("Connection:\\s*Upgrade\\s*")) {
+			} else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("Upgrade")) {
 				connectionFound = true;
-			} else if (headerLines[i].matches("Sec-WebSocket-Accept:\\s*" + serverKey.replaceAll("\\+", "\\\\+") + "\\s*")) {
+			} else if (name.equalsIgnoreCase("Sec-WebSocket-Accept") && value.equals(serverKey)) {
 				acceptFound = true;
 			}
 		}
@@ -170,120 +361,345 @@ public class WebSocketClient {
 		}
 	}
 
-	public byte[] read() throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(2048);
+	private String getHeaderLine(int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char)(buffer.get(i) & 0xff);
+		}
+		return new String(chars);
+	}
 
-		int byte0;
-		int byte1;
-		int byte1b;
-		int headerLen;
-		long frameLen = -1;
-		boolean hasMore = true;
-		LinkedList<byte[]> frames = new LinkedList<>();
-		byte[] frame;
-		byte[] message;
-		long totalLength = 0;
-		int index = 0;
+	/**
+	 * Switches the channel to non-blocking mode and registers it with
+	 * `selector`, with this client as the key's attachment.
+	 */
+	public void register(Selector selector) throws IOException {
+		channel.configureBlocking(false);
+		key = channel.register(selector, getInterestOps(), this);
+	}
 
-		// first read any content from buffer
-		if (buffer.position() > 0) {
-			buffer.flip();
-			buf.put(buffer);
-			buffer.clear();
+	private int getInterestOps() {
+		if (state == STATE_CONNECTING) {
+			return SelectionKey.OP_CONNECT;
 		}
+		if (tls != null && !tls.isHandshakeComplete()) {
+			// frames can't be written until the TLS handshake is done
+			return tls.needsWrite() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+		}
+		return hasPendingWrites() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+	}
 
-		while (hasMore) {
-			while (buf.position() < 2) {
-				channel.read(buf);
-			}
-
-			byte0 = buf.get(0) & 0xff;
-			byte1 = buf.get(1) & 0xff;
-			byte1b = byte1 & 0x7f;
+	/**
+	 * Performs the I/O for which the channel has been selected.
+	 */
+	public boolean owns(SelectionKey key) {
+		return key.attachment() == this;
+	}
 
-			// mask must not be set
-			if ((byte1 & 0x80) != 0) {
-				throw new IOException("Mask is set in frame");
+	public void handle(SelectionKey key) throws IOException {
+		if (key.isValid() && key.isConnectable()) {
+			if (channel.finishConnect()) {
+				connected();
+				key.interestOps(getInterestOps());
 			}
+		}
+		if (key.isValid() && key.isReadable()) {
+			fill();
+		}
+		// reading may have completed the TLS handshake, which frees up frames
+		// waiting to be written
+		if (key.isValid() && (key.isWritable() || hasPendingWrites())) {
+			flush();
+		}
+	}
 
-			// check whether FIN flag is set or not
-			hasMore = (byte0 & 0x80) == 0;
+	/**
+	 * Sends keepalive pings, and closes the connection if the server has
+	 * stopped answering them or hasn't completed the handshake in time.
+	 */
+	public long service() throws IOException {
+		long now = new Date().getTime();
 
-			// determine length of header
-			if (byte1b <= 125) {
-				headerLen = 2;
-			} else if (byte1b == 126) {
-				headerLen = 4;
-			} else { // byte1b == 127:
-				headerLen = 10;
+		if (state == STATE_CLOSED) {
+			return 0;
+		}
+		if (state != STATE_OPEN) {
+			if (now - startTime >= HANDSHAKE_TIMEOUT) {
+				close();
+				return 0;
 			}
+			return startTime + HANDSHAKE_TIMEOUT - now;
+		}
+		if (pingInterval <= 0) {
+			return 0;
+		}
 
-			while (buf.position() < headerLen) {
-				channel.read(buf);
+		if (pingSent > 0) {
+			if (now - pingSent >= pingTimeout) {
+				close();
+				return 0;
 			}
+			return pingSent + pingTimeout - now;
+		}
+		if (now - lastReceived >= pingInterval) {
+			send(OPCODE_PING, new byte[0]);
+			pingSent = now;
+			return pingTimeout;
+		}
+		return lastReceived + pingInterval - now;
+	}
 
-			if (byte1b <= 125) {
-				frameLen = byte1b;
-			} else if (byte1b == 126) {
-				frameLen = ((buf.get(2) & 0xff) << 8) | (buf.get(3) & 0xff);
-			} else if (byte1b == 127) {
-				frameLen = (buf.getLong(2));
-			}
-			totalLength += frameLen;
+	/**
+	 * @return true once the handshake has completed and until the connection
+	 * is closed
+	 */
+	public boolean isOpen() {
+		return state == STATE_OPEN;
+	}
+
+	/**
+	 * @return true once the connection has been closed, by either end
+	 */
+	public boolean isClosed() {
+		return state == STATE_CLOSED;
+	}
+
+	/**
+	 * @return true if the server closed the connection deliberately, with a
+	 * close frame
+	 */
+	public boolean isClosedByPeer() {
+		return closedByPeer;
+	}
+
+	/**
+	 * @return the next complete message received, or null if there is none
+	 */
+	public byte[] poll() {
+		return messages.poll();
+	}
+
+	/**
+	 * Reads whatever is available from the channel and processes it.
+	 */
+	protected void fill() throws IOException {
+		int bytesRead;
 
-			// put any leftover content from buf into buffer
-			if (buf.position() >= headerLen) {
-				buf.flip().position(headerLen);
-				buffer.put(buf);
+		do {
+			if (state == STATE_CLOSED) {
+				return;
+			}
+			bytesRead = io.read(buffer);
+			if (bytesRead < 0) {
+				close();
+				return;
+			}
+			if (bytesRead > 0) {
+				lastReceived = new Date().getTime();
+				pingSent = 0;
 			}
 
-			if (frameLen > 0x7fffffff) {
-				throw new IOException("Frame size too big for buffer");
+			if (state == STATE_HANDSHAKE) {
+				parseResponseHeaders();
+			}
+			if (state == STATE_OPEN) {
+				decodeFrames();
 			}
 
-			// allocate a buffer that is for the whole frame, or the size of the
-			// previous buffer, whichever is greater
-			buf = ByteBuffer.allocate(Math.max((int)frameLen, buffer.position()));
-			// fill buf with content from buffer first
-			if (buffer.position() > 0) {
-				buffer.flip();
-				buf.put(buffer);
-				buffer.clear();
+			// the TLS connection may hold more decrypted data than fit in the
+			// buffer, which won't be signalled by the channel becoming readable
+		} while (bytesRead > 0 && tls != null && !channel.isBlocking());
+	}
+
+	/**
+	 * Decodes as much as possible of the frames in `buffer`, queueing any
+	 * messages that are completed.
+	 */
+	protected void decodeFrames() throws IOException {
+		int byte0;
+		int byte1;
+		int byte1b;
+		int headerLen;
+		long frameLen = -1;
+		int len;
+
+		buffer.flip();
+		while (true) {
+			if (frame == null) {
+				if (buffer.remaining() < 2) {
+					break;
+				}
+
+				byte0 = buffer.get(buffer.position()) & 0xff;
+				byte1 = buffer.get(buffer.position() + 1) & 0xff;
+				byte1b = byte1 & 0x7f;
+
+				// mask must not be set
+				if ((byte1 & 0x80) != 0) {
+					throw new IOException("Mask is set in frame");
+				}
+
+				// determine length of header
+				if (byte1b <= 125) {
+					headerLen = 2;
+				} else if (byte1b == 126) {
+					headerLen = 4;
+				} else { // byte1b == 127:
+					headerLen = 10;
+				}
+
+				if (buffer.remaining() < headerLen) {
+					break;
+				}
+
+				if (byte1b <= 125) {
+					frameLen = byte1b;
+				} else if (byte1b == 126) {
+					frameLen = buffer.getShort(buffer.position() + 2) & 0xffff;
+				} else if (byte1b == 127) {
+					frameLen = buffer.getLong(buffer.position() + 2);
+				}
+
+				if (frameLen < 0 || frameLen > 0x7fffffff) {
+					throw new IOException("Frame size too big for buffer");
+				}
+
+				buffer.position(buffer.position() + headerLen);
+				frameFin = (byte0 & 0x80) != 0;
+				frameOpcode = byte0 & 0x0f;
+				frame = new byte[(int)frameLen];
+				frameOffset = 0;
 			}
 
-			while (buf.hasRemaining()) {
-				channel.read(buf);
+			len = Math.min(buffer.remaining(), frame.length - frameOffset);
+			buffer.get(frame, frameOffset, len);
+			frameOffset += len;
+			if (frameOffset < frame.length) {
+				break;
 			}
 
-			// create a byte array with the bytes
-			frame = new byte[(int)frameLen];
-			buf.flip();
-			buf.get(frame, 0, (int)frameLen);
-			frames.add(frame);
+			frameDecoded(frameOpcode, frameFin, frame);
+			frame = null;
+		}
+		buffer.compact();
+	}
 
-			// if there is any content remaining if buf, put it into buffer, so it
-			// will persist
-			if (buf.hasRemaining()) {
-				buffer.put(buf);
-			}
+	/**
+	 * Handles a complete frame: control frames are acted on, and data frames
+	 * are collected until the message they belong to is complete.
+	 */
+	protected void frameDecoded(int opcode, boolean fin, byte[] data) throws IOException {
+		byte[] message;
+		int index = 0;
+
+		if (opcode == OPCODE_CLOSE) {
+			// echo the close frame, then drop the connection
+			closedByPeer = true;
+			send(OPCODE_CLOSE, data);
+			close();
+			return;
+		} else if (opcode == OPCODE_PING) {
+			send(OPCODE_PONG, data);
+			return;
+		} else if (opcode == OPCODE_PONG) {
+			return;
+		}
 
+		fragments.add(data);
+		fragmentsLength += data.length;
+		if (!fin) {
+			return;
 		}
 
-		if (totalLength > 0x7fffffff) {
+		if (fragmentsLength > 0x7fffffff) {
 			throw new IOException("Total message size too big for array");
 		}
-		
-		message = new byte[(int)totalLength];
-		Iterator<byte[]> iterator = frames.iterator();
-		while (iterator.hasNext()) {
-			frame = iterator.next();
-			System.arraycopy(frame, 0, message, index, frame.length);
-			index += frame.length;
+
+		if (fragments.size() == 1) {
+			message = fragments.poll();
+		} else {
+			message = new byte[(int)fragmentsLength];
+			Iterator<byte[]> iterator = fragments.iterator();
+			while (iterator.hasNext()) {
+				data = iterator.next();
+				System.arraycopy(data, 0, message, index, data.length);
+				index += data.length;
+			}
+		}
+		fragments.clear();
+		fragmentsLength = 0;
+		messages.add(message);
+	}
+
+	/**
+	 * Writes as much of the outgoing frames as the channel will take.
+	 *
+	 * @return true if everything has been written
+	 */
+	protected boolean flush() throws IOException {
+		ByteBuffer buf;
+		if (state == STATE_CONNECTING || state == STATE_CLOSED) {
+			return outgoing.isEmpty();
+		}
+		while ((buf = outgoing.peek()) != null) {
+			io.write(buf);
+			if (buf.hasRemaining()) {
+				break;
+			}
+			outgoing.poll();
+		}
+		if (tls != null) {
+			tls.flush();
+		}
+		if (key != null && key.isValid()) {
+			key.interestOps(getInterestOps());
+		}
+		return !hasPendingWrites();
+	}
+
+	/**
+	 * @return true if there are frames that have not been completely written
+	 */
+	public boolean hasPendingWrites() {
+		return !outgoing.isEmpty() || (tls != null && tls.needsWrite());
+	}
+
+	/**
+	 * Reads the next message, blocking until it is complete.  This is for use
+	 * in blocking mode only, i.e., before register() is called.
+	 *
+	 * @return the message, or an empty array if the connection was closed
+	 */
+	public byte[] read() throws IOException {
+		byte[] message;
+		while ((message = poll()) == null) {
+			if (state == STATE_CLOSED) {
+				return new byte[0];
+			}
+			fill();
+			// answer any pings received while waiting
+			flush();
 		}
 		return message;
 	}
 
+	/**
+	 * Sends `data` as a text message.  In blocking mode, this returns once the
+	 * message has been written; otherwise, whatever can't be written right away
+	 * is written as the channel becomes writable.
+	 */
 	public void write(byte[] data) throws IOException {
+		send(OPCODE_TEXT, data);
+	}
+
+	/**
+	 * Sends `data` as a text message, as write() does.
+	 */
+	public void announce(byte[] data) throws IOException {
+		send(OPCODE_TEXT, data);
+	}
+
+	protected void send(int opcode, byte[] data) throws IOException {
 		ByteBuffer buf = null;
 		int headerLen;
 		byte[] mask;
@@ -297,7 +713,7 @@ public class WebSocketClient {
 		}
 
 		buf = ByteBuffer.allocate(headerLen + data.length);
-		buf.put((byte)(0x81));
+		buf.put((byte)(0x80 | opcode));
 		if (data.length <= 125) {
 			buf.put((byte)(data.length | 0x80));
 		} else if (data.length <= 0xffff) {
@@ -317,16 +733,14 @@ public class WebSocketClient {
 		}
 
 		mask = new byte[4];
-		BigInteger n = new BigInteger(32, new Random());
-		System.arraycopy(n.toByteArray(), 0, mask, 0, 4);
+		random.nextBytes(mask);
 		buf.put(mask);
 
 		for (int i = 0; i < data.length; i++) {
 			buf.put((byte)(mask[i % mask.length]^data[i]));
 		}
 		buf.flip();
-		while (buf.hasRemaining()) {
-			channel.write(buf);
-		}
+		outgoing.add(buf);
+		flush();
 	}
 }
@@ -0,0 +1,68 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.websocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A source of requests from the DNSViz server, serviced from an event loop.
+ *
+ * The loop registers the session with its Selector, passes it every selected
+ * key that it owns, and calls service() before each select.  Several sessions
+ * may share one Selector.  Each message returned by poll() must be answered
+ * with exactly one call to write(), and answers must be written in the order
+ * in which the messages were polled.  Messages that answer none of those
+ * polled, such as advertisements of capacity, are sent with announce()
+ * instead.
+ */
+public interface WebSocketSession {
+	public void register(Selector selector) throws IOException;
+
+	/**
+	 * @return whether `key` is one of the keys this session has registered
+	 */
+	public boolean owns(SelectionKey key);
+
+	public void handle(SelectionKey key) throws IOException;
+
+	/**
+	 * Performs any time-based work, such as keepalives.
+	 *
+	 * @return the number of milliseconds until this should be called again, or
+	 * 0 if there is no need
+	 */
+	public long service() throws IOException;
+
+	public byte[] poll();
+
+	public void write(byte[] data) throws IOException;
+
+	/**
+	 * Sends a message that isn't the answer to any polled message.  It may be
+	 * dropped, e.g., if the session is between connections.
+	 */
+	public void announce(byte[] data) throws IOException;
+
+	public boolean isClosed();
+}
@@ -0,0 +1,304 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.lookingglass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import dnsviz.serializers.DNSQueryTransportHandlersDeserializer;
+import dnsviz.transport.DNSQueryTransportHandler;
+import dnsviz.transport.DNSQueryTransportManager;
+import dnsviz.util.Base64Encoder;
+import dnsviz.websocket.WebSocketClient;
+
+/**
+ * Measures the bytes allocated per query, in the steady state, by each phase
+ * of serving a request, running batches of queries against a loopback
+ * responder, and checks them against a budget for each phase.  The phases are
+ * those of DNSLookingGlass.run(), with the query itself split into preparing
+ * the socket and the rest of DNSQueryTransportManager.query() (the select
+ * loop), followed by framing the response for the WebSocket.  The whole of
+ * run() is measured as well.
+ *
+ * Allocations are counted with ThreadMXBean.getThreadAllocatedBytes(), so
+ * only those made on the calling thread; every phase runs on it.
+ *
+ * Usage: AllocationBenchmark [--batches N] [--queries N] [--budget PHASE=BYTES]...
+ *
+ * The exit status is 1 if any phase exceeds its budget.
+ */
+public class AllocationBenchmark {
+	public final static String PHASE_DESERIALIZATION = "deserialization";
+	public final static String PHASE_SOCKET_PREPARATION = "socket preparation";
+	public final static String PHASE_SELECT_LOOP = "select loop";
+	public final static String PHASE_BASE64 = "base64";
+	public final static String PHASE_SERIALIZATION = "serialization";
+	public final static String PHASE_FRAMING = "framing";
+	public final static String PHASE_RUN = "run";
+
+	private final static String[] PHASES = { PHASE_DESERIALIZATION, PHASE_SOCKET_PREPARATION, PHASE_SELECT_LOOP,
+		PHASE_BASE64, PHASE_SERIALIZATION, PHASE_FRAMING, PHASE_RUN };
+
+	/* bytes per query, about twice what each phase allocates on JDK 17, to
+	 * allow for the differences between JVMs */
+	private final static long[] DEFAULT_BUDGETS = { 5120, 5120, 1536, 512, 6144, 512, 16384 };
+
+	private final static int WARMUP_BATCHES = 50;
+
+	private final com.sun.management.ThreadMXBean threads;
+	private final long thread;
+	private final DatagramSocket responder;
+	private final ServerSocket sink;
+	private final DNSLookingGlass lg = new DNSLookingGlass();
+	private final int queries;
+	private final String request;
+
+	private final LinkedHashMap<String, Long> allocated = new LinkedHashMap<>();
+	private long measured = 0;
+
+	public AllocationBenchmark(int queries) throws IOException {
+		this.queries = queries;
+		threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		thread = Thread.currentThread().getId();
+
+		responder = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		sink = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		startDaemon(new Runnable() {
+			public void run() {
+				respond();
+			}
+		});
+		startDaemon(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+		request = getRequest();
+		for (String phase : PHASES) {
+			allocated.put(phase, 0L);
+		}
+	}
+
+	private static void startDaemon(Runnable r) {
+		Thread t = new Thread(r, "AllocationBenchmark");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/* answers every query with itself, marked as a response */
+	private void respond() {
+		byte[] buf = new byte[65536];
+		DatagramPacket packet;
+		while (!responder.isClosed()) {
+			try {
+				packet = new DatagramPacket(buf, buf.length);
+				responder.receive(packet);
+				if (packet.getLength() > 2) {
+					buf[2] |= (byte)0x80;
+				}
+				responder.send(new DatagramPacket(buf, packet.getLength(), packet.getSocketAddress()));
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	/* accepts the WebSocket, and discards whatever is written to it */
+	private void drain() {
+		byte[] buf = new byte[65536];
+		try (Socket s = sink.accept()) {
+			InputStream in = s.getInputStream();
+			StartupBenchmark.handshake(in, s.getOutputStream());
+			while (in.read(buf) >= 0) {
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private String getRequest() {
+		byte[] msg = { 0, 0, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0,
+			7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1 };
+		Base64Encoder encoder = new Base64Encoder();
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("{\"version\": ").append(Constants.VERSION).append(", \"requests\": [");
+		for (int i = 0; i < queries; i++) {
+			msg[0] = (byte)(i >> 8);
+			msg[1] = (byte)i;
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append("{\"req\": \"").append(new String(encoder.encode(msg))).append("\", \"dst\": \"127.0.0.1\", \"dport\": ")
+				.append(responder.getLocalPort()).append(", \"timeout\": 3000, \"tcp\": false}");
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private long allocatedBytes() {
+		return threads.getThreadAllocatedBytes(thread);
+	}
+
+	private void add(String phase, long bytes) {
+		allocated.put(phase, allocated.get(phase) + bytes);
+	}
+
+	/**
+	 * Serves one batch, phase by phase, and then once more with run().
+	 */
+	private void batch(WebSocketClient ws, boolean measure) throws Exception {
+		DNSQueryTransportHandler[] qths;
+		DNSQueryTransportManager qtm = new DNSQueryTransportManager();
+		String response;
+		long[] t = new long[8];
+		long prepare = 0;
+		long p;
+
+		t[0] = allocatedBytes();
+		qths = new DNSQueryTransportHandlersDeserializer(request).getDecodedHandlers();
+		t[1] = allocatedBytes();
+
+		/* preparing sockets for a second set of handlers, which are then
+		 * discarded, since query() prepares its own in the course of the loop */
+		for (DNSQueryTransportHandler qh : new DNSQueryTransportHandlersDeserializer(request).getDecodedHandlers()) {
+			p = allocatedBytes();
+			qh.prepare();
+			prepare += allocatedBytes() - p;
+			qh.cleanup();
+		}
+
+		t[2] = allocatedBytes();
+		qtm.query(qths);
+		for (DNSQueryTransportHandler qh : qths) {
+			qh.finalize();
+		}
+		t[3] = allocatedBytes();
+		for (DNSQueryTransportHandler qh : qths) {
+			qh.getEncodedResponse();
+		}
+		t[4] = allocatedBytes();
+		for (DNSQueryTransportHandler qh : qths) {
+			/* rewinds the response, for it to be encoded again */
+			qh.finalize();
+		}
+
+		t[5] = allocatedBytes();
+		response = lg.getEncodedResponses(qths).toString();
+		t[6] = allocatedBytes();
+		ws.write(response.getBytes());
+		t[7] = allocatedBytes();
+
+		p = allocatedBytes();
+		lg.run(request);
+		p = allocatedBytes() - p;
+
+		if (measure) {
+			add(PHASE_DESERIALIZATION, t[1] - t[0]);
+			add(PHASE_SOCKET_PREPARATION, prepare);
+			add(PHASE_SELECT_LOOP, Math.max(0, t[3] - t[2] - prepare));
+			add(PHASE_BASE64, t[4] - t[3]);
+			add(PHASE_SERIALIZATION, t[6] - t[5]);
+			add(PHASE_FRAMING, t[7] - t[6]);
+			add(PHASE_RUN, p);
+			measured += queries;
+		}
+	}
+
+	/**
+	 * Serves `batches` batches, after warming up.
+	 *
+	 * @return the bytes allocated per query by each phase
+	 */
+	public Map<String, Long> run(int batches) throws Exception {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		WebSocketClient ws = new WebSocketClient("127.0.0.1", sink.getLocalPort(), "/lg/", "http://localhost/");
+		try {
+			for (int i = 0; i < WARMUP_BATCHES; i++) {
+				batch(ws, false);
+			}
+			for (int i = 0; i < batches; i++) {
+				batch(ws, true);
+			}
+		} finally {
+			ws.close();
+			responder.close();
+			sink.close();
+		}
+		for (Map.Entry<String, Long> e : allocated.entrySet()) {
+			ret.put(e.getKey(), e.getValue() / Math.max(measured, 1));
+		}
+		return ret;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LinkedHashMap<String, Long> budgets = new LinkedHashMap<>();
+		Map<String, Long> result;
+		int batches = 200;
+		int queries = 20;
+		boolean exceeded = false;
+		String[] kv;
+		long budget;
+
+		for (int i = 0; i < PHASES.length; i++) {
+			budgets.put(PHASES[i], DEFAULT_BUDGETS[i]);
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--batches") && i + 1 < args.length) {
+				batches = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--queries") && i + 1 < args.length) {
+				queries = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--budget") && i + 1 < args.length) {
+				kv = args[++i].split("=", 2);
+				if (kv.length != 2 || !budgets.containsKey(kv[0])) {
+					System.err.println("Unknown phase: " + args[i]);
+					System.exit(2);
+				}
+				budgets.put(kv[0], Long.parseLong(kv[1]));
+			} else {
+				System.err.println("Usage: AllocationBenchmark [--batches N] [--queries N] [--budget PHASE=BYTES]...");
+				System.exit(2);
+			}
+		}
+
+		result = new AllocationBenchmark(queries).run(batches);
+		System.out.println(String.format("%-20s %12s %12s", "phase", "bytes/query", "budget"));
+		for (Map.Entry<String, Long> e : result.entrySet()) {
+			budget = budgets.get(e.getKey());
+			System.out.println(String.format("%-20s %12d %12d%s", e.getKey(), e.getValue(), budget,
+				e.getValue() > budget ? "  EXCEEDED" : ""));
+			if (e.getValue() > budget) {
+				exceeded = true;
+			}
+		}
+		System.exit(exceeded ? 1 : 0);
+	}
+}
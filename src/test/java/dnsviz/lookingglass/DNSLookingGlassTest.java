@@ -0,0 +1,288 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.lookingglass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dnsviz.util.Base64Encoder;
+import dnsviz.websocket.ReconnectingWebSocketClient;
+import dnsviz.websocket.RecordingWebSocketSession;
+import dnsviz.websocket.SessionRecording;
+import dnsviz.websocket.WebSocketSession;
+
+public class DNSLookingGlassTest {
+	private final static long DELAY = 300;
+
+	private DatagramSocket responder;
+	private ServerSocket server;
+	private Socket socket;
+	private DataInputStream in;
+	private OutputStream out;
+	private Thread loop;
+
+	@Before
+	public void setUp() throws Exception {
+		responder = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				respond();
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		server.setSoTimeout(10000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		responder.close();
+		if (socket != null) {
+			socket.close();
+		}
+		server.close();
+		if (loop != null) {
+			loop.join(10000);
+		}
+	}
+
+	/* answers every query with itself, marked as a response, after DELAY */
+	private void respond() {
+		byte[] buf = new byte[512];
+		DatagramPacket packet;
+		while (!responder.isClosed()) {
+			try {
+				packet = new DatagramPacket(buf, buf.length);
+				responder.receive(packet);
+				Thread.sleep(DELAY);
+				buf[2] |= (byte)0x80;
+				responder.send(new DatagramPacket(buf, packet.getLength(), packet.getSocketAddress()));
+			} catch (IOException | InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts `lg` interacting with the stand-in server, through a
+	 * ReconnectingWebSocketClient, and accepts its connection.  If `recording`
+	 * is not null, the session is recorded to it.
+	 */
+	private void connect(final DNSLookingGlass lg, SessionRecording recording) throws Exception {
+		final WebSocketSession ws = recording != null ?
+			new RecordingWebSocketSession(new ReconnectingWebSocketClient("127.0.0.1", server.getLocalPort(), "/lg/", "http://localhost/"), recording, 0) :
+			new ReconnectingWebSocketClient("127.0.0.1", server.getLocalPort(), "/lg/", "http://localhost/");
+		loop = new Thread(new Runnable() {
+			public void run() {
+				try {
+					lg.interact(ws);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		loop.setDaemon(true);
+		loop.start();
+
+		socket = server.accept();
+		socket.setSoTimeout(10000);
+		in = new DataInputStream(socket.getInputStream());
+		out = socket.getOutputStream();
+		StartupBenchmark.handshake(in, out);
+	}
+
+	private String getRequest(String id) throws Exception {
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		byte[] query = { 0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0,
+			7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1 };
+		JSONObject req = new JSONObject();
+		JSONObject request = new JSONObject();
+
+		msg.write(query);
+		req.put("req", new String(new Base64Encoder().encode(msg.toByteArray())));
+		req.put("dst", "127.0.0.1");
+		req.put("dport", responder.getLocalPort());
+		req.put("timeout", 3000);
+		req.put("tcp", false);
+		request.put("version", 1.0);
+		request.put("requests", new org.json.JSONArray().put(req));
+		if (id != null) {
+			request.put("id", id);
+		}
+		return request.toString();
+	}
+
+	private void send(int opcode, byte[] payload) throws IOException {
+		out.write(0x80 | opcode);
+		out.write(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	private void send(String message) throws IOException {
+		byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+		out.write(0x81);
+		if (payload.length < 126) {
+			out.write(payload.length);
+		} else {
+			out.write(126);
+			out.write(payload.length >> 8);
+			out.write(payload.length);
+		}
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * @return the next text message from the looking glass
+	 */
+	private JSONObject receive() throws Exception {
+		int b0;
+		int b1;
+		long len;
+		byte[] mask = new byte[4];
+		byte[] payload;
+
+		while (true) {
+			b0 = in.readUnsignedByte();
+			b1 = in.readUnsignedByte();
+			len = b1 & 0x7f;
+			if (len == 126) {
+				len = in.readUnsignedShort();
+			} else if (len == 127) {
+				len = in.readLong();
+			}
+			if ((b1 & 0x80) != 0) {
+				in.readFully(mask);
+			}
+			payload = new byte[(int)len];
+			in.readFully(payload);
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] ^= mask[i % 4];
+			}
+			if ((b0 & 0x0f) == 0x1) {
+				return new JSONObject(new String(payload, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * Sends a close frame, and waits for the looking glass to stop.
+	 */
+	private void close() throws Exception {
+		send(0x8, new byte[0]);
+		loop.join(10000);
+		assertFalse(loop.isAlive());
+	}
+
+	@Test
+	public void testAdvertisementDuringBatch() throws Exception {
+		DNSLookingGlass lg = new DNSLookingGlass();
+		ArrayList<JSONObject> advertisements = new ArrayList<>();
+		JSONObject message;
+
+		lg.setCapacityInterval(DELAY / 6);
+		connect(lg, null);
+
+		/* advertisements are sent while the query waits for its answer, and
+		 * must not take the place of the response */
+		send(getRequest(null));
+		while (!(message = receive()).has("responses")) {
+			assertTrue(message.has("capacity"));
+			advertisements.add(message);
+		}
+		assertTrue(advertisements.size() >= 2);
+		assertEquals(1, message.getJSONArray("responses").length());
+		assertFalse(message.getJSONArray("responses").getJSONObject(0).has("err"));
+
+		/* the next request is answered too */
+		send(getRequest(null));
+		while (!(message = receive()).has("responses")) {
+			assertTrue(message.has("capacity"));
+		}
+		assertFalse(message.getJSONArray("responses").getJSONObject(0).has("err"));
+		close();
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		DNSLookingGlass lg = new DNSLookingGlass();
+		File file = File.createTempFile("lookingglass", ".rec");
+		SessionRecording recording = new SessionRecording(file);
+		JSONObject message;
+		JSONObject summary;
+
+		try {
+			connect(lg, recording);
+
+			/* the cancelled request and the cancel message are each answered, in
+			 * turn, and the request after them as well */
+			send(getRequest("a"));
+			send("{\"version\": 1.0, \"cancel\": \"a\"}");
+			send(getRequest(null));
+			send("{\"version\": 1.0, \"cancel\": \"b\"}");
+
+			message = receive();
+			assertTrue(message.getBoolean("cancelled"));
+			assertEquals("CANCELLED", message.getJSONArray("responses").getJSONObject(0).getString("err"));
+			message = receive();
+			assertEquals("a", message.getString("cancel"));
+			assertTrue(message.getBoolean("cancelled"));
+			message = receive();
+			assertFalse(message.getJSONArray("responses").getJSONObject(0).has("err"));
+			message = receive();
+			assertEquals("b", message.getString("cancel"));
+			assertFalse(message.getBoolean("cancelled"));
+			close();
+			recording.close();
+
+			/* the recording replays to the end */
+			summary = new SessionReplayer(SessionRecording.read(file), true).run();
+			assertEquals(4, summary.getJSONObject("replayed").getInt("batches"));
+			assertEquals(2, summary.getJSONObject("replayed").getInt("queries"));
+		} finally {
+			recording.close();
+			file.delete();
+		}
+	}
+}
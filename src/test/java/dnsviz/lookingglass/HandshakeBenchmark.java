@@ -0,0 +1,214 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.lookingglass;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import dnsviz.websocket.WebSocketClient;
+
+/**
+ * Measures how long WebSocketClient takes to connect over TLS to a local
+ * stand-in for the DNSViz server, from opening the socket to completing the
+ * WebSocket handshake, with a full TLS handshake for every connection and
+ * with each connection resuming the session of the one before it.
+ *
+ * The stand-in's certificate is generated with the JDK's keytool, unless a
+ * PKCS#12 keystore is given, whose certificate must be valid for localhost.
+ *
+ * Usage: HandshakeBenchmark [--runs N] [--keystore FILE --password PASSWORD]
+ */
+public class HandshakeBenchmark {
+	private final static long KEYTOOL_TIMEOUT = 60000;
+
+	private final KeyStore keyStore;
+	private final SSLServerSocket server;
+
+	public HandshakeBenchmark(KeyStore keyStore, char[] password) throws Exception {
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		SSLContext context = SSLContext.getInstance("TLS");
+
+		this.keyStore = keyStore;
+		kmf.init(keyStore, password);
+		context.init(kmf.getKeyManagers(), null, null);
+		server = (SSLServerSocket)context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("localhost"));
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "HandshakeBenchmark");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/* completes the WebSocket handshake with each client, and waits for it to
+	 * close the connection */
+	private void serve() {
+		while (!server.isClosed()) {
+			try (Socket s = server.accept()) {
+				InputStream in = s.getInputStream();
+				s.setTcpNoDelay(true);
+				StartupBenchmark.handshake(in, s.getOutputStream());
+				while (in.read() >= 0) {
+					/* discard whatever the client sends */
+				}
+			} catch (Exception e) {
+				if (server.isClosed()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a context for clients that trusts the stand-in's certificate
+	 */
+	public SSLContext createClientContext() throws Exception {
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		SSLContext context = SSLContext.getInstance("TLS");
+		tmf.init(keyStore);
+		context.init(null, tmf.getTrustManagers(), null);
+		return context;
+	}
+
+	/**
+	 * Connects once, using `context`.
+	 *
+	 * @return the milliseconds taken to connect and complete the handshakes
+	 */
+	public double connect(SSLContext context) throws IOException {
+		long start = System.nanoTime();
+		WebSocketClient client = new WebSocketClient("localhost", server.getLocalPort(), "/lg/", "http://localhost/", true, context);
+		double ret = (System.nanoTime() - start) / 1e6;
+		client.close();
+		return ret;
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private static KeyStore generateKeyStore(File file, char[] password) throws Exception {
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-keystore", file.getPath(),
+				"-storetype", "PKCS12", "-storepass", new String(password), "-alias", "lg",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1,ip:::1")
+			.redirectErrorStream(true).start();
+		while (process.getInputStream().read() >= 0) {
+			/* discard keytool's output */
+		}
+		if (!process.waitFor(KEYTOOL_TIMEOUT, TimeUnit.MILLISECONDS) || process.exitValue() != 0) {
+			process.destroy();
+			throw new IOException("keytool failed to generate a certificate");
+		}
+		return loadKeyStore(file, password);
+	}
+
+	private static KeyStore loadKeyStore(File file, char[] password) throws Exception {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (FileInputStream in = new FileInputStream(file)) {
+			ks.load(in, password);
+		}
+		return ks;
+	}
+
+	private static String format(List<Double> times) {
+		Collections.sort(times);
+		return String.format("min %8.2f  median %8.2f  max %8.2f", times.get(0), times.get(times.size() / 2), times.get(times.size() - 1));
+	}
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<Double> full = new ArrayList<>();
+		ArrayList<Double> resumed = new ArrayList<>();
+		HandshakeBenchmark benchmark;
+		SSLContext shared;
+		String keyStoreFile = null;
+		char[] password = "lookingglass".toCharArray();
+		File generated = null;
+		KeyStore ks;
+		int runs = 200;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--runs") && i + 1 < args.length) {
+				runs = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--keystore") && i + 1 < args.length) {
+				keyStoreFile = args[++i];
+			} else if (args[i].equals("--password") && i + 1 < args.length) {
+				password = args[++i].toCharArray();
+			} else {
+				System.err.println("Usage: HandshakeBenchmark [--runs N] [--keystore FILE --password PASSWORD]");
+				System.exit(2);
+			}
+		}
+
+		if (keyStoreFile != null) {
+			ks = loadKeyStore(new File(keyStoreFile), password);
+		} else {
+			generated = File.createTempFile("lookingglass", ".p12");
+			generated.delete();
+			try {
+				ks = generateKeyStore(generated, password);
+			} finally {
+				generated.delete();
+			}
+		}
+
+		benchmark = new HandshakeBenchmark(ks, password);
+		try {
+			// warm up both paths before measuring
+			shared = benchmark.createClientContext();
+			for (int i = 0; i < runs; i++) {
+				benchmark.connect(benchmark.createClientContext());
+				benchmark.connect(shared);
+			}
+
+			// alternate between the two, so that neither benefits from running
+			// later than the other
+			for (int i = 0; i < runs; i++) {
+				full.add(benchmark.connect(benchmark.createClientContext()));
+				resumed.add(benchmark.connect(shared));
+			}
+		} finally {
+			benchmark.close();
+		}
+
+		System.out.println("handshake (" + runs + " runs, ms from connect to WebSocket open)");
+		System.out.println("  full:    " + format(full));
+		System.out.println("  resumed: " + format(resumed));
+	}
+}
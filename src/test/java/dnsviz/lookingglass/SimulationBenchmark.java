@@ -0,0 +1,166 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.lookingglass;
+
+import java.net.InetAddress;
+import java.util.TreeMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import dnsviz.transport.DNSQueryAdmissionSettings;
+import dnsviz.transport.DNSQueryPacingLimits;
+import dnsviz.transport.DNSQueryPacingSettings;
+import dnsviz.transport.DNSQuerySimulatedNetwork;
+import dnsviz.transport.DNSQueryTransportHandler;
+import dnsviz.transport.DNSQueryTransportHandlerTCP;
+import dnsviz.transport.DNSQueryTransportHandlerUDP;
+import dnsviz.transport.DNSQueryTransportManager;
+
+/**
+ * Runs one large batch of queries through a DNSQueryTransportManager on a
+ * DNSQuerySimulatedNetwork, and reports how long it took, on the virtual
+ * clock and in real time, and how the queries fared.  The digest of the
+ * results is the same for every run with the same arguments.
+ *
+ * Usage: SimulationBenchmark [--queries N] [--destinations N] [--seed N]
+ *   [--latency MIN,MEAN] [--loss P] [--truncation P] [--reset P] [--tcp P]
+ *   [--timeout MS] [--rate N] [--burst N] [--max-outstanding N]
+ *   [--max-in-flight N] [--max-sockets N]
+ */
+public class SimulationBenchmark {
+	private static double getDouble(String[] args, int i) {
+		return Double.parseDouble(args[i]);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int queries = 100000;
+		int destinations = 100;
+		long seed = 1;
+		double minLatency = 5;
+		double meanLatency = 20;
+		double loss = 0;
+		double truncation = 0;
+		double reset = 0;
+		double tcp = 0;
+		long timeout = 3000;
+		double rate = DNSQueryPacingSettings.DEFAULT_RATE;
+		int burst = DNSQueryPacingSettings.DEFAULT_BURST;
+		int maxOutstanding = DNSQueryPacingSettings.DEFAULT_MAX_OUTSTANDING;
+		int maxInFlight = DNSQueryAdmissionSettings.DEFAULT_MAX_IN_FLIGHT;
+		int maxSockets = 0;
+		String[] latency;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("--queries")) {
+				queries = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--destinations")) {
+				destinations = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--seed")) {
+				seed = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("--latency")) {
+				latency = args[i + 1].split(",");
+				minLatency = Double.parseDouble(latency[0]);
+				meanLatency = latency.length > 1 ? Double.parseDouble(latency[1]) : 0;
+			} else if (args[i].equals("--loss")) {
+				loss = getDouble(args, i + 1);
+			} else if (args[i].equals("--truncation")) {
+				truncation = getDouble(args, i + 1);
+			} else if (args[i].equals("--reset")) {
+				reset = getDouble(args, i + 1);
+			} else if (args[i].equals("--tcp")) {
+				tcp = getDouble(args, i + 1);
+			} else if (args[i].equals("--timeout")) {
+				timeout = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("--rate")) {
+				rate = getDouble(args, i + 1);
+			} else if (args[i].equals("--burst")) {
+				burst = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--max-outstanding")) {
+				maxOutstanding = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--max-in-flight")) {
+				maxInFlight = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--max-sockets")) {
+				maxSockets = Integer.parseInt(args[i + 1]);
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		DNSQuerySimulatedNetwork network = new DNSQuerySimulatedNetwork(seed);
+		network.setDefaultProfile(new DNSQuerySimulatedNetwork.Profile(
+				DNSQuerySimulatedNetwork.exponential(minLatency, meanLatency), loss, truncation, reset));
+		network.setMaxSockets(maxSockets);
+
+		DNSQueryPacingSettings pacingSettings = new DNSQueryPacingSettings();
+		pacingSettings.setDefaultLimits(new DNSQueryPacingLimits(rate, burst, maxOutstanding));
+		DNSQueryAdmissionSettings admissionSettings = new DNSQueryAdmissionSettings();
+		admissionSettings.setMaxInFlight(maxInFlight);
+		DNSQueryTransportManager qtm = new DNSQueryTransportManager(null, pacingSettings, admissionSettings, network);
+
+		/* the queries are spread over the destinations, and the TCP ones drawn
+		 * from a Random of their own, so that they don't depend on the network's */
+		java.util.Random random = new java.util.Random(seed);
+		DNSQueryTransportHandler[] qths = new DNSQueryTransportHandler[queries];
+		byte[] req = { 0, 0, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0,
+			7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1 };
+		InetAddress dst;
+		for (int i = 0; i < queries; i++) {
+			req[0] = (byte)(i >> 8);
+			req[1] = (byte)i;
+			dst = InetAddress.getByAddress(new byte[] { 10, (byte)(i % destinations >> 16), (byte)(i % destinations >> 8), (byte)(i % destinations) });
+			if (random.nextDouble() < tcp) {
+				qths[i] = new DNSQueryTransportHandlerTCP(req, dst, 53, null, 0, timeout);
+			} else {
+				qths[i] = new DNSQueryTransportHandlerUDP(req, dst, 53, null, 0, timeout);
+			}
+		}
+
+		long wallStart = System.nanoTime();
+		long virtualStart = network.currentTimeMillis();
+		qtm.query(qths);
+		long wall = System.nanoTime() - wallStart;
+		long virtual = network.currentTimeMillis() - virtualStart;
+
+		TreeMap<String, Integer> outcomes = new TreeMap<>();
+		CRC32 digest = new CRC32();
+		String outcome;
+		long totalElapsed = 0;
+		for (DNSQueryTransportHandler qh : qths) {
+			qh.finalize();
+			outcome = qh.getError() == null ? "OK" : qh.getErrno() != null ? qh.getError() + "/" + qh.getErrno() : qh.getError();
+			outcomes.put(outcome, outcomes.containsKey(outcome) ? outcomes.get(outcome) + 1 : 1);
+			totalElapsed += qh.timeElapsed();
+			digest.update((outcome + " " + qh.timeElapsed() + " " + qh.getSPort() + "\n").getBytes());
+		}
+
+		System.out.println(String.format("%d queries to %d destinations, seed %d", queries, destinations, seed));
+		System.out.println(String.format("virtual time:     %10d ms", virtual));
+		System.out.println(String.format("wall time:        %10.1f ms", wall / 1e6));
+		System.out.println(String.format("mean elapsed:     %10.1f ms", (double)totalElapsed / Math.max(queries, 1)));
+		System.out.println(String.format("peak sockets:     %10d", network.getPeakOpenSockets()));
+		for (Map.Entry<String, Integer> e : outcomes.entrySet()) {
+			System.out.println(String.format("%-17s %10d", e.getKey() + ":", e.getValue()));
+		}
+		System.out.println(String.format("digest:           %10s", Long.toHexString(digest.getValue())));
+	}
+}
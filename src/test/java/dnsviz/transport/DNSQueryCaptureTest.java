@@ -0,0 +1,120 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class DNSQueryCaptureTest {
+	private final static int THREADS = 4;
+	private final static int QUERIES = 250;
+	private final static int MAX_FILES = 1000;
+
+	/* the pcap file header, and the record of a 12-byte UDP request over
+	 * IPv4: the record header, the IPv4 and UDP headers, and the message */
+	private final static int PCAP_HEADER_LENGTH = 24;
+	private final static int PACKET_LENGTH = 20 + 8 + 12;
+	private final static int RECORD_LENGTH = 16 + PACKET_LENGTH;
+
+	/* room for ten records, and part of another, so that each file is full
+	 * before the end is reached */
+	private final static long FILE_SIZE = PCAP_HEADER_LENGTH + 10 * RECORD_LENGTH + RECORD_LENGTH / 2;
+
+	private static DNSQueryTransportHandler handler() throws Exception {
+		DNSQueryTransportHandler qh = new DNSQueryTransportHandlerUDP(new byte[12], InetAddress.getByName("192.0.2.1"),
+				53, InetAddress.getByName("192.0.2.100"), 1024, 1000);
+		qh.trace[DNSQueryTrace.LAST_WRITE] = System.nanoTime();
+		return qh;
+	}
+
+	/**
+	 * @return the number of records in the pcap file `bytes`, which must end
+	 * with the last of them
+	 */
+	private static int countRecords(byte[] bytes) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+		int count = 0;
+		int pos = PCAP_HEADER_LENGTH;
+
+		assertEquals(0xa1b23c4d, buf.getInt(0));
+		while (pos < bytes.length) {
+			assertEquals(PACKET_LENGTH, buf.getInt(pos + 8));
+			assertEquals(PACKET_LENGTH, buf.getInt(pos + 12));
+			pos += RECORD_LENGTH;
+			count++;
+		}
+		assertEquals(bytes.length, pos);
+		return count;
+	}
+
+	@Test
+	public void testConcurrentRotation() throws Exception {
+		File dir = Files.createTempDirectory("capture").toFile();
+		final DNSQueryCapture capture = new DNSQueryCapture(dir, "test", FILE_SIZE, MAX_FILES);
+		final DNSQueryTransportHandler qh = handler();
+		ArrayList<Thread> threads = new ArrayList<>();
+		File[] files;
+		Thread t;
+		int records = 0;
+
+		try {
+			for (int i = 0; i < THREADS; i++) {
+				t = new Thread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < QUERIES; j++) {
+							capture.queryCompleted(qh);
+						}
+					}
+				});
+				threads.add(t);
+				t.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			capture.close();
+
+			assertEquals(THREADS * QUERIES, capture.getCaptured() + capture.getDropped());
+			files = dir.listFiles();
+			assertTrue(files.length > 1);
+			for (File file : files) {
+				assertTrue(file.length() <= FILE_SIZE);
+				records += countRecords(Files.readAllBytes(file.toPath()));
+			}
+			assertEquals(capture.getCaptured(), records);
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+}
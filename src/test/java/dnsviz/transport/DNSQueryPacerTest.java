@@ -0,0 +1,90 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class DNSQueryPacerTest {
+	private static DNSQueryTransportHandler handler(String dst) throws Exception {
+		return new DNSQueryTransportHandlerUDP(new byte[12], InetAddress.getByName(dst), 53, null, 0, 1000);
+	}
+
+	@Test
+	public void testRemoveAfterRegrouping() throws Exception {
+		DNSQueryPacingSettings settings = new DNSQueryPacingSettings();
+		DNSQueryPacer pacer = new DNSQueryPacer(settings);
+		DNSQueryTransportHandler qh1 = handler("192.0.2.1");
+		DNSQueryTransportHandler qh2 = handler("192.0.2.2");
+
+		settings.setDefaultLimits(DNSQueryPacingLimits.UNLIMITED);
+		pacer.add(qh1);
+		pacer.add(qh2);
+
+		/* the handlers were queued by address, and are now grouped by /24 */
+		settings.setPrefixLengths(24, 64);
+		assertTrue(pacer.remove(qh1));
+		assertFalse(pacer.remove(qh1));
+		assertEquals(1, pacer.getPendingCount());
+
+		assertSame(qh2, pacer.poll(0));
+		assertNull(pacer.poll(0));
+		assertFalse(pacer.hasPending());
+		assertFalse(pacer.remove(qh2));
+	}
+
+	@Test
+	public void testBucketKeptWhileIdle() throws Exception {
+		DNSQueryPacingSettings settings = new DNSQueryPacingSettings();
+		DNSQueryPacer pacer = new DNSQueryPacer(settings);
+		DNSQueryTransportHandler qh1 = handler("192.0.2.1");
+		DNSQueryTransportHandler qh2 = handler("192.0.2.1");
+		DNSQueryTransportHandler qh3 = handler("192.0.2.1");
+
+		/* one query per second, in bursts of one */
+		settings.setDefaultLimits(new DNSQueryPacingLimits(1, 1, 0));
+		pacer.add(qh1);
+		assertSame(qh1, pacer.poll(0));
+		pacer.release(qh1);
+
+		/* the group is idle, but its bucket is still empty */
+		pacer.add(qh2);
+		assertNull(pacer.poll(10));
+		assertEquals(1000, pacer.getNextReleaseTime(10));
+		assertSame(qh2, pacer.poll(1000));
+		pacer.release(qh2);
+
+		/* once the bucket has refilled, forgetting the group makes no
+		 * difference */
+		assertNull(pacer.poll(5000));
+		pacer.add(qh3);
+		assertSame(qh3, pacer.poll(5000));
+		assertNull(pacer.poll(5010));
+	}
+}
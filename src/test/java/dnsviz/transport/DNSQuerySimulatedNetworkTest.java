@@ -0,0 +1,162 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class DNSQuerySimulatedNetworkTest {
+	private final static long TIMEOUT = 1000;
+
+	private static DNSQueryTransportManager manager(DNSQuerySimulatedNetwork network) {
+		DNSQueryPacingSettings pacingSettings = new DNSQueryPacingSettings();
+		pacingSettings.setDefaultLimits(DNSQueryPacingLimits.UNLIMITED);
+		return new DNSQueryTransportManager(null, pacingSettings, new DNSQueryAdmissionSettings(), network);
+	}
+
+	private static DNSQuerySimulatedNetwork.Profile profile(double latency, double loss, double reset) {
+		return new DNSQuerySimulatedNetwork.Profile(DNSQuerySimulatedNetwork.constant(latency), loss, 0, reset);
+	}
+
+	private static DNSQueryTransportHandler[] handlers(int count, boolean tcp) throws Exception {
+		DNSQueryTransportHandler[] qhs = new DNSQueryTransportHandler[count];
+		InetAddress dst = InetAddress.getByName("10.0.0.1");
+		byte[] req = new byte[12];
+		for (int i = 0; i < count; i++) {
+			req[1] = (byte)i;
+			if (tcp) {
+				qhs[i] = new DNSQueryTransportHandlerTCP(req, dst, 53, null, 0, TIMEOUT);
+			} else {
+				qhs[i] = new DNSQueryTransportHandlerUDP(req, dst, 53, null, 0, TIMEOUT);
+			}
+		}
+		return qhs;
+	}
+
+	private static String outcome(DNSQueryTransportHandler qh) {
+		qh.finalize();
+		if (qh.getError() == null) {
+			return "OK";
+		}
+		return qh.getErrno() != null ? qh.getError() + "/" + qh.getErrno() : qh.getError();
+	}
+
+	/**
+	 * Runs a batch of UDP and TCP queries to several destinations, with
+	 * random latency, loss, truncation and resets, on a network seeded with
+	 * `seed`.
+	 *
+	 * @return a digest of the outcome, time elapsed and source port of each
+	 * query
+	 */
+	private static long digest(long seed) throws Exception {
+		DNSQuerySimulatedNetwork network = new DNSQuerySimulatedNetwork(seed);
+		DNSQueryTransportHandler[] qhs = new DNSQueryTransportHandler[2000];
+		Random random = new Random(seed);
+		CRC32 digest = new CRC32();
+		byte[] req = new byte[12];
+		InetAddress dst;
+
+		network.setDefaultProfile(new DNSQuerySimulatedNetwork.Profile(
+				DNSQuerySimulatedNetwork.exponential(5, 50), 0.05, 0.05, 0.05));
+		for (int i = 0; i < qhs.length; i++) {
+			req[0] = (byte)(i >> 8);
+			req[1] = (byte)i;
+			dst = InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte)(i % 10) });
+			if (random.nextDouble() < 0.1) {
+				qhs[i] = new DNSQueryTransportHandlerTCP(req, dst, 53, null, 0, TIMEOUT);
+			} else {
+				qhs[i] = new DNSQueryTransportHandlerUDP(req, dst, 53, null, 0, TIMEOUT);
+			}
+		}
+		manager(network).query(qhs);
+		for (DNSQueryTransportHandler qh : qhs) {
+			digest.update((outcome(qh) + " " + qh.timeElapsed() + " " + qh.getSPort() + "\n").getBytes());
+		}
+		return digest.getValue();
+	}
+
+	@Test
+	public void testSameSeedSameDigest() throws Exception {
+		assertEquals(digest(1), digest(1));
+		assertNotEquals(digest(1), digest(2));
+	}
+
+	@Test
+	public void testOutcomes() throws Exception {
+		String[] modes = { "late", "lost", "reset" };
+		DNSQuerySimulatedNetwork.Profile[] profiles = {
+			profile(2 * TIMEOUT, 0, 0), profile(10, 1, 0), profile(10, 0, 1)
+		};
+		String[] outcomes = { "TIMEOUT", "TIMEOUT", "NETWORK_ERROR/ECONNREFUSED" };
+		long[] elapsed = { TIMEOUT, TIMEOUT, 10 };
+		DNSQuerySimulatedNetwork network;
+		DNSQueryTransportHandler[] qhs;
+
+		for (int i = 0; i < modes.length; i++) {
+			for (boolean tcp : new boolean[] { false, true }) {
+				network = new DNSQuerySimulatedNetwork(1);
+				network.setDefaultProfile(profiles[i]);
+				qhs = handlers(5, tcp);
+				manager(network).query(qhs);
+				for (DNSQueryTransportHandler qh : qhs) {
+					assertEquals(modes[i] + (tcp ? " over TCP" : ""), outcomes[i], outcome(qh));
+					assertEquals(modes[i] + (tcp ? " over TCP" : ""), elapsed[i], qh.timeElapsed());
+				}
+				assertEquals(0, network.getOpenSockets());
+			}
+		}
+	}
+
+	@Test
+	public void testOutOfSockets() throws Exception {
+		DNSQuerySimulatedNetwork network = new DNSQuerySimulatedNetwork(1);
+		DNSQueryTransportHandler[] qhs = handlers(5, false);
+		DatagramChannel channel;
+		long start;
+
+		/* the queries wait for each other's sockets, and run one at a time */
+		network.setMaxSockets(1);
+		start = network.currentTimeMillis();
+		manager(network).query(qhs);
+		for (DNSQueryTransportHandler qh : qhs) {
+			assertEquals("OK", outcome(qh));
+		}
+		assertEquals(1, network.getPeakOpenSockets());
+		assertEquals(5 * 10, network.currentTimeMillis() - start);
+
+		/* with no socket of its own to wait for, a query fails */
+		channel = network.openDatagramChannel();
+		qhs = handlers(1, false);
+		manager(network).query(qhs);
+		assertEquals("NETWORK_ERROR/EMFILE", outcome(qhs[0]));
+		channel.close();
+		assertEquals(0, network.getOpenSockets());
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Compares DNSQueryTable with the PriorityQueue the manager used before it,
+ * as the active queue of a batch of n queries: the time taken to add them,
+ * with random expirations, and then to remove them in random order (as
+ * queries finishing would), and the memory each structure holds when full.
+ * Removal from the PriorityQueue is linear, so it is skipped for batches
+ * larger than --max-queue.  The memory is the growth of the heap after
+ * collection, so it is only meaningful for large batches.
+ *
+ * Usage: DNSQueryTableBenchmark [--runs N] [--max-queue N] [N...]
+ */
+public class DNSQueryTableBenchmark {
+	private final static Comparator<DNSQueryTransportHandler> BY_EXPIRATION = new Comparator<DNSQueryTransportHandler>() {
+		public int compare(DNSQueryTransportHandler o1, DNSQueryTransportHandler o2) {
+			return Long.compare(o1.getExpiration(), o2.getExpiration());
+		}
+	};
+
+	private final DNSQueryTransportHandler[] handlers;
+	private final DNSQueryTransportHandler[] finishing;
+
+	public DNSQueryTableBenchmark(int n, long seed) throws Exception {
+		Random random = new Random(seed);
+		InetAddress dst = InetAddress.getByName("192.0.2.1");
+		DNSQueryTransportHandler tmp;
+		byte[] req = new byte[12];
+
+		handlers = new DNSQueryTransportHandler[n];
+		for (int i = 0; i < n; i++) {
+			handlers[i] = new DNSQueryTransportHandlerUDP(req, dst, 53, null, 0, 3000);
+			handlers[i].expiration = random.nextInt(3000);
+		}
+
+		// the order in which the queries finish
+		finishing = handlers.clone();
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			tmp = finishing[i];
+			finishing[i] = finishing[j];
+			finishing[j] = tmp;
+		}
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return the milliseconds taken to add and to remove the queries, and
+	 * the bytes held by the table when full
+	 */
+	public double[] runTable() {
+		double[] ret = new double[3];
+		long before = getUsedMemory();
+		DNSQueryTable table = new DNSQueryTable();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < handlers.length; i++) {
+			table.add(handlers[i]);
+		}
+		ret[0] = (System.nanoTime() - start) / 1e6;
+		ret[2] = getUsedMemory() - before;
+
+		start = System.nanoTime();
+		for (int i = 0; i < finishing.length; i++) {
+			table.remove(finishing[i]);
+		}
+		ret[1] = (System.nanoTime() - start) / 1e6;
+		return ret;
+	}
+
+	public double[] runQueue() {
+		double[] ret = new double[3];
+		long before = getUsedMemory();
+		PriorityQueue<DNSQueryTransportHandler> queue = new PriorityQueue<>(16, BY_EXPIRATION);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < handlers.length; i++) {
+			queue.add(handlers[i]);
+		}
+		ret[0] = (System.nanoTime() - start) / 1e6;
+		ret[2] = getUsedMemory() - before;
+
+		start = System.nanoTime();
+		for (int i = 0; i < finishing.length; i++) {
+			queue.remove(finishing[i]);
+		}
+		ret[1] = (System.nanoTime() - start) / 1e6;
+		return ret;
+	}
+
+	/**
+	 * Prints the median of each measurement over the runs in `results`.
+	 */
+	private static void report(String name, double[][] results, int n) {
+		double[] median = new double[3];
+		double[] values = new double[results.length];
+
+		for (int j = 0; j < median.length; j++) {
+			for (int i = 0; i < results.length; i++) {
+				values[i] = results[i][j];
+			}
+			Arrays.sort(values);
+			median[j] = values[values.length / 2];
+		}
+		System.out.println(String.format("  %-14s add %10.1f ms  remove %10.1f ms  %6.1f bytes/query", name, median[0], median[1], median[2] / n));
+	}
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<Integer> sizes = new ArrayList<>();
+		int runs = 5;
+		int maxQueue = 100000;
+		DNSQueryTableBenchmark benchmark;
+		double[][] table;
+		double[][] queue;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--runs") && i + 1 < args.length) {
+				runs = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--max-queue") && i + 1 < args.length) {
+				maxQueue = Integer.parseInt(args[++i]);
+			} else {
+				sizes.add(Integer.parseInt(args[i]));
+			}
+		}
+		if (sizes.isEmpty()) {
+			sizes.addAll(Arrays.asList(10000, 100000, 1000000));
+		}
+
+		for (int n : sizes) {
+			benchmark = new DNSQueryTableBenchmark(n, n);
+			table = new double[runs][];
+			queue = new double[runs][];
+			for (int i = 0; i < runs; i++) {
+				table[i] = benchmark.runTable();
+				if (n <= maxQueue) {
+					queue[i] = benchmark.runQueue();
+				}
+			}
+			System.out.println(n + " queries (median of " + runs + " runs)");
+			report("DNSQueryTable", table, n);
+			if (n <= maxQueue) {
+				report("PriorityQueue", queue, n);
+			} else {
+				System.out.println("  PriorityQueue  skipped (more than --max-queue queries)");
+			}
+		}
+	}
+}
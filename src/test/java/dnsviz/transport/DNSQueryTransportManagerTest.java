@@ -0,0 +1,75 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+
+import org.junit.Test;
+
+public class DNSQueryTransportManagerTest {
+	@Test
+	public void testCloseAbandonsRunningBatches() throws Exception {
+		DNSQuerySimulatedNetwork network = new DNSQuerySimulatedNetwork(1);
+		DNSQueryPacingSettings pacingSettings = new DNSQueryPacingSettings();
+		DNSQueryAdmissionSettings admissionSettings = new DNSQueryAdmissionSettings();
+		Selector selector = network.openSelector();
+		DNSQueryTransportManager qtm;
+		InetAddress src = InetAddress.getByName("192.0.2.100");
+		DNSQuerySourcePool sourcePool = new DNSQuerySourcePool(new InetAddress[] { src });
+		DNSQueryTransportHandler[] qhs = new DNSQueryTransportHandler[20];
+		IOException error = new IOException("closed");
+		DNSQueryBatch batch;
+
+		network.setDefaultProfile(new DNSQuerySimulatedNetwork.Profile(DNSQuerySimulatedNetwork.constant(1000), 0, 0, 0));
+		pacingSettings.setDefaultLimits(DNSQueryPacingLimits.UNLIMITED);
+		admissionSettings.setMaxInFlight(10);
+		qtm = new DNSQueryTransportManager(selector, pacingSettings, admissionSettings, network);
+		qtm.setSourcePool(sourcePool);
+		for (int i = 0; i < qhs.length; i++) {
+			qhs[i] = new DNSQueryTransportHandlerUDP(new byte[12], InetAddress.getByName("10.0.0.1"), 53, null, 0, 5000);
+		}
+
+		/* half of the queries are started, and the others wait for room */
+		batch = qtm.submit(qhs, null);
+		qtm.service();
+		assertEquals(10, qtm.getInFlight());
+		assertEquals(10, qtm.getQueueDepth());
+		assertEquals(10, network.getOpenSockets());
+		assertEquals(10, sourcePool.getInFlight(src));
+
+		qtm.close(error);
+		assertTrue(batch.isComplete());
+		assertSame(error, batch.getError());
+		assertEquals(0, qtm.getInFlight());
+		assertEquals(0, qtm.getResponseBytesInFlight());
+		assertEquals(0, qtm.getQueueDepth());
+		assertEquals(0, network.getOpenSockets());
+		assertEquals(0, sourcePool.getInFlight(src));
+		selector.close();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.util;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the time and bytes allocated per message for wrapping a
+ * DNSMessageView around a query and a response and reading the header,
+ * question and OPT record from each, as the UDP handler does for every
+ * datagram.  Allocations are counted with
+ * ThreadMXBean.getThreadAllocatedBytes(), and should be zero.
+ *
+ * Usage: DNSMessageViewBenchmark [--runs N] [--messages N]
+ */
+public class DNSMessageViewBenchmark {
+	private final static int WARMUP_MESSAGES = 1000000;
+
+	/* example.com. IN A, with an OPT record advertising 4096 bytes and DO */
+	private static byte[] query() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, 0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 1);
+		write(out, 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1);
+		write(out, 0, 0, 41, 0x10, 0x00, 0, 0, 0x80, 0, 0, 0);
+		return out.toByteArray();
+	}
+
+	/* a response to the query, with two compressed A records and the OPT
+	 * record */
+	private static byte[] response() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, 0x12, 0x34, 0x81, 0x80, 0, 1, 0, 2, 0, 0, 0, 1);
+		write(out, 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1);
+		for (int i = 1; i <= 2; i++) {
+			write(out, 0xc0, 12, 0, 1, 0, 1, 0, 0, 0x0e, 0x10, 0, 4, 192, 0, 2, i);
+		}
+		write(out, 0, 0, 41, 0x10, 0x00, 0, 0, 0x80, 0, 0, 0);
+		return out.toByteArray();
+	}
+
+	private static void write(ByteArrayOutputStream out, int... bytes) {
+		for (int b : bytes) {
+			out.write(b);
+		}
+	}
+
+	/**
+	 * Wraps the view around each message in turn, `count` times in all, and
+	 * reads the fields the transport inspects.
+	 *
+	 * @return a value depending on every field read, so that the reads
+	 * cannot be optimized away
+	 */
+	private static long run(DNSMessageView view, ByteBuffer[] messages, int count) {
+		ByteBuffer buf;
+		long sum = 0;
+
+		for (int i = 0; i < count; i++) {
+			buf = messages[i % messages.length];
+			view.wrap(buf, 0, buf.limit());
+			if (!view.isWellFormed()) {
+				throw new IllegalStateException("message is not well formed");
+			}
+			sum += view.getId() + view.getRcode() + (view.isTruncated() ? 1 : 0);
+			if (view.hasQuestion()) {
+				sum += view.getQuestionType() + view.getQuestionClass();
+				sum += view.questionNameEquals(view) ? 1 : 0;
+			}
+			if (view.hasOPT()) {
+				sum += view.getUDPPayloadSize() + view.getEDNSFlags();
+			}
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean threads;
+		long thread;
+		DNSMessageView view = new DNSMessageView();
+		ByteBuffer[] messages = new ByteBuffer[] { ByteBuffer.wrap(query()), ByteBuffer.wrap(response()) };
+		int runs = 5;
+		int count = 10000000;
+		long sum;
+		long start;
+		long bytes;
+		long elapsed;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--runs") && i + 1 < args.length) {
+				runs = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--messages") && i + 1 < args.length) {
+				count = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Usage: DNSMessageViewBenchmark [--runs N] [--messages N]");
+				System.exit(2);
+			}
+		}
+
+		threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		thread = Thread.currentThread().getId();
+
+		sum = run(view, messages, WARMUP_MESSAGES);
+		System.out.println(String.format("%-6s %12s %12s", "run", "ns/message", "bytes/message"));
+		for (int i = 1; i <= runs; i++) {
+			bytes = threads.getThreadAllocatedBytes(thread);
+			start = System.nanoTime();
+			sum += run(view, messages, count);
+			elapsed = System.nanoTime() - start;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+			System.out.println(String.format("%-6d %12.1f %12.3f", i, (double)elapsed / count, (double)bytes / count));
+		}
+		if (sum == 0) {
+			System.out.println();
+		}
+	}
+}
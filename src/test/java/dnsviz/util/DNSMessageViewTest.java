@@ -0,0 +1,199 @@
+/*
+ * This file is a part of DNSViz, a tool suite for DNS/DNSSEC monitoring,
+ * analysis, and visualization.
+ * Created by Casey Deccio (casey@deccio.net)
+ *
+ * Copyright 2016 VeriSign, Inc.
+ *
+ * DNSViz is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DNSViz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with DNSViz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dnsviz.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DNSMessageViewTest {
+	/* example.com. IN A, with an OPT record advertising 4096 bytes and DO */
+	private static byte[] query() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, 0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 1);
+		write(out, 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1);
+		write(out, 0, 0, 41, 0x10, 0x00, 0, 0, 0x80, 0, 0, 0);
+		return out.toByteArray();
+	}
+
+	private static void write(ByteArrayOutputStream out, int... bytes) {
+		for (int b : bytes) {
+			out.write(b);
+		}
+	}
+
+	private static DNSMessageView view(byte[] msg) {
+		DNSMessageView view = new DNSMessageView();
+		view.wrap(ByteBuffer.wrap(msg), 0, msg.length);
+		return view;
+	}
+
+	/**
+	 * Calls every accessor that is valid for the message as wrapped, none of
+	 * which may throw.
+	 */
+	private static void inspect(DNSMessageView view, DNSMessageView other) {
+		StringBuilder sb = new StringBuilder();
+		if (view.getLength() >= DNSMessageView.HEADER_LENGTH) {
+			view.getId();
+			view.getRcode();
+			view.getQDCount();
+			view.getARCount();
+		}
+		if (view.hasQuestion()) {
+			view.getQuestionType();
+			view.getQuestionClass();
+			view.appendQuestionName(sb);
+			view.questionNameEquals(other);
+		}
+		if (view.hasOPT()) {
+			view.getUDPPayloadSize();
+			view.getEDNSFlags();
+			view.getOPTDataLength();
+		}
+	}
+
+	@Test
+	public void testWellFormed() {
+		DNSMessageView view = view(query());
+		StringBuilder sb = new StringBuilder();
+
+		assertTrue(view.isWellFormed());
+		assertEquals(0x1234, view.getId());
+		assertFalse(view.isResponse());
+		assertTrue(view.isRecursionDesired());
+		assertEquals(1, view.getQuestionType());
+		assertEquals(1, view.getQuestionClass());
+		assertTrue(view.appendQuestionName(sb));
+		assertEquals("example.com.", sb.toString());
+		assertTrue(view.hasOPT());
+		assertEquals(4096, view.getUDPPayloadSize());
+		assertTrue(view.isDNSSECOK());
+		assertTrue(view.questionNameEquals(view(query())));
+	}
+
+	@Test
+	public void testTruncated() {
+		byte[] msg = query();
+		byte[] truncated;
+		DNSMessageView view;
+
+		for (int len = 0; len < msg.length; len++) {
+			truncated = new byte[len];
+			System.arraycopy(msg, 0, truncated, 0, len);
+			view = view(truncated);
+			assertFalse("length " + len, view.isWellFormed());
+			assertFalse("length " + len, view.hasOPT());
+			if (len < 12 + 17) {
+				assertFalse("length " + len, view.hasQuestion());
+			}
+			inspect(view, view(msg));
+		}
+	}
+
+	@Test
+	public void testCompressionLoop() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DNSMessageView view;
+
+		/* a question whose name is a pointer to itself */
+		write(out, 0, 1, 0x81, 0x80, 0, 1, 0, 0, 0, 0, 0, 0);
+		write(out, 0xc0, 12, 0, 1, 0, 1);
+		view = view(out.toByteArray());
+		assertTrue(view.hasQuestion());
+		assertFalse(view.appendQuestionName(new StringBuilder()));
+		assertFalse(view.questionNameEquals(view(query())));
+
+		/* a label followed by a pointer back to that label */
+		out.reset();
+		write(out, 0, 1, 0x81, 0x80, 0, 1, 0, 0, 0, 0, 0, 0);
+		write(out, 1, 'a', 0xc0, 12, 0, 1, 0, 1);
+		view = view(out.toByteArray());
+		assertFalse(view.appendQuestionName(new StringBuilder()));
+
+		/* a pointer past the end of the message */
+		out.reset();
+		write(out, 0, 1, 0x81, 0x80, 0, 1, 0, 0, 0, 0, 0, 0);
+		write(out, 0xff, 0xff, 0, 1, 0, 1);
+		view = view(out.toByteArray());
+		assertFalse(view.appendQuestionName(new StringBuilder()));
+	}
+
+	@Test
+	public void testOverlong() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DNSMessageView view;
+
+		/* a name of 5 labels of 63 bytes, longer than 255 */
+		write(out, 0, 1, 0x81, 0x80, 0, 1, 0, 0, 0, 0, 0, 0);
+		for (int i = 0; i < 5; i++) {
+			out.write(63);
+			for (int j = 0; j < 63; j++) {
+				out.write('a');
+			}
+		}
+		write(out, 0, 0, 1, 0, 1);
+		view = view(out.toByteArray());
+		assertFalse(view.appendQuestionName(new StringBuilder()));
+		assertFalse(view.questionNameEquals(view));
+
+		/* a record whose data runs past the end of the message */
+		out.reset();
+		write(out, 0, 1, 0x81, 0x80, 0, 0, 0, 1, 0, 0, 0, 0);
+		write(out, 0, 0, 1, 0, 1, 0, 0, 0, 60, 0xff, 0xff, 1, 2, 3, 4);
+		view = view(out.toByteArray());
+		assertFalse(view.isWellFormed());
+
+		/* counts far larger than the message */
+		view = view(new byte[] { 0, 1, (byte)0x81, (byte)0x80, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff,
+				(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0 });
+		assertFalse(view.isWellFormed());
+		inspect(view, view);
+	}
+
+	@Test
+	public void testFuzz() {
+		Random random = new Random(20161);
+		byte[] valid = query();
+		byte[] msg;
+		DNSMessageView other = view(valid);
+
+		for (int i = 0; i < 100000; i++) {
+			if (i % 2 == 0) {
+				msg = valid.clone();
+				for (int j = random.nextInt(4); j >= 0; j--) {
+					msg[random.nextInt(msg.length)] = (byte)random.nextInt(256);
+				}
+			} else {
+				msg = new byte[random.nextInt(64)];
+				random.nextBytes(msg);
+			}
+			inspect(view(msg), other);
+		}
+	}
+}